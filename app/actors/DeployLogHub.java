@@ -0,0 +1,533 @@
+/**
+ * Copyright 2021 Brandon Arp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package actors;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.Cancellable;
+import akka.actor.Terminated;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.inject.Inject;
+import com.typesafe.config.Config;
+import models.Deployment;
+import models.DeploymentLog;
+import models.Host;
+import org.joda.time.DateTime;
+
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import javax.annotation.Nullable;
+
+/**
+ * Fans the log of a deployment out to everyone following it.  Lines written on this server are published by
+ * the {@link com.groupon.deployment.DeploymentLogWriter} as soon as they are committed.  A deployment whose log
+ * is written by this server alone, see {@link LocalWriterStarted}, is not polled; the others are polled once
+ * per tick, however many subscribers they have, for the lines written by other servers and for being finished.
+ *
+ * <p>The ids of the lines do not commit in order when several servers write one log, a line can commit after
+ * a line with a higher id.  A poll therefore re-reads the lines of the last <code>settleWindow</code> and only
+ * delivers the ones it has not seen; a line is settled, and no longer re-read, once the hub has seen it for the
+ * whole window.  Lines that commit later than that after a line with a higher id are not delivered.
+ *
+ * <p>A subscriber is answered with {@link Subscribed}, then sent {@link Lines} as they are written, and
+ * {@link Finished} once the deployment has finished.  The lines the hub had already seen when the subscription
+ * arrived are not sent; they are in the database and subscribers read them from there themselves, at their own
+ * pace, up to at least the cursor of the {@link Subscribed} reply.  The hub does not buffer the log.
+ *
+ * @author Brandon Arp (brandon dot arp at inscopemetrics dot com)
+ */
+public final class DeployLogHub extends AbstractActor {
+    /**
+     * Public constructor.
+     *
+     * @param config Artemis configuration
+     */
+    @Inject
+    public DeployLogHub(final Config config) {
+        _pollInterval = config.getDuration("artemis.deployLog.pollInterval");
+        _settleWindow = config.getDuration("artemis.deployLog.settleWindow");
+    }
+
+    @Override
+    public void preStart() {
+        _cancellable = getContext().system().scheduler().scheduleWithFixedDelay(
+                _pollInterval,
+                _pollInterval,
+                self(),
+                new Poll(),
+                getContext().dispatcher(),
+                self());
+    }
+
+    @Override
+    public void postStop() {
+        _cancellable.cancel();
+    }
+
+    @Override
+    public Receive createReceive() {
+        return receiveBuilder()
+                .match(Subscribe.class, this::subscribe)
+                .match(Unsubscribe.class, unsubscribe -> unsubscribe(unsubscribe.getDeploymentId(), sender()))
+                .match(Terminated.class, terminated -> {
+                    for (final Long deploymentId : Lists.newArrayList(_topics.keySet())) {
+                        unsubscribe(deploymentId, terminated.actor());
+                    }
+                })
+                .match(Published.class, this::published)
+                .match(LocalWriterStarted.class, started -> _localWriters.add(started.getDeploymentId()))
+                .match(LocalWriterStopped.class, stopped -> {
+                    _localWriters.remove(stopped.getDeploymentId());
+                    // The writer flushed the log before it stopped, pick up the end of the deployment right away
+                    final Topic topic = _topics.get(stopped.getDeploymentId());
+                    if (topic != null && poll(topic)) {
+                        _topics.remove(stopped.getDeploymentId());
+                    }
+                })
+                .match(Poll.class, poll -> poll())
+                .build();
+    }
+
+    private void subscribe(final Subscribe subscribe) {
+        final Deployment deployment = Deployment.getById(subscribe.getDeploymentId());
+        if (deployment == null || deployment.getFinished() != null) {
+            // Fleet deployments write their whole log before they finish, it is all in the database
+            sender().tell(new Finished(subscribe.getDeploymentId()), self());
+            return;
+        }
+        final Topic topic = _topics.computeIfAbsent(deployment.getId(), id -> createTopic(deployment));
+        context().watch(sender());
+        topic.getSubscribers().add(sender());
+        final long cursor = topic.getSeen()
+                .keySet()
+                .stream()
+                .mapToLong(Long::longValue)
+                .reduce(topic.getSettled(), Math::max);
+        sender().tell(new Subscribed(deployment.getId(), cursor, topic.getSettled()), self());
+    }
+
+    private Topic createTopic(final Deployment deployment) {
+        // A line of the last window may still be followed by a line with a lower id, those are re-read by the polls
+        final Topic topic = new Topic(
+                deployment,
+                DeploymentLog.getLastIdBefore(deployment, DateTime.now().minus(_settleWindow.toMillis())));
+        final long now = System.nanoTime();
+        final List<DeploymentLog> written = DeploymentLog.getLogsSince(deployment, DeploymentLog.ref(topic.getSettled()));
+        // The subscribers read the lines already written from the database
+        written.forEach(line -> topic.see(line.getId(), now));
+        return topic;
+    }
+
+    private void unsubscribe(final long deploymentId, final ActorRef subscriber) {
+        final Topic topic = _topics.get(deploymentId);
+        if (topic != null && topic.getSubscribers().remove(subscriber) && topic.getSubscribers().isEmpty()) {
+            _topics.remove(deploymentId);
+        }
+    }
+
+    private void published(final Published published) {
+        final Map<Long, List<LogLine>> byDeployment = Maps.newHashMap();
+        final long now = System.nanoTime();
+        for (final LogLine line : published.getLines()) {
+            final Topic topic = _topics.get(line.getDeploymentId());
+            if (topic != null && topic.see(line.getId(), now)) {
+                byDeployment.computeIfAbsent(line.getDeploymentId(), id -> Lists.newArrayList()).add(line);
+            }
+        }
+        byDeployment.forEach((deploymentId, lines) -> deliver(_topics.get(deploymentId), lines));
+    }
+
+    private void poll() {
+        final Iterator<Topic> iterator = _topics.values().iterator();
+        while (iterator.hasNext()) {
+            final Topic topic = iterator.next();
+            if (_localWriters.contains(topic.getDeployment().getId())) {
+                // Only this server writes the log, every line is published and the writer stops before it finishes
+                topic.settle(System.nanoTime() - _settleWindow.toNanos());
+            } else if (poll(topic)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Polls a deployment for the lines written by other servers and for being finished.
+     *
+     * @param topic the topic of the deployment
+     * @return true if the deployment has finished and its subscribers have been told
+     */
+    private boolean poll(final Topic topic) {
+        final Deployment deployment = topic.getDeployment();
+        deployment.refresh();
+        final long now = System.nanoTime();
+        final List<LogLine> unseen = Lists.newArrayList();
+        final List<DeploymentLog> written = DeploymentLog.getLogsSince(deployment, DeploymentLog.ref(topic.getSettled()));
+        for (final LogLine line : toLines(written)) {
+            if (topic.see(line.getId(), now)) {
+                unseen.add(line);
+            }
+        }
+        deliver(topic, unseen);
+        topic.settle(now - _settleWindow.toNanos());
+        if (deployment.getFinished() != null) {
+            final Finished finished = new Finished(deployment.getId());
+            topic.getSubscribers().forEach(subscriber -> subscriber.tell(finished, self()));
+            return true;
+        }
+        return false;
+    }
+
+    private void deliver(final Topic topic, final List<LogLine> lines) {
+        if (!lines.isEmpty()) {
+            final Lines message = new Lines(lines, topic.getSettled());
+            topic.getSubscribers().forEach(subscriber -> subscriber.tell(message, self()));
+        }
+    }
+
+    private static List<LogLine> toLines(final List<DeploymentLog> logs) {
+        final List<LogLine> lines = Lists.newArrayListWithCapacity(logs.size());
+        for (final DeploymentLog log : logs) {
+            lines.add(new LogLine(
+                    log.getId(),
+                    log.getDeployment().getId(),
+                    Optional.ofNullable(log.getHost()).map(Host::getName).orElse(null),
+                    log.getLogTime(),
+                    log.getMessage()));
+        }
+        return lines;
+    }
+
+    private Cancellable _cancellable;
+
+    private final Duration _pollInterval;
+    private final Duration _settleWindow;
+    private final Map<Long, Topic> _topics = Maps.newHashMap();
+    private final Set<Long> _localWriters = Sets.newHashSet();
+
+    private static final class Poll {}
+
+    /**
+     * The subscribers of one deployment.  Every line with an id up to the settled cursor has been delivered or
+     * was written before the subscription; the lines seen above it are remembered, in the order they were seen,
+     * so they are not delivered twice while they are re-read.
+     */
+    private static final class Topic {
+        Topic(final Deployment deployment, final long settled) {
+            _deployment = deployment;
+            _settled = settled;
+        }
+
+        Deployment getDeployment() {
+            return _deployment;
+        }
+
+        Set<ActorRef> getSubscribers() {
+            return _subscribers;
+        }
+
+        Map<Long, Long> getSeen() {
+            return _seen;
+        }
+
+        long getSettled() {
+            return _settled;
+        }
+
+        /**
+         * Records that a line has been seen.
+         *
+         * @param id id of the line
+         * @param now the current time, in nanoseconds
+         * @return true if the line was not seen before and is to be delivered
+         */
+        boolean see(final long id, final long now) {
+            if (id <= _settled || _seen.containsKey(id)) {
+                return false;
+            }
+            _seen.put(id, now);
+            return true;
+        }
+
+        /**
+         * Settles the lines seen before a time.
+         *
+         * @param before the time, in nanoseconds
+         */
+        void settle(final long before) {
+            final Iterator<Map.Entry<Long, Long>> iterator = _seen.entrySet().iterator();
+            while (iterator.hasNext()) {
+                final Map.Entry<Long, Long> entry = iterator.next();
+                if (entry.getValue() - before > 0) {
+                    break;
+                }
+                _settled = Math.max(_settled, entry.getKey());
+                iterator.remove();
+            }
+        }
+
+        private long _settled;
+
+        private final Deployment _deployment;
+        private final Set<ActorRef> _subscribers = Sets.newHashSet();
+        private final Map<Long, Long> _seen = Maps.newLinkedHashMap();
+    }
+
+    /**
+     * Subscribes the sender to the lines of a deployment log written from now on.
+     */
+    public static final class Subscribe {
+        /**
+         * Public constructor.
+         *
+         * @param deploymentId id of the deployment
+         */
+        public Subscribe(final long deploymentId) {
+            _deploymentId = deploymentId;
+        }
+
+        public long getDeploymentId() {
+            return _deploymentId;
+        }
+
+        private final long _deploymentId;
+    }
+
+    /**
+     * Reply to a {@link Subscribe}.  The subscriber is sent every line written from now on; the lines up to the
+     * cursor that it is not sent have all been committed to the database.  Lines with lower ids than the cursor
+     * that commit later are sent.
+     */
+    public static final class Subscribed {
+        /**
+         * Public constructor.
+         *
+         * @param deploymentId id of the deployment
+         * @param cursor id of the last line the hub had seen when the subscription arrived
+         * @param settled id up to which every line has been written
+         */
+        public Subscribed(final long deploymentId, final long cursor, final long settled) {
+            _deploymentId = deploymentId;
+            _cursor = cursor;
+            _settled = settled;
+        }
+
+        public long getDeploymentId() {
+            return _deploymentId;
+        }
+
+        public long getCursor() {
+            return _cursor;
+        }
+
+        public long getSettled() {
+            return _settled;
+        }
+
+        private final long _deploymentId;
+        private final long _cursor;
+        private final long _settled;
+    }
+
+    /**
+     * Unsubscribes the sender from the log of a deployment.
+     */
+    public static final class Unsubscribe {
+        /**
+         * Public constructor.
+         *
+         * @param deploymentId id of the deployment
+         */
+        public Unsubscribe(final long deploymentId) {
+            _deploymentId = deploymentId;
+        }
+
+        public long getDeploymentId() {
+            return _deploymentId;
+        }
+
+        private final long _deploymentId;
+    }
+
+    /**
+     * Log lines committed on this server, sent by the log writer.
+     */
+    public static final class Published {
+        /**
+         * Public constructor.
+         *
+         * @param lines the lines, in id order
+         */
+        public Published(final List<LogLine> lines) {
+            _lines = ImmutableList.copyOf(lines);
+        }
+
+        public List<LogLine> getLines() {
+            return _lines;
+        }
+
+        private final List<LogLine> _lines;
+    }
+
+    /**
+     * New log lines of a deployment, sent to its subscribers.  The lines are not necessarily in id order, nor
+     * above the ids of the lines sent before.
+     */
+    public static final class Lines {
+        /**
+         * Public constructor.
+         *
+         * @param lines the lines
+         * @param settled id up to which every line has been sent or was written before the subscription
+         */
+        public Lines(final List<LogLine> lines, final long settled) {
+            _lines = ImmutableList.copyOf(lines);
+            _settled = settled;
+        }
+
+        public List<LogLine> getLines() {
+            return _lines;
+        }
+
+        public long getSettled() {
+            return _settled;
+        }
+
+        private final List<LogLine> _lines;
+        private final long _settled;
+    }
+
+    /**
+     * Tells the hub that this server is the only one writing the log of a deployment, so the hub does not poll
+     * it until the writer stops.
+     */
+    public static final class LocalWriterStarted {
+        /**
+         * Public constructor.
+         *
+         * @param deploymentId id of the deployment
+         */
+        public LocalWriterStarted(final long deploymentId) {
+            _deploymentId = deploymentId;
+        }
+
+        public long getDeploymentId() {
+            return _deploymentId;
+        }
+
+        private final long _deploymentId;
+    }
+
+    /**
+     * Tells the hub that this server stopped writing the log of a deployment, after flushing it.
+     */
+    public static final class LocalWriterStopped {
+        /**
+         * Public constructor.
+         *
+         * @param deploymentId id of the deployment
+         */
+        public LocalWriterStopped(final long deploymentId) {
+            _deploymentId = deploymentId;
+        }
+
+        public long getDeploymentId() {
+            return _deploymentId;
+        }
+
+        private final long _deploymentId;
+    }
+
+    /**
+     * Tells the subscribers of a deployment that it has finished and its log is complete.
+     */
+    public static final class Finished {
+        /**
+         * Public constructor.
+         *
+         * @param deploymentId id of the deployment
+         */
+        public Finished(final long deploymentId) {
+            _deploymentId = deploymentId;
+        }
+
+        public long getDeploymentId() {
+            return _deploymentId;
+        }
+
+        private final long _deploymentId;
+    }
+
+    /**
+     * A line of a deployment log.
+     */
+    public static final class LogLine {
+        /**
+         * Public constructor.
+         *
+         * @param id id of the log record
+         * @param deploymentId id of the deployment
+         * @param host name of the host the line is about, null for the deployment itself
+         * @param logTime time the line was logged
+         * @param message the message
+         */
+        public LogLine(
+                final long id,
+                final long deploymentId,
+                @Nullable final String host,
+                final DateTime logTime,
+                final String message) {
+            _id = id;
+            _deploymentId = deploymentId;
+            _host = host;
+            _logTime = logTime;
+            _message = message;
+        }
+
+        public long getId() {
+            return _id;
+        }
+
+        public long getDeploymentId() {
+            return _deploymentId;
+        }
+
+        @Nullable
+        public String getHost() {
+            return _host;
+        }
+
+        public DateTime getLogTime() {
+            return _logTime;
+        }
+
+        public String getMessage() {
+            return _message;
+        }
+
+        private final long _id;
+        private final long _deploymentId;
+        private final String _host;
+        private final DateTime _logTime;
+        private final String _message;
+    }
+}
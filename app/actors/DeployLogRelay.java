@@ -23,85 +23,133 @@ import akka.actor.Status;
 import akka.actor.Terminated;
 import com.arpnetworking.steno.Logger;
 import com.arpnetworking.steno.LoggerFactory;
-import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.base.Joiner;
 import com.google.common.base.Splitter;
-import com.google.common.collect.Iterables;
-import models.Deployment;
+import com.google.common.collect.Queues;
+import com.google.common.collect.Sets;
+import com.groupon.akka.Dispatchers;
+import com.groupon.deployment.DeploymentLogArchive;
 import models.DeploymentLog;
 import models.Host;
 import scala.concurrent.duration.FiniteDuration;
 
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 /**
- * An actor to relay log messages for a deploy.
+ * An actor to relay log messages for a deploy as server-sent events.  Each message carries the id of its log
+ * line, and each event an id to resume from: a client that reconnects with a <code>Last-Event-ID</code> is sent
+ * every line it may have missed, possibly with some it has already seen, which it skips by their ids.
+ *
+ * <p>The relay sends one event at a time and waits for the stream to acknowledge it with {@link #ACK}.  It
+ * subscribes to the {@link DeployLogHub} and reads the log from the database a page at a time, buffering the
+ * live lines the hub sends meanwhile.  Reading from the database only stops once the hub has confirmed the
+ * subscription and the relay has read past the hub's cursor, from then on the buffered and new live lines are
+ * sent, skipping the ones already read.  The ids of the lines do not commit in order when several servers write
+ * the log, so the hub may send a line with a lower id than the ones already sent; the event id only moves past
+ * the lines the hub has settled.  If the client falls too far behind the live lines are dropped and read back
+ * from the database, from the event id, once the client catches up, so nothing is lost and the memory used is
+ * bounded.  The log of a deployment that has been moved to the {@link DeploymentLogArchive} is streamed from its
+ * segment instead.
  *
  * @author Brandon Arp (barp at groupon dot com)
  */
 public class DeployLogRelay extends AbstractActor {
     /**
-     * Creates a {@link Props} to create this actor.
+     * Creates a {@link Props} to create this actor on the database dispatcher.
      *
-     * @param subscriber actor to send data to
+     * @param subscriber the stream to send events to, it must acknowledge each event with {@link #ACK}
      * @param deploymentId the deployment id
+     * @param lastEventId id of the last log line the client has seen, 0 for the whole log
+     * @param hub the deployment log hub
+     * @param archive the archive of finished deployment logs
      * @return a new {@link Props}
      */
-    public static Props props(final ActorRef subscriber, final long deploymentId) {
-        return Props.create(DeployLogRelay.class, subscriber, deploymentId);
+    public static Props props(
+            final ActorRef subscriber,
+            final long deploymentId,
+            final long lastEventId,
+            final ActorRef hub,
+            final DeploymentLogArchive archive) {
+        return Props.create(DeployLogRelay.class, subscriber, deploymentId, lastEventId, hub, archive)
+                .withDispatcher(Dispatchers.DATABASE);
     }
 
     /**
      * Public constructor.
      *
-     * @param subscriber actor to send data to
+     * @param subscriber the stream to send events to
      * @param deploymentId the deployment id
+     * @param lastEventId id of the last log line the client has seen, 0 for the whole log
+     * @param hub the deployment log hub
+     * @param archive the archive of finished deployment logs
      */
-    public DeployLogRelay(final ActorRef subscriber, final long deploymentId) {
+    public DeployLogRelay(
+            final ActorRef subscriber,
+            final long deploymentId,
+            final long lastEventId,
+            final ActorRef hub,
+            final DeploymentLogArchive archive) {
         _subscriber = subscriber;
+        _deploymentId = deploymentId;
+        _cursor = lastEventId;
+        _eventId = lastEventId;
+        _hub = hub;
+        _archive = archive;
         context().watch(_subscriber);
-        _deployment = Deployment.getById(deploymentId);
-        context().system().scheduler().scheduleWithFixedDelay(
-                FiniteDuration.apply(1, TimeUnit.SECONDS),
-                FiniteDuration.apply(3, TimeUnit.SECONDS),
-                self(),
-                "check",
-                context().dispatcher(),
-                self());
+        // The backlog is read until the hub confirms the subscription, the live lines are buffered meanwhile
+        _hub.tell(new DeployLogHub.Subscribe(deploymentId), self());
+        self().tell(PUMP, self());
+    }
+
+    @Override
+    public void postStop() {
+        _hub.tell(new DeployLogHub.Unsubscribe(_deploymentId), self());
+        if (_archiveReader != null) {
+            _archiveReader.close();
+        }
     }
 
     @Override
     public Receive createReceive() {
         return receiveBuilder()
-                .matchEquals("check", check -> {
-                    final List<DeploymentLog> logs = DeploymentLog.getLogsSince(_deployment, DeploymentLog.ref(_lastId));
-
-                    final ObjectNode node = JsonNodeFactory.instance.objectNode();
-                    final ArrayNode messages = node.putArray("messages");
-                    logs.forEach(logLine -> messages.addObject()
-                            .put("line", logLine.getMessage())
-                            .put("timestamp", logLine.getLogTime().toString())
-                            .put("host", Optional.ofNullable(logLine.getHost()).map(Host::getName).orElse("Deployment")));
-                    pushLog(node);
-                    _lastId = Optional.ofNullable(Iterables.getLast(logs, null)).map(DeploymentLog::getId).orElse(_lastId);
-                    _deployment.refresh();
-                    _logger.info("Refreshed the deploy, finished=" + _deployment.getFinished());
-                    if (_deployment.getFinished() != null) {
-                        pushEnd();
-                        context().system().scheduler().scheduleOnce(FiniteDuration.apply(10, TimeUnit.SECONDS),
-                                self(),
-                                "close",
-                                context().dispatcher(),
-                                self());
+                .matchEquals(PUMP, pump -> pump())
+                .matchEquals(ACK, ack -> {
+                    _awaitingAck = false;
+                    pump();
+                })
+                .match(DeployLogHub.Subscribed.class, subscribed -> {
+                    _subscribedCursor = subscribed.getCursor();
+                    _settled = Math.max(_settled, subscribed.getSettled());
+                    pump();
+                })
+                .match(DeployLogHub.Lines.class, lines -> {
+                    _live.addAll(lines.getLines());
+                    _settled = Math.max(_settled, lines.getSettled());
+                    if (_live.size() > MAX_LIVE_LINES) {
+                        // The client is behind, read these lines back from the database when it catches up
+                        _live.clear();
+                        _catchingUp = true;
+                        _cursor = Math.min(_cursor, _eventId);
                     }
+                    pump();
+                })
+                .match(DeployLogHub.Finished.class, finished -> {
+                    _finished = true;
+                    pump();
                 })
-                .matchEquals("close", msg -> {
-                    _subscriber.tell(PoisonPill.getInstance(), self());
+                .matchEquals(CLOSE, msg -> {
+                    _subscriber.tell(new Status.Success(CLOSE), self());
                 })
                 .match(Terminated.class, terminated -> {
                     if (terminated.actor().equals(_subscriber)) {
@@ -111,23 +159,168 @@ public class DeployLogRelay extends AbstractActor {
                 .build();
     }
 
-    private void pushLog(final JsonNode node) {
+    private void pump() {
+        if (_awaitingAck || _ended) {
+            return;
+        }
+        final ObjectNode node = JsonNodeFactory.instance.objectNode();
+        final ArrayNode messages = node.putArray("messages");
+        // A page of lines that were all sent already is skipped, nothing would acknowledge an empty event
+        while (_catchingUp && messages.size() == 0) {
+            final List<DeploymentLog> page = readPage();
+            if (page.isEmpty()) {
+                break;
+            }
+            final Set<Long> read = Sets.newHashSetWithExpectedSize(page.size());
+            for (final DeploymentLog logLine : page) {
+                read.add(logLine.getId());
+                if (_sent.add(logLine.getId())) {
+                    messages.addObject()
+                            .put("id", logLine.getId())
+                            .put("line", logLine.getMessage())
+                            .put("timestamp", logLine.getLogTime().toString())
+                            .put("host", Optional.ofNullable(logLine.getHost()).map(Host::getName).orElse("Deployment"));
+                }
+                _cursor = logLine.getId();
+            }
+            _live.removeIf(logLine -> read.contains(logLine.getId()));
+        }
+        if (!_catchingUp && messages.size() == 0) {
+            while (!_live.isEmpty() && messages.size() < PAGE_SIZE) {
+                final DeployLogHub.LogLine logLine = _live.poll();
+                if (_sent.add(logLine.getId())) {
+                    messages.addObject()
+                            .put("id", logLine.getId())
+                            .put("line", logLine.getMessage())
+                            .put("timestamp", logLine.getLogTime().toString())
+                            .put("host", Optional.ofNullable(logLine.getHost()).orElse("Deployment"));
+                }
+            }
+        }
+
+        if (messages.size() > 0) {
+            pushLog(node);
+        } else if (_finished && !_catchingUp) {
+            _ended = true;
+            pushEnd();
+            context().system().scheduler().scheduleOnce(FiniteDuration.apply(10, TimeUnit.SECONDS),
+                    self(),
+                    CLOSE,
+                    context().dispatcher(),
+                    self());
+        }
+    }
+
+    private List<DeploymentLog> readPage() {
+        try {
+            if (_archiveReader != null) {
+                final List<DeploymentLog> page = _archiveReader.next(PAGE_SIZE);
+                if (page.size() < PAGE_SIZE) {
+                    _archiveReader.close();
+                    _archiveReader = null;
+                    _catchingUp = false;
+                }
+                return page;
+            }
+            final List<DeploymentLog> page = DeploymentLog.getPage(_deploymentId, _cursor, PAGE_SIZE);
+            if (page.size() < PAGE_SIZE) {
+                if (!_archiveOpened && _archive.contains(_deploymentId)) {
+                    // The log was moved out of the database, continue from the archive
+                    _archiveOpened = true;
+                    _archiveReader = _archive.open(_deploymentId, _cursor);
+                } else if (_finished || (_subscribedCursor != null && _cursor >= _subscribedCursor)) {
+                    // Every line the hub will not send has been read, the rest is buffered or still to come
+                    _catchingUp = false;
+                }
+            }
+            return page;
+        } catch (final IOException e) {
+            LOGGER.error()
+                    .setMessage("Failed to read the archived deployment log")
+                    .addData("deployment", _deploymentId)
+                    .setThrowable(e)
+                    .log();
+            _archiveReader = null;
+            _catchingUp = false;
+            return Collections.emptyList();
+        }
+    }
+
+    private void pushLog(final ObjectNode node) {
         final StringBuilder builder = new StringBuilder();
+        builder.append("id: ").append(advanceEventId()).append("\n");
         builder.append("event: log\n");
         builder.append("data: ");
         final Iterable<String> split = Splitter.on("\n").split(node.toString());
         Joiner.on("\ndata: ").appendTo(builder, split);
         builder.append("\n\n");
 
-        _subscriber.tell(builder.toString(), self());
+        send(builder.toString());
+    }
+
+    /**
+     * Moves the event id up to the last line before which the client has been sent every line.  Those are the
+     * lines the hub has settled, or the whole log once the deployment has finished, short of the lines the relay
+     * has not read yet or still buffers.
+     *
+     * @return the event id
+     */
+    private long advanceEventId() {
+        long candidate;
+        if (_finished || _archiveOpened) {
+            candidate = _cursor;
+        } else {
+            candidate = _catchingUp ? Math.min(_settled, _cursor) : _settled;
+        }
+        for (final DeployLogHub.LogLine logLine : _live) {
+            candidate = Math.min(candidate, logLine.getId() - 1);
+        }
+        _eventId = Math.max(_eventId, candidate);
+        return _eventId;
     }
 
     private void pushEnd() {
-        _subscriber.tell("event: end\ndata: \n\n", self());
+        send("event: end\ndata: \n\n");
     }
 
-    private long _lastId = 0;
-    private final Logger _logger = LoggerFactory.getLogger(DeployLogRelay.class);
+    private void send(final String event) {
+        _awaitingAck = true;
+        _subscriber.tell(event, self());
+    }
+
+    private long _cursor;
+    private long _eventId;
+    private long _settled = 0;
+    private boolean _catchingUp = true;
+    private boolean _awaitingAck = false;
+    private boolean _finished = false;
+    private boolean _ended = false;
+    private boolean _archiveOpened = false;
+    private Long _subscribedCursor;
+    private DeploymentLogArchive.SegmentReader _archiveReader;
+
     private final ActorRef _subscriber;
-    private final Deployment _deployment;
+    private final long _deploymentId;
+    private final ActorRef _hub;
+    private final DeploymentLogArchive _archive;
+    private final Deque<DeployLogHub.LogLine> _live = Queues.newArrayDeque();
+    // The ids of the lines sent most recently, the hub and the database can both yield a line
+    private final Set<Long> _sent = Collections.newSetFromMap(new LinkedHashMap<Long, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<Long, Boolean> eldest) {
+            return size() > MAX_SENT_IDS;
+        }
+    });
+
+    /**
+     * Message the stream acknowledges each event with.
+     */
+    public static final String ACK = "ack";
+
+    private static final String PUMP = "pump";
+    private static final String CLOSE = "close";
+    private static final int PAGE_SIZE = 500;
+    private static final int MAX_LIVE_LINES = 10_000;
+    private static final int MAX_SENT_IDS = 2 * PAGE_SIZE;
+    private static final Logger LOGGER = LoggerFactory.getLogger(DeployLogRelay.class);
 }
@@ -16,25 +16,29 @@
 package actors;
 
 import akka.actor.AbstractActor;
+import akka.actor.Cancellable;
 import akka.actor.Props;
 import com.arpnetworking.steno.LoggerFactory;
-import com.google.common.collect.Lists;
 import com.google.inject.Inject;
+import com.groupon.akka.Dispatchers;
 import com.groupon.deployment.FleetDeploymentCommands;
+import com.groupon.deployment.fleet.DatacenterParallel;
+import com.groupon.deployment.fleet.Distributed;
 import com.groupon.deployment.fleet.FleetDeploymentFactory;
+import com.groupon.deployment.fleet.FleetDeploymentSettings;
+import com.groupon.deployment.fleet.Parallel;
 import com.groupon.deployment.fleet.Sequential;
+import com.groupon.deployment.fleet.Waves;
+import com.typesafe.config.Config;
 import io.ebean.Ebean;
 import io.ebean.Transaction;
 import models.Deployment;
-import models.DeploymentState;
-import models.HostDeployment;
 import models.Manifest;
 import models.ManifestHistory;
 import models.Stage;
 import org.joda.time.DateTime;
+import utils.HostUtil;
 
-import java.io.IOException;
-import java.net.InetAddress;
 import java.time.Duration;
 import java.util.List;
 import javax.inject.Singleton;
@@ -50,32 +54,82 @@ public class DeployManager extends AbstractActor {
      * Public constructor.
      *
      * @param fleetDeploymentFactory a factory to create a fleet deployment.
+     * @param config Artemis configuration
      */
     @Inject
-    public DeployManager(final FleetDeploymentFactory fleetDeploymentFactory) {
+    public DeployManager(final FleetDeploymentFactory fleetDeploymentFactory, final Config config) {
         _fleetDeploymentFactory = fleetDeploymentFactory;
-        context().system().scheduler().scheduleWithFixedDelay(
+        _config = config;
+        _staleAfter = config.getDuration("artemis.recovery.staleAfter");
+        _batchSize = config.getInt("artemis.recovery.batchSize");
+        _nodeName = HostUtil.getLocalHostName();
+        _sweep = context().system().scheduler().scheduleWithFixedDelay(
                 Duration.ofSeconds(3),
-                Duration.ofSeconds(30),
+                config.getDuration("artemis.recovery.sweepInterval"),
                 self(),
                 new DeploymentSweep(), context().dispatcher(), self());
     }
 
+    @Override
+    public void postStop() throws Exception {
+        // A restart runs the constructor again, which schedules a new sweep
+        _sweep.cancel();
+        super.postStop();
+    }
+
     @Override
     public Receive createReceive() {
         return receiveBuilder()
                 .match(FleetDeploymentCommands.DeployStage.class, this::deployStage)
-                .match(DeploymentSweep.class, sweep -> sweepForStuckDeployments())
+                .match(DeploymentSweep.class, sweep -> {
+                    recoverStuckDeployments();
+                    joinDistributedDeployments();
+                })
+                .match(RecoverMore.class, more -> recoverStuckDeployments())
+                .match(FleetDeploymentCommands.ResumeHandedOff.class, handedOff -> {
+                    LOGGER.info(String.format("Deployment was handed off, resuming; id=%d", handedOff.getDeploymentId()));
+                    recoverStuckDeployments();
+                })
                 .build();
     }
 
-    private void sweepForStuckDeployments() {
-        final Deployment stuckDeployment = Deployment.getAndLockStuckDeployment();
-        if (stuckDeployment != null) {
+    private void recoverStuckDeployments() {
+        final List<Deployment> stuckDeployments = Deployment.claimStuckDeployments(
+                _nodeName,
+                DateTime.now().minus(_staleAfter.toMillis()),
+                _batchSize);
+        if (stuckDeployments.isEmpty()) {
+            LOGGER.info("Found no stuck deployments");
+            return;
+        }
+        for (final Deployment stuckDeployment : stuckDeployments) {
             LOGGER.info(String.format("Found stuck deployment, resuming; id=%d", stuckDeployment.getId()));
             startDeployment(stuckDeployment);
-        } else {
-            LOGGER.info("Found no stuck deployments");
+        }
+        if (stuckDeployments.size() == _batchSize) {
+            // There may be more, claim the next batch after the messages already queued so other servers get a share
+            self().tell(new RecoverMore(), self());
+        }
+    }
+
+    private void joinDistributedDeployments() {
+        for (final Deployment deployment : Deployment.getUnfinished()) {
+            if (FleetDeploymentSettings.forDeployment(deployment, _config).getStrategy()
+                    == FleetDeploymentSettings.Strategy.DISTRIBUTED) {
+                startDistributed(deployment);
+            }
+        }
+    }
+
+    private void startDistributed(final Deployment deployment) {
+        // Every server runs its share of a distributed deployment as a child, at most one per deployment
+        final String name = "deploy-" + deployment.getId();
+        if (!getContext().findChild(name).isPresent()) {
+            LOGGER.info(String.format("Joining distributed deployment; id=%d", deployment.getId()));
+            context().actorOf(
+                    Props.create(Distributed.class, () -> _fleetDeploymentFactory.createDistributed(deployment))
+                            .withDispatcher(Dispatchers.DATABASE),
+                    name);
         }
     }
 
@@ -89,46 +143,49 @@ public class DeployManager extends AbstractActor {
 
         try (Transaction transaction = Ebean.beginTransaction()) {
             final ManifestHistory history = Stage.applyManifestToStage(stage, manifest);
-            final Deployment deployment = new Deployment();
-            deployment.setStart(DateTime.now());
-            deployment.setInitiator(deployStageMessage.getInitiator());
-            deployment.setState(DeploymentState.NOT_STARTED);
-            deployment.setDeploymentOwner(InetAddress.getLocalHost().getCanonicalHostName());
-            deployment.setHeartbeat(DateTime.now());
-            deployment.save();
-            // Render the hosts into the deployment
-            final List<HostDeployment> hostDeployments = Lists.newArrayList();
-            stage.getHostclasses().forEach(hc -> {
-                hc.getHosts().forEach(host -> {
-                    final HostDeployment hd = new HostDeployment();
-                    hd.setDeployment(deployment);
-                    hd.setHeartbeat(DateTime.now());
-                    hd.setHost(host);
-                    hd.setState(DeploymentState.NOT_STARTED);
-                    hd.save();
-                    hostDeployments.add(hd);
-                });
-            });
-            deployment.setHostStates(hostDeployments);
-            deployment.setManifestHistory(history);
-            deployment.save();
+            final Deployment deployment = Deployment.materialize(history, deployStageMessage.getInitiator(), _nodeName);
             transaction.commit();
             startDeployment(deployment);
             sender().tell(deployment, self());
-        } catch (final IOException e) {
-            throw new RuntimeException(e);
         }
     }
 
     private void startDeployment(final Deployment deployment) {
+        final FleetDeploymentSettings.Strategy strategy = FleetDeploymentSettings.forDeployment(deployment, _config).getStrategy();
+        LOGGER.info(String.format("Starting fleet deployment; id=%d, strategy=%s", deployment.getId(), strategy));
+        final Props props;
+        switch (strategy) {
+            case PARALLEL:
+                props = Props.create(Parallel.class, () -> _fleetDeploymentFactory.createParallel(deployment));
+                break;
+            case WAVES:
+                props = Props.create(Waves.class, () -> _fleetDeploymentFactory.createWaves(deployment));
+                break;
+            case DATACENTER:
+                props = Props.create(DatacenterParallel.class, () -> _fleetDeploymentFactory.createDatacenterParallel(deployment));
+                break;
+            case DISTRIBUTED:
+                startDistributed(deployment);
+                return;
+            case SEQUENTIAL:
+            default:
+                props = Props.create(Sequential.class, () -> _fleetDeploymentFactory.create(deployment));
+                break;
+        }
         context()
                 .system()
-                .actorOf(Props.create(Sequential.class, () -> _fleetDeploymentFactory.create(deployment)),
-                         "deploy-" + deployment.getId());
+                .actorOf(props.withDispatcher(Dispatchers.DATABASE), "deploy-" + deployment.getId());
     }
 
     private final FleetDeploymentFactory _fleetDeploymentFactory;
+    private final Config _config;
+    private final Duration _staleAfter;
+    private final int _batchSize;
+    private final String _nodeName;
+    private final Cancellable _sweep;
     private static final com.arpnetworking.steno.Logger LOGGER = LoggerFactory.getLogger(DeployManager.class);
 
     private static final class DeploymentSweep {}
+
+    private static final class RecoverMore {}
 }
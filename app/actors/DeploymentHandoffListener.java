@@ -0,0 +1,164 @@
+/**
+ * Copyright 2021 Brandon Arp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package actors;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.Cancellable;
+import com.arpnetworking.steno.Logger;
+import com.arpnetworking.steno.LoggerFactory;
+import com.google.inject.Inject;
+import com.groupon.deployment.FleetDeploymentCommands;
+import com.typesafe.config.Config;
+import models.Deployment;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import play.db.Database;
+import utils.DatabaseUtil;
+import utils.HostUtil;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import javax.annotation.Nullable;
+import javax.inject.Named;
+
+/**
+ * Listens for deployment hand off notifications from other servers and tells the {@link DeployManager} to
+ * resume the deployment right away instead of waiting for its next sweep.  Notifications need PostgreSQL, on
+ * other databases this actor does nothing and hand offs are resumed by the sweep.
+ *
+ * @author Brandon Arp (brandon dot arp at inscopemetrics dot com)
+ */
+public final class DeploymentHandoffListener extends AbstractActor {
+    /**
+     * Public constructor.
+     *
+     * @param database the database to listen on
+     * @param deployManager the deploy manager
+     * @param config Artemis configuration
+     */
+    @Inject
+    public DeploymentHandoffListener(
+            final Database database,
+            @Named("DeployManager") final ActorRef deployManager,
+            final Config config) {
+        _database = database;
+        _deployManager = deployManager;
+        _pollInterval = config.getDuration("artemis.recovery.notificationPollInterval");
+        _nodeName = HostUtil.getLocalHostName();
+    }
+
+    @Override
+    public void preStart() {
+        if (!DatabaseUtil.isPostgres()) {
+            LOGGER.info()
+                    .setMessage("Database does not support notifications, hand offs will be resumed by the deployment sweep")
+                    .log();
+            return;
+        }
+        _cancellable = getContext().system().scheduler().scheduleWithFixedDelay(
+                Duration.ZERO,
+                _pollInterval,
+                self(),
+                new Poll(),
+                getContext().dispatcher(),
+                self());
+    }
+
+    @Override
+    public void postStop() {
+        if (_cancellable != null) {
+            _cancellable.cancel();
+        }
+        closeConnection();
+    }
+
+    @Override
+    public Receive createReceive() {
+        return receiveBuilder()
+                .match(Poll.class, poll -> poll())
+                .build();
+    }
+
+    private void poll() {
+        try {
+            if (_connection == null) {
+                _connection = _database.getConnection();
+                try (Statement statement = _connection.createStatement()) {
+                    statement.execute("LISTEN " + Deployment.HANDOFF_CHANNEL);
+                }
+            }
+            // Notifications are only read from the socket when a statement is executed
+            try (Statement statement = _connection.createStatement()) {
+                statement.execute("SELECT 1");
+            }
+            final PGNotification[] notifications = _connection.unwrap(PGConnection.class).getNotifications();
+            if (notifications != null) {
+                for (final PGNotification notification : notifications) {
+                    handle(notification.getParameter());
+                }
+            }
+        } catch (final SQLException e) {
+            LOGGER.warn()
+                    .setMessage("Failed to poll for hand off notifications, reconnecting")
+                    .setThrowable(e)
+                    .log();
+            closeConnection();
+        }
+    }
+
+    private void handle(final String payload) {
+        final int separator = payload.indexOf(Deployment.HANDOFF_SEPARATOR);
+        if (separator < 0) {
+            LOGGER.warn().setMessage("Ignoring malformed hand off notification").addData("payload", payload).log();
+            return;
+        }
+        // The server handing off can't resume the deployment, it is the host being deployed
+        if (_nodeName.equals(payload.substring(separator + 1))) {
+            return;
+        }
+        _deployManager.tell(
+                new FleetDeploymentCommands.ResumeHandedOff(Long.parseLong(payload.substring(0, separator))),
+                self());
+    }
+
+    private void closeConnection() {
+        if (_connection != null) {
+            try {
+                _connection.close();
+            } catch (final SQLException e) {
+                LOGGER.warn().setMessage("Failed to close the notification connection").setThrowable(e).log();
+            }
+            _connection = null;
+        }
+    }
+
+    @Nullable
+    private Cancellable _cancellable;
+    @Nullable
+    private Connection _connection;
+
+    private final Database _database;
+    private final ActorRef _deployManager;
+    private final Duration _pollInterval;
+    private final String _nodeName;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DeploymentHandoffListener.class);
+
+    private static final class Poll {}
+}
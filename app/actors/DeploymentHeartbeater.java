@@ -0,0 +1,203 @@
+/**
+ * Copyright 2021 Brandon Arp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package actors;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.Cancellable;
+import com.arpnetworking.metrics.Metrics;
+import com.arpnetworking.metrics.MetricsFactory;
+import com.arpnetworking.steno.Logger;
+import com.arpnetworking.steno.LoggerFactory;
+import com.google.common.collect.Maps;
+import com.google.inject.Inject;
+import com.typesafe.config.Config;
+import models.Deployment;
+import utils.HostUtil;
+
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Heartbeats all the deployments this server is running with one update on a fixed cadence, instead of
+ * every fleet deployment locking its row on every host event.  Fleet deployments register when they start
+ * and are told when another server has taken over their deployment.  A failed heartbeat is retried on the next
+ * one, and the registrations are kept if the actor is restarted, since the fleet deployments only register once.
+ *
+ * @author Brandon Arp (brandon dot arp at inscopemetrics dot com)
+ */
+public final class DeploymentHeartbeater extends AbstractActor {
+    /**
+     * Public constructor.
+     *
+     * @param config Artemis configuration
+     * @param metricsFactory metrics factory
+     */
+    @Inject
+    public DeploymentHeartbeater(final Config config, final MetricsFactory metricsFactory) {
+        _interval = config.getDuration("artemis.heartbeatInterval");
+        _metricsFactory = metricsFactory;
+        _nodeName = HostUtil.getLocalHostName();
+    }
+
+    @Override
+    public void preStart() {
+        _cancellable = getContext().system().scheduler().scheduleWithFixedDelay(
+                _interval,
+                _interval,
+                self(),
+                new Heartbeat(),
+                getContext().dispatcher(),
+                self());
+    }
+
+    @Override
+    public void preRestart(final Throwable reason, final Optional<Object> message) throws Exception {
+        // The fleet deployments only register once, hand the registrations to the restarted actor
+        for (final Map.Entry<Long, ActorRef> entry : _deployments.entrySet()) {
+            self().tell(new Register(entry.getKey()), entry.getValue());
+        }
+        super.preRestart(reason, message);
+    }
+
+    @Override
+    public void postStop() {
+        _cancellable.cancel();
+    }
+
+    @Override
+    public Receive createReceive() {
+        return receiveBuilder()
+                .match(Register.class, register -> _deployments.put(register.getDeploymentId(), sender()))
+                .match(Unregister.class, unregister -> _deployments.remove(unregister.getDeploymentId()))
+                .match(Heartbeat.class, heartbeat -> heartbeat())
+                .build();
+    }
+
+    private void heartbeat() {
+        if (_deployments.isEmpty()) {
+            return;
+        }
+        final long start = System.nanoTime();
+        final Set<Long> owned;
+        // CHECKSTYLE.OFF: IllegalCatch - A database failure must not drop the registered deployments
+        try {
+            owned = Deployment.heartbeatOwned(_nodeName, _deployments.keySet());
+        } catch (final RuntimeException e) {
+            // CHECKSTYLE.ON: IllegalCatch
+            LOGGER.error()
+                    .setMessage("Failed to heartbeat the deployments, retrying on the next heartbeat")
+                    .addData("deployments", _deployments.size())
+                    .setThrowable(e)
+                    .log();
+            try (Metrics metrics = _metricsFactory.create()) {
+                metrics.incrementCounter("deployment/heartbeat/failed");
+            }
+            return;
+        }
+        final Iterator<Map.Entry<Long, ActorRef>> iterator = _deployments.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry<Long, ActorRef> entry = iterator.next();
+            if (!owned.contains(entry.getKey())) {
+                LOGGER.warn()
+                        .setMessage("Deployment is no longer owned by this server")
+                        .addData("deployment", entry.getKey())
+                        .log();
+                entry.getValue().tell(new OwnershipLost(entry.getKey()), self());
+                iterator.remove();
+            }
+        }
+        try (Metrics metrics = _metricsFactory.create()) {
+            metrics.setTimer("deployment/heartbeat/latency", System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            metrics.setGauge("deployment/heartbeat/deployments", _deployments.size());
+        }
+    }
+
+    private Cancellable _cancellable;
+
+    private final Duration _interval;
+    private final MetricsFactory _metricsFactory;
+    private final String _nodeName;
+    private final Map<Long, ActorRef> _deployments = Maps.newHashMap();
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DeploymentHeartbeater.class);
+
+    /**
+     * Registers the sender as running a deployment.
+     */
+    public static final class Register {
+        /**
+         * Public constructor.
+         *
+         * @param deploymentId id of the deployment
+         */
+        public Register(final long deploymentId) {
+            _deploymentId = deploymentId;
+        }
+
+        public long getDeploymentId() {
+            return _deploymentId;
+        }
+
+        private final long _deploymentId;
+    }
+
+    /**
+     * Stops heartbeating a deployment.
+     */
+    public static final class Unregister {
+        /**
+         * Public constructor.
+         *
+         * @param deploymentId id of the deployment
+         */
+        public Unregister(final long deploymentId) {
+            _deploymentId = deploymentId;
+        }
+
+        public long getDeploymentId() {
+            return _deploymentId;
+        }
+
+        private final long _deploymentId;
+    }
+
+    /**
+     * Tells a fleet deployment that its deployment is now owned by another server or has finished.
+     */
+    public static final class OwnershipLost {
+        /**
+         * Public constructor.
+         *
+         * @param deploymentId id of the deployment
+         */
+        public OwnershipLost(final long deploymentId) {
+            _deploymentId = deploymentId;
+        }
+
+        public long getDeploymentId() {
+            return _deploymentId;
+        }
+
+        private final long _deploymentId;
+    }
+
+    private static final class Heartbeat {}
+}
@@ -0,0 +1,151 @@
+/**
+ * Copyright 2021 Brandon Arp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package actors;
+
+import akka.actor.AbstractActor;
+import akka.actor.Cancellable;
+import com.arpnetworking.metrics.Metrics;
+import com.arpnetworking.metrics.MetricsFactory;
+import com.arpnetworking.steno.Logger;
+import com.arpnetworking.steno.LoggerFactory;
+import com.google.inject.Inject;
+import com.groupon.deployment.DeploymentLogArchive;
+import com.typesafe.config.Config;
+import models.Deployment;
+import org.joda.time.DateTime;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.OptionalInt;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically moves the logs of finished deployments to the {@link DeploymentLogArchive} and deletes the
+ * segments that are past their retention.  Every server runs the archiver, each deployment is claimed by one
+ * server which writes its segment and removes its log from the database.
+ *
+ * @author Brandon Arp (brandon dot arp at inscopemetrics dot com)
+ */
+public final class DeploymentLogArchiver extends AbstractActor {
+    /**
+     * Public constructor.
+     *
+     * @param config Artemis configuration
+     * @param archive the deployment log archive
+     * @param metricsFactory metrics factory
+     */
+    @Inject
+    public DeploymentLogArchiver(final Config config, final DeploymentLogArchive archive, final MetricsFactory metricsFactory) {
+        _enabled = config.getBoolean("artemis.logArchive.enabled");
+        _archiveAfter = config.getDuration("artemis.logArchive.archiveAfter");
+        _interval = config.getDuration("artemis.logArchive.interval");
+        _batchSize = config.getInt("artemis.logArchive.batchSize");
+        _archive = archive;
+        _metricsFactory = metricsFactory;
+    }
+
+    @Override
+    public void preStart() {
+        if (_enabled) {
+            _cancellable = getContext().system().scheduler().scheduleWithFixedDelay(
+                    _interval,
+                    _interval,
+                    self(),
+                    ARCHIVE,
+                    getContext().dispatcher(),
+                    self());
+        }
+    }
+
+    @Override
+    public void postStop() {
+        if (_cancellable != null) {
+            _cancellable.cancel();
+        }
+    }
+
+    @Override
+    public Receive createReceive() {
+        return receiveBuilder()
+                .matchEquals(ARCHIVE, message -> archive())
+                .build();
+    }
+
+    private void archive() {
+        try (Metrics metrics = _metricsFactory.create()) {
+            try {
+                metrics.incrementCounter("deployment/log_archive/purged", _archive.purgeExpired());
+            } catch (final IOException e) {
+                LOGGER.error()
+                        .setMessage("Failed to delete expired deployment log segments")
+                        .setThrowable(e)
+                        .log();
+            }
+
+            final List<Deployment> deployments = Deployment.getLogsToArchive(
+                    DateTime.now().minus(_archiveAfter.toMillis()),
+                    _batchSize);
+            int archived = 0;
+            int failed = 0;
+            for (final Deployment deployment : deployments) {
+                final long start = System.nanoTime();
+                // CHECKSTYLE.OFF: IllegalCatch - One bad deployment must not stop the others from being archived
+                try {
+                    final OptionalInt result = _archive.archive(deployment);
+                    if (!result.isPresent()) {
+                        // Another server is archiving this deployment
+                        continue;
+                    }
+                    final int lines = result.getAsInt();
+                    metrics.setTimer(
+                            "deployment/log_archive/latency",
+                            System.nanoTime() - start,
+                            TimeUnit.NANOSECONDS);
+                    metrics.incrementCounter("deployment/log_archive/lines", lines);
+                    archived++;
+                    LOGGER.info()
+                            .setMessage("Archived deployment log")
+                            .addData("deployment", deployment.getId())
+                            .addData("lines", lines)
+                            .log();
+                } catch (final Exception e) {
+                    // CHECKSTYLE.ON: IllegalCatch
+                    LOGGER.error()
+                            .setMessage("Failed to archive deployment log")
+                            .addData("deployment", deployment.getId())
+                            .setThrowable(e)
+                            .log();
+                    failed++;
+                }
+            }
+            metrics.incrementCounter("deployment/log_archive/archived", archived);
+            metrics.incrementCounter("deployment/log_archive/failed", failed);
+        }
+    }
+
+    private Cancellable _cancellable;
+
+    private final boolean _enabled;
+    private final Duration _archiveAfter;
+    private final Duration _interval;
+    private final int _batchSize;
+    private final DeploymentLogArchive _archive;
+    private final MetricsFactory _metricsFactory;
+
+    private static final String ARCHIVE = "archive";
+    private static final Logger LOGGER = LoggerFactory.getLogger(DeploymentLogArchiver.class);
+}
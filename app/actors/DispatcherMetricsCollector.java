@@ -0,0 +1,96 @@
+/**
+ * Copyright 2021 Brandon Arp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package actors;
+
+import akka.actor.AbstractActor;
+import akka.actor.Cancellable;
+import com.arpnetworking.metrics.Metrics;
+import com.arpnetworking.metrics.MetricsFactory;
+import com.google.common.collect.Maps;
+import com.google.inject.Inject;
+import com.groupon.akka.InstrumentedExecutorServiceConfigurator;
+import com.typesafe.config.Config;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * Publishes the queue depth and utilization of the Artemis dispatchers on a periodic basis.
+ *
+ * @author Brandon Arp (brandon dot arp at inscopemetrics dot com)
+ */
+public final class DispatcherMetricsCollector extends AbstractActor {
+    /**
+     * Public constructor.
+     *
+     * @param config Play app configuration
+     * @param metricsFactory metrics factory
+     */
+    @Inject
+    public DispatcherMetricsCollector(final Config config, final MetricsFactory metricsFactory) {
+        _interval = config.getDuration("metrics.dispatchers.interval");
+        _metricsFactory = metricsFactory;
+    }
+
+    @Override
+    public void preStart() {
+        _cancellable = getContext().system().scheduler().scheduleWithFixedDelay(
+                _interval,
+                _interval,
+                self(),
+                new CollectDispatcherMetrics(),
+                getContext().dispatcher(),
+                self());
+    }
+
+    @Override
+    public void postStop() {
+        _cancellable.cancel();
+    }
+
+    @Override
+    public Receive createReceive() {
+        return receiveBuilder()
+                .match(CollectDispatcherMetrics.class, message -> collect())
+                .build();
+    }
+
+    private void collect() {
+        try (Metrics metrics = _metricsFactory.create()) {
+            for (final Map.Entry<String, ThreadPoolExecutor> entry
+                    : InstrumentedExecutorServiceConfigurator.getExecutors().entrySet()) {
+                final String prefix = "akka/dispatcher/" + entry.getKey().replace('.', '_') + "/";
+                final ThreadPoolExecutor executor = entry.getValue();
+                final int active = executor.getActiveCount();
+                final long completed = executor.getCompletedTaskCount();
+                final Long previous = _completed.put(entry.getKey(), completed);
+                metrics.setGauge(prefix + "queue_depth", executor.getQueue().size());
+                metrics.setGauge(prefix + "active_threads", active);
+                metrics.setGauge(prefix + "utilization", (double) active / executor.getMaximumPoolSize());
+                metrics.incrementCounter(prefix + "completed", previous == null ? 0 : completed - previous);
+            }
+        }
+    }
+
+    private Cancellable _cancellable;
+
+    private final Duration _interval;
+    private final MetricsFactory _metricsFactory;
+    private final Map<String, Long> _completed = Maps.newHashMap();
+
+    private static final class CollectDispatcherMetrics {}
+}
@@ -0,0 +1,295 @@
+/**
+ * Copyright 2021 Brandon Arp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package actors;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.Cancellable;
+import client.DockerDeploymentClient;
+import com.arpnetworking.metrics.Metrics;
+import com.arpnetworking.metrics.MetricsFactory;
+import com.arpnetworking.steno.Logger;
+import com.arpnetworking.steno.LoggerFactory;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Inject;
+import com.groupon.deployment.HostInventory;
+import com.typesafe.config.Config;
+import models.ClusterLease;
+import models.Environment;
+import models.EnvironmentType;
+import models.Host;
+import models.HostDrift;
+import models.Hostclass;
+import models.InventoryDiff;
+import models.Manifest;
+import models.ManifestHistory;
+import models.PackageChange;
+import models.Stage;
+import utils.HostUtil;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Periodically collects the {@link HostInventory} of every host of every stage and records its {@link HostDrift}
+ * from the current manifest of each of its stages.  RPM and Roller hosts are asked about the rpms of the current
+ * manifests of their stages, docker hosts list their running containers.  The hosts are scanned in parallel,
+ * bounded by <code>artemis.inventory.parallelism</code> across the whole fleet, on a pool of its own so the ssh
+ * round trips never hold a dispatcher thread.  A refresh is skipped while the previous one is still running.
+ *
+ * <p>Only one node of the cluster scans the fleet: each refresh first takes the <code>host-inventory</code>
+ * {@link ClusterLease}, which outlives one refresh interval so its holder keeps it from one run to the next and
+ * another node only takes over once the holder stops renewing it.
+ *
+ * @author Brandon Arp (brandon dot arp at inscopemetrics dot com)
+ */
+public final class HostInventoryRefresher extends AbstractActor {
+    /**
+     * Public constructor.
+     *
+     * @param config Artemis configuration
+     * @param inventory the host package inventory
+     * @param metricsFactory metrics factory
+     */
+    @Inject
+    public HostInventoryRefresher(final Config config, final HostInventory inventory, final MetricsFactory metricsFactory) {
+        _enabled = config.getBoolean("artemis.inventory.enabled");
+        _interval = config.getDuration("artemis.inventory.refreshInterval");
+        _parallelism = config.getInt("artemis.inventory.parallelism");
+        _recordDrift = config.getBoolean("artemis.inventory.recordDrift");
+        _inventory = inventory;
+        _metricsFactory = metricsFactory;
+        _nodeName = HostUtil.getLocalHostName();
+        _leaseDuration = _interval.plus(_interval.dividedBy(2));
+    }
+
+    @Override
+    public void preStart() {
+        if (_enabled) {
+            _executor = Executors.newFixedThreadPool(
+                    _parallelism,
+                    new ThreadFactoryBuilder().setNameFormat("host-inventory-%d").setDaemon(true).build());
+            _cancellable = getContext().system().scheduler().scheduleWithFixedDelay(
+                    Duration.ofSeconds(30),
+                    _interval,
+                    self(),
+                    REFRESH,
+                    getContext().dispatcher(),
+                    self());
+        }
+    }
+
+    @Override
+    public void postStop() {
+        if (_cancellable != null) {
+            _cancellable.cancel();
+        }
+        if (_executor != null) {
+            _executor.shutdownNow();
+        }
+    }
+
+    @Override
+    public Receive createReceive() {
+        return receiveBuilder()
+                .matchEquals(REFRESH, message -> refresh())
+                .match(RefreshCompleted.class, this::refreshCompleted)
+                .build();
+    }
+
+    private void refresh() {
+        if (!ClusterLease.acquire(LEASE_NAME, _nodeName, _leaseDuration)) {
+            LOGGER.debug()
+                    .setMessage("Host inventory is refreshed by another node, skipping this run")
+                    .addData("node", _nodeName)
+                    .log();
+            return;
+        }
+        // The lease is renewed above even while a long refresh is still running
+        if (_refreshing) {
+            LOGGER.info("Host inventory refresh is still running, skipping this run");
+            return;
+        }
+
+        final Map<Long, HostScan> scans = Maps.newHashMap();
+        for (final EnvironmentType type : EnvironmentType.values()) {
+            for (final Environment environment : Environment.getByEnvironmentType(type)) {
+                for (final Stage stage : environment.getStages()) {
+                    final ManifestHistory current = ManifestHistory.getCurrentForStage(stage);
+                    final Manifest manifest = current == null ? null : current.getManifest();
+                    for (final Hostclass hostclass : stage.getHostclasses()) {
+                        for (final Host host : hostclass.getHosts()) {
+                            scans.computeIfAbsent(host.getId(), id -> new HostScan(host)).add(type, stage, manifest);
+                        }
+                    }
+                }
+            }
+        }
+
+        final long start = System.nanoTime();
+        final AtomicInteger failures = new AtomicInteger();
+        final AtomicInteger drifted = new AtomicInteger();
+        final List<CompletableFuture<Void>> futures = Lists.newArrayListWithExpectedSize(scans.size());
+        for (final HostScan hostScan : scans.values()) {
+            futures.add(CompletableFuture.runAsync(() -> {
+                // CHECKSTYLE.OFF: IllegalCatch - One unreachable host must not stop the others from being collected
+                try {
+                    drifted.addAndGet(scan(hostScan));
+                } catch (final Exception e) {
+                    // CHECKSTYLE.ON: IllegalCatch
+                    failures.incrementAndGet();
+                    LOGGER.warn()
+                            .setMessage("Failed to collect the host inventory")
+                            .addData("host", hostScan._host.getName())
+                            .setThrowable(e)
+                            .log();
+                }
+            }, _executor));
+        }
+
+        _refreshing = true;
+        final ActorRef self = self();
+        final int total = futures.size();
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]))
+                .whenComplete((v, t) -> self.tell(
+                        new RefreshCompleted(total, failures.get(), drifted.get(), System.nanoTime() - start),
+                        ActorRef.noSender()));
+    }
+
+    /**
+     * Collects the inventory of a host and records its drift from the current manifest of each of its stages.
+     *
+     * @param scan the host to scan
+     * @return the number of stages the host has drifted from
+     */
+    private int scan(final HostScan scan) throws IOException, DockerDeploymentClient.DockerDeploymentClientException {
+        final Map<String, String> rpms = scan._rpmNames.isEmpty()
+                ? Collections.emptyMap()
+                : _inventory.refreshRpm(scan._host, scan._rpmNames);
+        final Map<String, String> containers = scan._docker
+                ? _inventory.refreshDocker(scan._host)
+                : Collections.emptyMap();
+        if (!_recordDrift) {
+            return 0;
+        }
+        int drifted = 0;
+        for (final StageScan stageScan : scan._stages) {
+            final EnvironmentType type = stageScan._stage.getEnvironment().getEnvironmentType();
+            final List<PackageChange> changes = InventoryDiff.getChanges(
+                    type,
+                    stageScan._stage.getEnvironment(),
+                    stageScan._manifest,
+                    InventoryDiff.getInventoryType(type) == EnvironmentType.DOCKER ? containers : rpms);
+            HostDrift.record(scan._host, stageScan._stage, stageScan._manifest, changes);
+            if (!changes.isEmpty()) {
+                drifted++;
+            }
+        }
+        return drifted;
+    }
+
+    private void refreshCompleted(final RefreshCompleted completed) {
+        _refreshing = false;
+        LOGGER.info()
+                .setMessage("Host inventory refreshed")
+                .addData("hosts", completed._hosts)
+                .addData("failures", completed._failures)
+                .addData("drifted", completed._drifted)
+                .log();
+        try (Metrics metrics = _metricsFactory.create()) {
+            metrics.setTimer("inventory/refresh/latency", completed._elapsedNanos, TimeUnit.NANOSECONDS);
+            metrics.incrementCounter("inventory/refresh/hosts", completed._hosts);
+            metrics.incrementCounter("inventory/refresh/failed", completed._failures);
+            metrics.incrementCounter("inventory/drift/drifted", completed._drifted);
+        }
+    }
+
+    private boolean _refreshing = false;
+    private Cancellable _cancellable;
+    private ExecutorService _executor;
+
+    private final boolean _enabled;
+    private final Duration _interval;
+    private final int _parallelism;
+    private final boolean _recordDrift;
+    private final HostInventory _inventory;
+    private final MetricsFactory _metricsFactory;
+    private final String _nodeName;
+    private final Duration _leaseDuration;
+
+    private static final String REFRESH = "refresh";
+    private static final String LEASE_NAME = "host-inventory";
+    private static final Logger LOGGER = LoggerFactory.getLogger(HostInventoryRefresher.class);
+
+    private static final class HostScan {
+        private HostScan(final Host host) {
+            _host = host;
+        }
+
+        private void add(final EnvironmentType type, final Stage stage, final Manifest manifest) {
+            if (InventoryDiff.getInventoryType(type) == EnvironmentType.DOCKER) {
+                _docker = true;
+            } else if (manifest != null) {
+                manifest.getPackages().forEach(pkg -> _rpmNames.add(pkg.getPkg().getName()));
+            }
+            if (manifest != null) {
+                _stages.add(new StageScan(stage, manifest));
+            }
+        }
+
+        private boolean _docker = false;
+
+        private final Host _host;
+        private final Set<String> _rpmNames = Sets.newHashSet();
+        private final List<StageScan> _stages = Lists.newArrayList();
+    }
+
+    private static final class StageScan {
+        private StageScan(final Stage stage, final Manifest manifest) {
+            _stage = stage;
+            _manifest = manifest;
+        }
+
+        private final Stage _stage;
+        private final Manifest _manifest;
+    }
+
+    private static final class RefreshCompleted {
+        private RefreshCompleted(final int hosts, final int failures, final int drifted, final long elapsedNanos) {
+            _hosts = hosts;
+            _failures = failures;
+            _drifted = drifted;
+            _elapsedNanos = elapsedNanos;
+        }
+
+        private final int _hosts;
+        private final int _failures;
+        private final int _drifted;
+        private final long _elapsedNanos;
+    }
+}
@@ -17,8 +17,10 @@ package client;
 
 import client.docker.PortMapping;
 
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Default implementation of a RunCommandBuilder.
@@ -46,6 +48,10 @@ public class DefaultDockerRunCommandBuilder implements DockerDeploymentClient.Ru
         return _portMappings;
     }
 
+    public Map<String, String> getLabels() {
+        return _labels;
+    }
+
     public String getContainerName() {
         return _containerName;
     }
@@ -55,6 +61,11 @@ public class DefaultDockerRunCommandBuilder implements DockerDeploymentClient.Ru
         _portMappings.add(portMapping);
     }
 
+    @Override
+    public void addLabel(final String key, final String value) {
+        _labels.put(key, value);
+    }
+
     @Override
     public void doRun() throws DockerDeploymentClient.DockerDeploymentClientException {
         _runner.run(this);
@@ -68,6 +79,7 @@ public class DefaultDockerRunCommandBuilder implements DockerDeploymentClient.Ru
     private final String _imageReference;
     private String _containerName;
     private final List<PortMapping> _portMappings = new LinkedList<>();
+    private final Map<String, String> _labels = new LinkedHashMap<>();
     private final DockerDeploymentClient.RunCommandRunner _runner;
 
 }
@@ -53,10 +53,21 @@ public interface DockerDeploymentClient {
      */
     List<ContainerDescription> getRunningContainers() throws DockerDeploymentClientException;
 
+    /**
+     * Gets the running containers that match filters.  The filters are evaluated by docker, in the format of
+     * <code>docker ps --filter</code>, e.g. "label=key=value" or "name=^/name$".  Filters on the same key match
+     * any of their values, filters on different keys must all match.
+     *
+     * @param filters the filters
+     * @return the matching running containers
+     * @throws DockerDeploymentClientException on deployment errors
+     */
+    List<ContainerDescription> getRunningContainers(List<String> filters) throws DockerDeploymentClientException;
+
     /**
      * Pulls (or downloads) an image onto a host.
      *
-     * @param imageReference the image to pull
+     * @param imageReference the image to pull, with a tag or a digest
      * @throws DockerDeploymentClientException on deployment errors
 
      */
@@ -200,6 +211,14 @@ public interface DockerDeploymentClient {
          */
         void addPortMapping(PortMapping portMapping);
 
+        /**
+         * Add a label to the container.
+         *
+         * @param key the label key
+         * @param value the label value
+         */
+        void addLabel(String key, String value);
+
         /**
          * Execute the run command.
          *
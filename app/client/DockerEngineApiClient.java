@@ -0,0 +1,335 @@
+/**
+ * Copyright 2021 Brandon Arp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package client;
+
+import client.docker.DockerJson;
+import client.docker.EngineConnection;
+import client.docker.PortMapping;
+import client.docker.inspectionbeans.ImageInspection;
+import com.arpnetworking.steno.Logger;
+import com.arpnetworking.steno.LoggerFactory;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.net.UrlEscapers;
+import com.google.inject.assistedinject.Assisted;
+import com.google.inject.assistedinject.AssistedInject;
+import net.schmizz.sshj.SSHClient;
+import net.schmizz.sshj.common.IOUtils;
+import net.schmizz.sshj.connection.channel.direct.Session;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.List;
+import javax.inject.Named;
+
+/**
+ * Deploys docker images to a host through the Docker Engine HTTP API.  The API is reached through
+ * <code>docker system dial-stdio</code> on a single ssh channel that stays open for the life of the client, so
+ * operations do not pay for a new ssh session and docker CLI process each.  Independent requests, e.g. the
+ * inspection of several images, are pipelined on the connection and the responses are parsed as they stream in.
+ * Images are pulled with the docker CLI instead, so the pull uses the registry credentials configured on the host.
+ *
+ * @author Brandon Arp (brandon dot arp at inscopemetrics dot com)
+ */
+public class DockerEngineApiClient implements DockerDeploymentClient, DockerDeploymentClient.RunCommandRunner {
+    /**
+     * Public constructor.
+     *
+     * @param client an ssh client
+     * @param dockerCmd the command for "docker"
+     */
+    @AssistedInject
+    public DockerEngineApiClient(@Assisted final SSHClient client, @Named("DockerCmd") final String dockerCmd) {
+        _sshClient = client;
+        _dockerCmd = dockerCmd;
+    }
+
+    @Override
+    public List<ContainerDescription> getRunningContainers() throws DockerDeploymentClientException {
+        return getRunningContainers(Collections.emptyList());
+    }
+
+    @Override
+    public synchronized List<ContainerDescription> getRunningContainers(final List<String> filters)
+            throws DockerDeploymentClientException {
+        // The list carries everything a container description needs, so the containers are not inspected
+        final ObjectNode filtersJson = DockerJson.MAPPER.createObjectNode();
+        for (final String filter : filters) {
+            final int separator = filter.indexOf('=');
+            if (separator <= 0) {
+                throw new IllegalArgumentException("Filter must be key=value; filter=" + filter);
+            }
+            filtersJson.withArray(filter.substring(0, separator)).add(filter.substring(separator + 1));
+        }
+        final String path = filters.isEmpty()
+                ? API_VERSION + "/containers/json"
+                : API_VERSION + "/containers/json?filters=" + escapeParameter(filtersJson.toString());
+        try {
+            final EngineConnection connection = connect();
+            connection.send("GET", path, null);
+            final EngineConnection.Response response = connection.read();
+            checkSuccess(response, "list containers");
+            final List<ContainerDescription> containers = Lists.newArrayList();
+            try (InputStream body = response.getBody()) {
+                for (final JsonNode container : DockerJson.MAPPER.readTree(body)) {
+                    containers.add(new ContainerDescription(
+                            container.get("Id").asText(),
+                            container.path("Names").path(0).asText(),
+                            container.get("ImageID").asText(),
+                            Instant.ofEpochSecond(container.get("Created").asLong()).toString()));
+                }
+            }
+            return containers;
+        } catch (final IOException e) {
+            throw connectionFailed(e);
+        }
+    }
+
+    @Override
+    public void pull(final String imageReference) throws DockerDeploymentClientException {
+        // The docker CLI pulls with the registry credentials in the host's docker config, including credential
+        // helpers, which the engine API only gets if the caller sends them.  The pull runs on its own ssh session
+        // so the engine connection stays free for other requests.
+        final Session session;
+        try {
+            session = _sshClient.startSession();
+        } catch (final IOException e) {
+            throw new DockerDeploymentClientException("Failed to start an ssh session to pull " + imageReference, e);
+        }
+        try {
+            final Session.Command command = session.exec(_dockerCmd + " pull " + shellQuote(imageReference));
+            // Drain the progress output so the pull cannot stall on a full channel window
+            IOUtils.readFully(command.getInputStream());
+            command.join();
+            final Integer exitStatus = command.getExitStatus();
+            if (exitStatus == null) {
+                throw new DockerDeploymentClientException("Received null but expected exit status of docker pull");
+            }
+            if (exitStatus != 0) {
+                throw new NonZeroExitStatusException(String.format(
+                        "Failed to pull %s; status=%d, stderr=%s",
+                        imageReference,
+                        exitStatus,
+                        IOUtils.readFully(command.getErrorStream()).toString(Charsets.UTF_8.name())));
+            }
+        } catch (final IOException e) {
+            throw new DockerDeploymentClientException("Failed to pull " + imageReference, e);
+        } finally {
+            try {
+                session.close();
+            } catch (final IOException e) {
+                LOGGER.debug()
+                        .setMessage("Failed to close the docker pull session")
+                        .setThrowable(e)
+                        .log();
+            }
+        }
+    }
+
+    @Override
+    public synchronized void run(final DefaultDockerRunCommandBuilder runParameters) throws DockerDeploymentClientException {
+        final ObjectNode create = DockerJson.MAPPER.createObjectNode();
+        create.put("Image", runParameters.getImageReference());
+        final ObjectNode labels = create.putObject("Labels");
+        runParameters.getLabels().forEach(labels::put);
+        final ObjectNode exposedPorts = create.putObject("ExposedPorts");
+        final ObjectNode portBindings = create.putObject("HostConfig").putObject("PortBindings");
+        for (final PortMapping mapping : runParameters.getPortMappings()) {
+            final String port = mapping.getInternalPort() + "/tcp";
+            exposedPorts.putObject(port);
+            portBindings.withArray(port).addObject().put("HostPort", String.valueOf(mapping.getExternalPort()));
+        }
+
+        try {
+            final EngineConnection connection = connect();
+            final String name = runParameters.getContainerName();
+            if (name != null) {
+                // The start can be pipelined behind the create since the container is addressed by name
+                connection.send(
+                        "POST",
+                        API_VERSION + "/containers/create?name=" + escapeParameter(name),
+                        DockerJson.MAPPER.writeValueAsBytes(create));
+                connection.send("POST", API_VERSION + "/containers/" + escapePath(name) + "/start", null);
+                final EngineConnection.Response created = connection.read();
+                final DockerDeploymentClientException createFailure = created.isSuccess()
+                        ? null
+                        : toException(created, "create container " + name);
+                final EngineConnection.Response started = connection.read();
+                if (createFailure != null) {
+                    throw createFailure;
+                }
+                checkSuccess(started, "start container " + name);
+            } else {
+                connection.send("POST", API_VERSION + "/containers/create", DockerJson.MAPPER.writeValueAsBytes(create));
+                final EngineConnection.Response created = connection.read();
+                checkSuccess(created, "create container");
+                final String id;
+                try (InputStream body = created.getBody()) {
+                    id = DockerJson.MAPPER.readTree(body).get("Id").asText();
+                }
+                connection.send("POST", API_VERSION + "/containers/" + id + "/start", null);
+                checkSuccess(connection.read(), "start container " + id);
+            }
+        } catch (final IOException e) {
+            throw connectionFailed(e);
+        }
+    }
+
+    @Override
+    public DockerDeploymentClient.RunCommandBuilder createRunCommandBuilder(final String imageReference) {
+        return new DefaultDockerRunCommandBuilder(imageReference, this);
+    }
+
+    @Override
+    public synchronized void stopAndRemoveContainer(final String containerReference) throws DockerDeploymentClientException {
+        try {
+            final EngineConnection connection = connect();
+            final String container = escapePath(containerReference);
+            connection.send("POST", API_VERSION + "/containers/" + container + "/stop", null);
+            connection.send("DELETE", API_VERSION + "/containers/" + container, null);
+            final EngineConnection.Response stopped = connection.read();
+            // 304 is a container that was already stopped
+            final DockerDeploymentClientException stopFailure = stopped.isSuccess() || stopped.getStatus() == 304
+                    ? null
+                    : toException(stopped, "stop container " + containerReference);
+            final EngineConnection.Response removed = connection.read();
+            if (stopFailure != null) {
+                throw stopFailure;
+            }
+            checkSuccess(removed, "remove container " + containerReference);
+        } catch (final IOException e) {
+            throw connectionFailed(e);
+        }
+    }
+
+    @Override
+    public synchronized List<ImageInspection> inspectImages(final List<String> imageReferences)
+            throws DockerDeploymentClientException {
+        if (imageReferences.isEmpty()) {
+            return Collections.emptyList();
+        }
+        try {
+            final EngineConnection connection = connect();
+            for (final String imageReference : imageReferences) {
+                connection.send("GET", API_VERSION + "/images/" + imageReference + "/json", null);
+            }
+            final List<ImageInspection> inspections = Lists.newArrayListWithCapacity(imageReferences.size());
+            DockerDeploymentClientException failure = null;
+            for (final String imageReference : imageReferences) {
+                final EngineConnection.Response response = connection.read();
+                if (!response.isSuccess()) {
+                    failure = failure == null ? toException(response, "inspect image " + imageReference) : failure;
+                    continue;
+                }
+                try (InputStream body = response.getBody()) {
+                    inspections.add(DockerJson.INSPECTION_MAPPER.readValue(body, ImageInspection.class));
+                } catch (final JsonProcessingException e) {
+                    failure = failure == null ? new JsonFormatError("docker inspect output in unexpected format", e) : failure;
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            return inspections;
+        } catch (final IOException e) {
+            throw connectionFailed(e);
+        }
+    }
+
+    @Override
+    public synchronized void shutdown() {
+        disconnect();
+        try {
+            // Closing rather than disconnecting lets a pooled connection be reused
+            _sshClient.close();
+        } catch (final IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private EngineConnection connect() throws IOException {
+        if (_connection == null) {
+            _session = _sshClient.startSession();
+            final Session.Command command = _session.exec(_dockerCmd + " system dial-stdio");
+            _connection = new EngineConnection(command.getInputStream(), command.getOutputStream());
+        }
+        return _connection;
+    }
+
+    private void disconnect() {
+        _connection = null;
+        if (_session != null) {
+            try {
+                _session.close();
+            } catch (final IOException e) {
+                LOGGER.debug()
+                        .setMessage("Failed to close the docker engine session")
+                        .setThrowable(e)
+                        .log();
+            }
+            _session = null;
+        }
+    }
+
+    private DockerDeploymentClientException connectionFailed(final IOException e) {
+        // The connection is out of step with its responses, start over on the next call
+        disconnect();
+        return new DockerDeploymentClientException("Docker engine API error", e);
+    }
+
+    private static void checkSuccess(final EngineConnection.Response response, final String operation)
+            throws IOException, DockerDeploymentClientException {
+        if (!response.isSuccess()) {
+            throw toException(response, operation);
+        }
+    }
+
+    private static DockerDeploymentClientException toException(
+            final EngineConnection.Response response,
+            final String operation) throws IOException {
+        return new DockerDeploymentClientException(String.format(
+                "Docker engine failed to %s; status=%d, body=%s",
+                operation,
+                response.getStatus(),
+                response.readBody()));
+    }
+
+    private static String escapeParameter(final String value) {
+        return UrlEscapers.urlFormParameterEscaper().escape(value);
+    }
+
+    private static String shellQuote(final String value) {
+        return "'" + value.replace("'", "'\\''") + "'";
+    }
+
+    private static String escapePath(final String value) {
+        return UrlEscapers.urlPathSegmentEscaper().escape(value);
+    }
+
+    private EngineConnection _connection;
+    private Session _session;
+
+    private final SSHClient _sshClient;
+    private final String _dockerCmd;
+
+    private static final String API_VERSION = "/v1.39";
+    private static final Logger LOGGER = LoggerFactory.getLogger(DockerEngineApiClient.class);
+}
@@ -15,11 +15,11 @@
  */
 package client;
 
+import client.docker.DockerJson;
 import client.docker.PortMapping;
 import client.docker.inspectionbeans.ImageInspection;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.PropertyNamingStrategy;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.google.common.base.Charsets;
 import com.google.inject.assistedinject.Assisted;
@@ -34,7 +34,7 @@ import java.io.IOException;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Locale;
+import java.util.Map;
 import javax.inject.Named;
 
 /**
@@ -58,21 +58,30 @@ public class DockerSshClient implements DockerDeploymentClient, DockerDeployment
 
     @Override
     public List<DockerDeploymentClient.ContainerDescription> getRunningContainers() throws DockerDeploymentClientException {
+        return getRunningContainers(Collections.emptyList());
+    }
+
+    @Override
+    public List<DockerDeploymentClient.ContainerDescription> getRunningContainers(final List<String> filters)
+            throws DockerDeploymentClientException {
+        final StringBuilder ps = new StringBuilder(_dockerCmd).append(" ps -q");
+        for (final String filter : filters) {
+            ps.append(" --filter ").append(shellQuote(filter));
+        }
         final String inspectionJson;
         /*
         'docker ps -q | docker inspect' : -q tells docker to only show container ids (quiet mode), and then
-        'docker inspect' takes a list of ids and produces a json array.
+        'docker inspect' takes a list of ids and produces a json array.  -r skips the inspect if nothing matched.
         */
-        inspectionJson = sshExecAndGetOutput(_dockerCmd + " ps -q | xargs " + _dockerCmd + " inspect");
+        inspectionJson = sshExecAndGetOutput(ps + " | xargs -r " + _dockerCmd + " inspect");
 
         final List<ContainerDescription> containers = new LinkedList<>();
         if (inspectionJson.isEmpty()) {
             return containers;
         }
 
-        final ObjectMapper mapper = new ObjectMapper();
         try {
-            final ArrayNode rootArray = mapper.readValue(inspectionJson, ArrayNode.class);
+            final ArrayNode rootArray = DockerJson.MAPPER.readValue(inspectionJson, ArrayNode.class);
 
             for (final JsonNode containerJson : rootArray) {
                 final ContainerDescription c = new ContainerDescription(
@@ -93,7 +102,7 @@ public class DockerSshClient implements DockerDeploymentClient, DockerDeployment
     @Override
     public void shutdown() {
         try {
-            _sshClient.disconnect();
+            // Closing rather than disconnecting lets a pooled connection be reused
             _sshClient.close();
         } catch (final IOException e) {
             throw new RuntimeException(e);
@@ -120,6 +129,9 @@ public class DockerSshClient implements DockerDeploymentClient, DockerDeployment
         for (final PortMapping mapping : runParameters.getPortMappings()) {
             sb.append(String.format("-p %d:%d ", mapping.getExternalPort(), mapping.getInternalPort()));
         }
+        for (final Map.Entry<String, String> label : runParameters.getLabels().entrySet()) {
+            sb.append("--label ").append(shellQuote(label.getKey() + "=" + label.getValue())).append(" ");
+        }
         sb.append(runParameters.getImageReference());
 
         sshExecExpectSuccess(sb.toString());
@@ -148,18 +160,7 @@ public class DockerSshClient implements DockerDeploymentClient, DockerDeployment
             return Collections.emptyList();
         }
 
-        final ObjectMapper inspectionMapper = new ObjectMapper();
-
-        inspectionMapper.setPropertyNamingStrategy(new PropertyNamingStrategy.PropertyNamingStrategyBase() {
-            static final long serialVersionUID = 1L;
-
-            @Override
-            public String translate(final String s) {
-                // Json produced by docker uses capitalized words for property names.
-                return s.substring(0, 1).toUpperCase(Locale.ENGLISH) + s.substring(1);
-            }
-        });
-
+        final ObjectMapper inspectionMapper = DockerJson.INSPECTION_MAPPER;
         final StringBuilder sb = new StringBuilder();
         sb.append(_dockerCmd).append(" inspect ");
         for (final String imageReference : imageReferences) {
@@ -200,6 +201,10 @@ public class DockerSshClient implements DockerDeploymentClient, DockerDeployment
         sshExecExpectSuccess(_dockerCmd + " rm " + containerReference);
     }
 
+    private static String shellQuote(final String value) {
+        return "'" + value.replace("'", "'\\''") + "'";
+    }
+
     /**
      * Handy for commands that should never fail, and you just want the output.
      */
@@ -0,0 +1,53 @@
+/**
+ * Copyright 2021 Brandon Arp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package client.docker;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.PropertyNamingStrategy;
+
+import java.util.Locale;
+
+/**
+ * The JSON mappers shared by the docker clients.  Mappers are thread safe and expensive to create, so they are
+ * created once rather than per call.
+ *
+ * @author Brandon Arp (brandon dot arp at inscopemetrics dot com)
+ */
+public final class DockerJson {
+    private DockerJson() {}
+
+    /**
+     * Mapper for the generic docker output.
+     */
+    public static final ObjectMapper MAPPER = new ObjectMapper();
+
+    /**
+     * Mapper for the output of an inspect.  Docker capitalizes the property names.
+     */
+    public static final ObjectMapper INSPECTION_MAPPER = new ObjectMapper();
+
+    static {
+        INSPECTION_MAPPER.setPropertyNamingStrategy(new PropertyNamingStrategy.PropertyNamingStrategyBase() {
+            static final long serialVersionUID = 1L;
+
+            @Override
+            public String translate(final String s) {
+                // Json produced by docker uses capitalized words for property names.
+                return s.substring(0, 1).toUpperCase(Locale.ENGLISH) + s.substring(1);
+            }
+        });
+    }
+}
@@ -0,0 +1,264 @@
+/**
+ * Copyright 2021 Brandon Arp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package client.docker;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.Map;
+import javax.annotation.Nullable;
+
+/**
+ * A minimal HTTP/1.1 client connection to the Docker Engine API over a pair of streams, e.g. the stdio of
+ * <code>docker system dial-stdio</code> on an ssh channel.  The connection is kept alive and requests may be
+ * pipelined: several requests can be written before the first response is read, the responses are then read
+ * in the same order.  Response bodies are streamed, not buffered, and must be read or drained in order.
+ *
+ * @author Brandon Arp (brandon dot arp at inscopemetrics dot com)
+ */
+public final class EngineConnection {
+    /**
+     * Public constructor.
+     *
+     * @param input the stream responses are read from
+     * @param output the stream requests are written to
+     */
+    public EngineConnection(final InputStream input, final OutputStream output) {
+        _input = new BufferedInputStream(input, BUFFER_SIZE);
+        _output = new BufferedOutputStream(output, BUFFER_SIZE);
+    }
+
+    /**
+     * Writes a request.  The request is buffered until {@link #flush()} or a response is read.
+     *
+     * @param method the HTTP method
+     * @param path the path, including the query string
+     * @param body the JSON body, or null
+     * @throws IOException if the request cannot be written
+     */
+    public void send(final String method, final String path, @Nullable final byte[] body) throws IOException {
+        final StringBuilder head = new StringBuilder()
+                .append(method).append(' ').append(path).append(" HTTP/1.1\r\n")
+                .append("Host: docker\r\n");
+        if (body != null) {
+            head.append("Content-Type: application/json\r\n")
+                    .append("Content-Length: ").append(body.length).append("\r\n");
+        } else if (!"GET".equals(method) && !"DELETE".equals(method)) {
+            head.append("Content-Length: 0\r\n");
+        }
+        head.append("\r\n");
+        _output.write(head.toString().getBytes(Charsets.US_ASCII));
+        if (body != null) {
+            _output.write(body);
+        }
+        _pending++;
+    }
+
+    /**
+     * Sends the buffered requests.
+     *
+     * @throws IOException if the requests cannot be sent
+     */
+    public void flush() throws IOException {
+        _output.flush();
+    }
+
+    /**
+     * Reads the next response.  The body of the previous response is drained first.
+     *
+     * @return the response
+     * @throws IOException if the response cannot be read
+     */
+    public Response read() throws IOException {
+        if (_pending == 0) {
+            throw new IllegalStateException("No request is waiting for a response");
+        }
+        flush();
+        if (_body != null) {
+            ByteStreams.exhaust(_body);
+            _body = null;
+        }
+        _pending--;
+
+        final String statusLine = readLine();
+        final String[] status = statusLine.split(" ", 3);
+        if (status.length < 2 || !status[0].startsWith("HTTP/")) {
+            throw new IOException("Malformed status line; line=" + statusLine);
+        }
+        final int statusCode = Integer.parseInt(status[1]);
+        final Map<String, String> headers = Maps.newHashMap();
+        for (String line = readLine(); !line.isEmpty(); line = readLine()) {
+            final int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ENGLISH), line.substring(colon + 1).trim());
+            }
+        }
+
+        final InputStream body;
+        if (statusCode == 204 || statusCode == 304 || statusCode / 100 == 1) {
+            body = new BodyStream(ByteStreams.limit(_input, 0));
+        } else if ("chunked".equalsIgnoreCase(headers.get("transfer-encoding"))) {
+            body = new BodyStream(new ChunkedStream());
+        } else if (headers.containsKey("content-length")) {
+            body = new BodyStream(ByteStreams.limit(_input, Long.parseLong(headers.get("content-length"))));
+        } else {
+            throw new IOException("Response has no length; status=" + statusCode);
+        }
+        _body = body;
+        return new Response(statusCode, body);
+    }
+
+    private String readLine() throws IOException {
+        final ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+        int previous = -1;
+        while (true) {
+            final int b = _input.read();
+            if (b == -1) {
+                throw new EOFException("Connection closed by the docker engine");
+            }
+            if (b == '\n' && previous == '\r') {
+                final byte[] bytes = line.toByteArray();
+                return new String(bytes, 0, bytes.length - 1, Charsets.ISO_8859_1);
+            }
+            line.write(b);
+            previous = b;
+        }
+    }
+
+    private InputStream _body;
+    private int _pending = 0;
+
+    private final BufferedInputStream _input;
+    private final BufferedOutputStream _output;
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * A response from the docker engine.
+     */
+    public static final class Response {
+        private Response(final int status, final InputStream body) {
+            _status = status;
+            _body = body;
+        }
+
+        public int getStatus() {
+            return _status;
+        }
+
+        /**
+         * Checks for a 2xx status.
+         *
+         * @return true if the request succeeded
+         */
+        public boolean isSuccess() {
+            return _status / 100 == 2;
+        }
+
+        /**
+         * Gets the body.  Closing the stream drains it, the connection stays open.
+         *
+         * @return the body
+         */
+        public InputStream getBody() {
+            return _body;
+        }
+
+        /**
+         * Reads the whole body as a string, for error messages.
+         *
+         * @return the body
+         * @throws IOException if the body cannot be read
+         */
+        public String readBody() throws IOException {
+            return new String(ByteStreams.toByteArray(_body), Charsets.UTF_8);
+        }
+
+        private final int _status;
+        private final InputStream _body;
+    }
+
+    /**
+     * The body of a response, closing it drains it instead of closing the connection.
+     */
+    private static final class BodyStream extends FilterInputStream {
+        private BodyStream(final InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public void close() throws IOException {
+            ByteStreams.exhaust(in);
+        }
+    }
+
+    /**
+     * Decodes a chunked transfer encoded body.
+     */
+    private final class ChunkedStream extends InputStream {
+        @Override
+        public int read() throws IOException {
+            final byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+            if (_done) {
+                return -1;
+            }
+            if (_remaining == 0) {
+                if (_started) {
+                    // The CRLF after the previous chunk
+                    readLine();
+                }
+                _started = true;
+                final String size = readLine();
+                final int extension = size.indexOf(';');
+                _remaining = Long.parseLong((extension >= 0 ? size.substring(0, extension) : size).trim(), 16);
+                if (_remaining == 0) {
+                    // Skip the trailers
+                    String trailer = readLine();
+                    while (!trailer.isEmpty()) {
+                        trailer = readLine();
+                    }
+                    _done = true;
+                    return -1;
+                }
+            }
+            final int read = _input.read(buffer, offset, (int) Math.min(length, _remaining));
+            if (read == -1) {
+                throw new EOFException("Connection closed by the docker engine");
+            }
+            _remaining -= read;
+            return read;
+        }
+
+        private long _remaining = 0;
+        private boolean _started = false;
+        private boolean _done = false;
+    }
+}
@@ -0,0 +1,239 @@
+/**
+ * Copyright 2021 Brandon Arp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package client.docker;
+
+import client.DockerDeploymentClient;
+import client.docker.inspectionbeans.ImageInspection;
+import com.arpnetworking.metrics.Metrics;
+import com.arpnetworking.metrics.MetricsFactory;
+import com.arpnetworking.steno.Logger;
+import com.arpnetworking.steno.LoggerFactory;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.inject.Inject;
+import com.typesafe.config.Config;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Pattern;
+import javax.annotation.Nullable;
+import javax.inject.Singleton;
+
+/**
+ * Caches the inspections of images by image id, shared by all the docker deployments.  An image id names
+ * immutable content, so its inspection never changes and only has to be fetched from the first host that
+ * has the image.  References that are not image ids, e.g. tags, can move and are always inspected.
+ *
+ * <p>Hosts deploying at the same time that miss the same image id share one inspection: the first one asks its
+ * host and the others wait for the result.  If that host cannot inspect the image, or does not answer within the
+ * wait timeout, the others ask their own.
+ *
+ * <p>The cache only answers what an image is, not whether a host has it.  Presence checks still inspect the image
+ * on every host, so the cache saves the inspections that follow the presence check, not the presence check itself.
+ * The inspection a presence check returns fills the cache.
+ *
+ * @author Brandon Arp (brandon dot arp at inscopemetrics dot com)
+ */
+@Singleton
+public class ImageInspectionCache {
+    /**
+     * Public constructor.
+     *
+     * @param config Artemis configuration
+     * @param metricsFactory metrics factory
+     */
+    @Inject
+    public ImageInspectionCache(final Config config, final MetricsFactory metricsFactory) {
+        _cache = CacheBuilder.newBuilder()
+                .maximumSize(config.getLong("artemis.dockerInspectionCacheSize"))
+                .build();
+        _waitTimeout = config.getDuration("artemis.dockerInspectionWaitTimeout");
+        _metricsFactory = metricsFactory;
+    }
+
+    /**
+     * Inspects images, only asking the host for the images that are not cached or being inspected by another host.
+     *
+     * @param client the client for the host
+     * @param imageReferences the image references
+     * @return the inspections, in the order of the references
+     * @throws DockerDeploymentClient.DockerDeploymentClientException if the host cannot inspect the images
+     */
+    public List<ImageInspection> inspectImages(final DockerDeploymentClient client, final List<String> imageReferences)
+            throws DockerDeploymentClient.DockerDeploymentClientException {
+        final ImageInspection[] inspections = new ImageInspection[imageReferences.size()];
+        final List<String> misses = Lists.newArrayList();
+        final List<Integer> missIndexes = Lists.newArrayList();
+        final List<CompletableFuture<ImageInspection>> loads = Lists.newArrayList();
+        final Map<Integer, CompletableFuture<ImageInspection>> waits = Maps.newLinkedHashMap();
+        for (int i = 0; i < imageReferences.size(); ++i) {
+            final String reference = imageReferences.get(i);
+            if (!isImageId(reference)) {
+                misses.add(reference);
+                missIndexes.add(i);
+                loads.add(null);
+                continue;
+            }
+            final String imageId = normalize(reference);
+            final ImageInspection cached = _cache.getIfPresent(imageId);
+            if (cached != null) {
+                inspections[i] = cached;
+                continue;
+            }
+            final CompletableFuture<ImageInspection> load = new CompletableFuture<>();
+            final CompletableFuture<ImageInspection> loading = _loading.putIfAbsent(imageId, load);
+            if (loading != null) {
+                waits.put(i, loading);
+            } else {
+                misses.add(reference);
+                missIndexes.add(i);
+                loads.add(load);
+            }
+        }
+        load(client, misses, missIndexes, loads, inspections);
+
+        int shared = 0;
+        final List<String> retries = Lists.newArrayList();
+        final List<Integer> retryIndexes = Lists.newArrayList();
+        final long deadline = System.nanoTime() + _waitTimeout.toNanos();
+        for (final Map.Entry<Integer, CompletableFuture<ImageInspection>> wait : waits.entrySet()) {
+            final ImageInspection inspection =
+                    await(normalize(imageReferences.get(wait.getKey())), wait.getValue(), deadline);
+            if (inspection != null) {
+                inspections[wait.getKey()] = inspection;
+                shared++;
+            } else {
+                retries.add(imageReferences.get(wait.getKey()));
+                retryIndexes.add(wait.getKey());
+            }
+        }
+        load(client, retries, retryIndexes, Collections.nCopies(retries.size(), null), inspections);
+
+        try (Metrics metrics = _metricsFactory.create()) {
+            final int fetched = misses.size() + retries.size();
+            metrics.incrementCounter("docker/image_inspection_cache/hit", imageReferences.size() - fetched - shared);
+            metrics.incrementCounter("docker/image_inspection_cache/shared", shared);
+            metrics.incrementCounter("docker/image_inspection_cache/miss", fetched);
+            metrics.setGauge("docker/image_inspection_cache/size", _cache.size());
+        }
+        return Arrays.asList(inspections);
+    }
+
+    /**
+     * Checks if a host has an image.  The host is always asked, the inspection it returns is cached.
+     *
+     * @param client the client for the host
+     * @param imageId the image id
+     * @return true if the host has the image
+     */
+    public boolean isImagePresent(final DockerDeploymentClient client, final String imageId) {
+        final List<ImageInspection> inspections;
+        try {
+            inspections = client.inspectImages(Collections.singletonList(imageId));
+        } catch (final DockerDeploymentClient.DockerDeploymentClientException e) {
+            return false;
+        }
+        if (inspections.isEmpty()) {
+            return false;
+        }
+        if (isImageId(imageId)) {
+            _cache.put(normalize(imageId), inspections.get(0));
+        }
+        return true;
+    }
+
+    private void load(
+            final DockerDeploymentClient client,
+            final List<String> references,
+            final List<Integer> indexes,
+            final List<CompletableFuture<ImageInspection>> loads,
+            final ImageInspection[] inspections)
+            throws DockerDeploymentClient.DockerDeploymentClientException {
+        if (references.isEmpty()) {
+            return;
+        }
+        try {
+            final List<ImageInspection> fetched = client.inspectImages(references);
+            for (int i = 0; i < fetched.size() && i < references.size(); ++i) {
+                final ImageInspection inspection = fetched.get(i);
+                inspections[indexes.get(i)] = inspection;
+                if (isImageId(references.get(i))) {
+                    _cache.put(normalize(references.get(i)), inspection);
+                }
+            }
+        } finally {
+            // Release the waiting hosts, with nothing if this host could not inspect the image
+            for (int i = 0; i < loads.size(); ++i) {
+                final CompletableFuture<ImageInspection> load = loads.get(i);
+                if (load != null) {
+                    final String imageId = normalize(references.get(i));
+                    _loading.remove(imageId, load);
+                    load.complete(_cache.getIfPresent(imageId));
+                }
+            }
+        }
+    }
+
+    @Nullable
+    private ImageInspection await(
+            final String imageId,
+            final CompletableFuture<ImageInspection> loading,
+            final long deadline) {
+        try {
+            return loading.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (final ExecutionException e) {
+            return null;
+        } catch (final TimeoutException e) {
+            // The host doing the inspection is stuck, stop sending the other hosts to wait on it
+            _loading.remove(imageId, loading);
+            LOGGER.warn()
+                    .setMessage("Timed out waiting for another host to inspect the image, inspecting it here")
+                    .addData("imageId", imageId)
+                    .log();
+            return null;
+        }
+    }
+
+    private static boolean isImageId(final String reference) {
+        return IMAGE_ID.matcher(reference).matches();
+    }
+
+    private static String normalize(final String imageId) {
+        return imageId.startsWith(SHA256_PREFIX) ? imageId.substring(SHA256_PREFIX.length()) : imageId;
+    }
+
+    private final Cache<String, ImageInspection> _cache;
+    private final ConcurrentMap<String, CompletableFuture<ImageInspection>> _loading = Maps.newConcurrentMap();
+    private final Duration _waitTimeout;
+    private final MetricsFactory _metricsFactory;
+
+    private static final String SHA256_PREFIX = "sha256:";
+    private static final Pattern IMAGE_ID = Pattern.compile("(sha256:)?[0-9a-f]{64}");
+    private static final Logger LOGGER = LoggerFactory.getLogger(ImageInspectionCache.class);
+}
@@ -0,0 +1,52 @@
+/**
+ * Copyright 2021 Brandon Arp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.groupon.akka;
+
+import com.typesafe.config.Config;
+
+/**
+ * Ids of the dispatchers that keep blocking work off the default dispatcher Play uses to serve requests.  Each
+ * one is a fixed pool of threads configured in the <code>artemis.dispatchers</code> block.
+ *
+ * @author Brandon Arp (brandon dot arp at inscopemetrics dot com)
+ */
+public final class Dispatchers {
+    /**
+     * Runs the host deployment actors, which block on ssh commands.
+     */
+    public static final String SSH = "artemis.dispatchers.ssh";
+    /**
+     * Runs the actors that mostly wait on the database, e.g. the fleet deployments and the deploy manager.
+     */
+    public static final String DATABASE = "artemis.dispatchers.database";
+    /**
+     * Runs the periodic refresh jobs for hosts and packages.
+     */
+    public static final String REFRESH = "artemis.dispatchers.refresh";
+
+    /**
+     * Gets the number of threads of a dispatcher.
+     *
+     * @param config the Artemis configuration
+     * @param dispatcher the id of the dispatcher
+     * @return the number of threads
+     */
+    public static int getPoolSize(final Config config, final String dispatcher) {
+        return config.getInt(dispatcher + ".instrumented-executor.pool-size");
+    }
+
+    private Dispatchers() { }
+}
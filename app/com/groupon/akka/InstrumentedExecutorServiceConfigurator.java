@@ -0,0 +1,87 @@
+/**
+ * Copyright 2021 Brandon Arp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.groupon.akka;
+
+import akka.dispatch.DispatcherPrerequisites;
+import akka.dispatch.ExecutorServiceConfigurator;
+import akka.dispatch.ExecutorServiceFactory;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.typesafe.config.Config;
+
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Executor for an Akka dispatcher with a fixed number of threads that exposes its executor so the queue depth
+ * and utilization can be published as metrics.  Use it as the <code>executor</code> of a dispatcher; the
+ * number of threads is the <code>instrumented-executor.pool-size</code> setting of the dispatcher.
+ *
+ * <p>The queue holds actors with pending messages rather than messages, so it is bounded by the number of
+ * actors on the dispatcher.
+ *
+ * @author Brandon Arp (brandon dot arp at inscopemetrics dot com)
+ */
+public final class InstrumentedExecutorServiceConfigurator extends ExecutorServiceConfigurator {
+    /**
+     * Public constructor, called by Akka.
+     *
+     * @param config the dispatcher configuration
+     * @param prerequisites the dispatcher prerequisites
+     */
+    public InstrumentedExecutorServiceConfigurator(final Config config, final DispatcherPrerequisites prerequisites) {
+        super(config, prerequisites);
+        _poolSize = config.getInt("instrumented-executor.pool-size");
+    }
+
+    @Override
+    public ExecutorServiceFactory createExecutorServiceFactory(final String id, final ThreadFactory threadFactory) {
+        final int poolSize = _poolSize;
+        return new ExecutorServiceFactory() {
+            @Override
+            public ExecutorService createExecutorService() {
+                final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                        poolSize,
+                        poolSize,
+                        KEEP_ALIVE_SECONDS,
+                        TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<>(),
+                        threadFactory);
+                executor.allowCoreThreadTimeOut(true);
+                EXECUTORS.put(id, executor);
+                return executor;
+            }
+        };
+    }
+
+    /**
+     * Gets the executors created so far, by dispatcher id.
+     *
+     * @return the executors
+     */
+    public static Map<String, ThreadPoolExecutor> getExecutors() {
+        return ImmutableMap.copyOf(EXECUTORS);
+    }
+
+    private final int _poolSize;
+
+    private static final long KEEP_ALIVE_SECONDS = 60;
+    private static final Map<String, ThreadPoolExecutor> EXECUTORS = Maps.newConcurrentMap();
+}
@@ -0,0 +1,279 @@
+/**
+ * Copyright 2021 Brandon Arp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.groupon.deployment;
+
+import com.arpnetworking.commons.jackson.databind.ObjectMapperFactory;
+import com.arpnetworking.steno.Logger;
+import com.arpnetworking.steno.LoggerFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.Lists;
+import com.google.inject.Inject;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigException;
+import models.Deployment;
+import models.DeploymentLog;
+import models.Host;
+import org.joda.time.DateTime;
+import utils.HostUtil;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.OptionalInt;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import javax.annotation.Nullable;
+import javax.inject.Singleton;
+
+/**
+ * Archive of the logs of finished deployments.  The log of a deployment is moved out of the
+ * <code>deployment_log</code> table into one gzip compressed segment of JSON lines under
+ * <code>artemis.logArchive.directory</code>, which must be shared by all the servers and has no default.  A
+ * server first claims the deployment in the database, then writes the segment to a temporary file that is
+ * linked into place, so a segment is only ever written once and is never replaced.  Segments are deleted after
+ * <code>artemis.logArchive.retention</code>.
+ *
+ * @author Brandon Arp (brandon dot arp at inscopemetrics dot com)
+ */
+@Singleton
+public class DeploymentLogArchive {
+    /**
+     * Public constructor.
+     *
+     * @param config Artemis configuration
+     */
+    @Inject
+    public DeploymentLogArchive(final Config config) {
+        if (config.hasPath("artemis.logArchive.directory")) {
+            _directory = Paths.get(config.getString("artemis.logArchive.directory"));
+        } else if (config.getBoolean("artemis.logArchive.enabled")) {
+            throw new ConfigException.Missing("artemis.logArchive.directory");
+        } else {
+            _directory = null;
+        }
+        _retention = config.getDuration("artemis.logArchive.retention");
+        _claimDuration = config.getDuration("artemis.logArchive.claimDuration");
+        _nodeName = HostUtil.getLocalHostName();
+    }
+
+    /**
+     * Moves the log of a finished deployment to the archive.  The rows are only deleted once the segment is
+     * in place and the deployment is marked as archived by the server holding the claim.
+     *
+     * @param deployment the deployment
+     * @return the number of log messages archived, or empty if another server holds the claim
+     * @throws IOException if the segment cannot be written
+     */
+    public OptionalInt archive(final Deployment deployment) throws IOException {
+        if (!deployment.claimLogArchive(_nodeName, _claimDuration)) {
+            return OptionalInt.empty();
+        }
+        final Path directory = getDirectory();
+        Files.createDirectories(directory);
+        final Path segment = getSegment(deployment.getId());
+        final Path temporary = Files.createTempFile(directory, deployment.getId() + "-", TEMPORARY_SUFFIX);
+        int lines = 0;
+        try {
+            try (OutputStream output = new GZIPOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)));
+                 JsonGenerator generator = MAPPER.getFactory().createGenerator(output)) {
+                generator.setRootValueSeparator(new SerializedString("\n"));
+                long afterId = 0;
+                List<DeploymentLog> page = DeploymentLog.getPage(deployment.getId(), afterId, PAGE_SIZE);
+                while (!page.isEmpty()) {
+                    for (final DeploymentLog log : page) {
+                        generator.writeStartObject();
+                        generator.writeNumberField("id", log.getId());
+                        if (log.getHost() != null) {
+                            generator.writeStringField("host", log.getHost().getName());
+                        }
+                        generator.writeNumberField("time", log.getLogTime().getMillis());
+                        generator.writeStringField("message", log.getMessage());
+                        generator.writeEndObject();
+                        afterId = log.getId();
+                        lines++;
+                    }
+                    page = DeploymentLog.getPage(deployment.getId(), afterId, PAGE_SIZE);
+                }
+            }
+            // Unlike a rename, linking fails rather than replace a segment that is already in place
+            Files.createLink(segment, temporary);
+        } catch (final FileAlreadyExistsException e) {
+            // A server whose claim expired placed it but did not record it, segments are only placed once complete
+            LOGGER.warn()
+                    .setMessage("Deployment log segment already exists, keeping it")
+                    .addData("deployment", deployment.getId())
+                    .addData("segment", segment)
+                    .log();
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+
+        if (deployment.markLogArchived(_nodeName)) {
+            DeploymentLog.deleteForDeployment(deployment.getId());
+        }
+        return OptionalInt.of(lines);
+    }
+
+    /**
+     * Checks if the log of a deployment is in the archive.
+     *
+     * @param deploymentId id of the deployment
+     * @return true if there is a segment for the deployment
+     */
+    public boolean contains(final long deploymentId) {
+        return _directory != null && Files.exists(getSegment(deploymentId));
+    }
+
+    /**
+     * Opens the archived log of a deployment for reading.
+     *
+     * @param deploymentId id of the deployment
+     * @param afterId the exclusive start
+     * @return a reader, or null if the log is not archived
+     * @throws IOException if the segment cannot be read
+     */
+    @Nullable
+    public SegmentReader open(final long deploymentId, final long afterId) throws IOException {
+        if (_directory == null) {
+            return null;
+        }
+        final Path segment = getSegment(deploymentId);
+        if (!Files.exists(segment)) {
+            return null;
+        }
+        return new SegmentReader(deploymentId, new GZIPInputStream(new BufferedInputStream(Files.newInputStream(segment))), afterId);
+    }
+
+    /**
+     * Deletes the segments that are older than the retention.
+     *
+     * @return the number of segments deleted
+     * @throws IOException if the archive cannot be listed
+     */
+    public int purgeExpired() throws IOException {
+        if (_directory == null || !Files.isDirectory(_directory)) {
+            return 0;
+        }
+        final Instant expiredBefore = Instant.now().minus(_retention);
+        int purged = 0;
+        try (DirectoryStream<Path> segments = Files.newDirectoryStream(_directory, "*" + SEGMENT_SUFFIX)) {
+            for (final Path segment : segments) {
+                if (Files.getLastModifiedTime(segment).toInstant().isBefore(expiredBefore)) {
+                    Files.deleteIfExists(segment);
+                    purged++;
+                }
+            }
+        }
+        return purged;
+    }
+
+    private Path getDirectory() {
+        if (_directory == null) {
+            throw new ConfigException.Missing("artemis.logArchive.directory");
+        }
+        return _directory;
+    }
+
+    private Path getSegment(final long deploymentId) {
+        return getDirectory().resolve(deploymentId + SEGMENT_SUFFIX);
+    }
+
+    private final Path _directory;
+    private final Duration _retention;
+    private final Duration _claimDuration;
+    private final String _nodeName;
+
+    private static final String SEGMENT_SUFFIX = ".log.gz";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+    private static final int PAGE_SIZE = 1000;
+    private static final ObjectMapper MAPPER = ObjectMapperFactory.createInstance();
+    private static final Logger LOGGER = LoggerFactory.getLogger(DeploymentLogArchive.class);
+
+    /**
+     * Streams the log messages of an archived deployment in id order, without reading the whole segment.
+     */
+    public static final class SegmentReader implements Closeable {
+        private SegmentReader(final long deploymentId, final InputStream input, final long afterId) throws IOException {
+            _deploymentId = deploymentId;
+            _input = input;
+            _records = MAPPER.readerFor(JsonNode.class).readValues(input);
+            _afterId = afterId;
+        }
+
+        /**
+         * Reads the next log messages.  The messages are not attached to the database.
+         *
+         * @param limit the most log messages to return
+         * @return the log messages, empty at the end of the segment
+         * @throws IOException if the segment cannot be read
+         */
+        public List<DeploymentLog> next(final int limit) throws IOException {
+            final List<DeploymentLog> logs = Lists.newArrayListWithCapacity(limit);
+            while (logs.size() < limit && _records.hasNextValue()) {
+                final JsonNode record = _records.nextValue();
+                final long id = record.get("id").asLong();
+                if (id <= _afterId) {
+                    continue;
+                }
+                final DeploymentLog log = new DeploymentLog();
+                log.setId(id);
+                if (record.hasNonNull("host")) {
+                    final Host host = new Host();
+                    host.setName(record.get("host").asText());
+                    log.setHost(host);
+                }
+                log.setLogTime(new DateTime(record.get("time").asLong()));
+                log.setMessage(record.get("message").asText());
+                logs.add(log);
+            }
+            return logs;
+        }
+
+        @Override
+        public void close() {
+            try {
+                _records.close();
+                _input.close();
+            } catch (final IOException e) {
+                LOGGER.warn()
+                        .setMessage("Failed to close a log archive segment")
+                        .addData("deployment", _deploymentId)
+                        .setThrowable(e)
+                        .log();
+            }
+        }
+
+        private final long _deploymentId;
+        private final InputStream _input;
+        private final MappingIterator<JsonNode> _records;
+        private final long _afterId;
+    }
+}
@@ -0,0 +1,249 @@
+/**
+ * Copyright 2021 Brandon Arp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.groupon.deployment;
+
+import actors.DeployLogHub;
+import akka.actor.ActorRef;
+import com.arpnetworking.metrics.Metrics;
+import com.arpnetworking.metrics.MetricsFactory;
+import com.arpnetworking.steno.Logger;
+import com.arpnetworking.steno.LoggerFactory;
+import com.google.common.collect.Lists;
+import com.google.inject.Inject;
+import com.typesafe.config.Config;
+import io.ebean.Ebean;
+import io.ebean.Transaction;
+import models.Deployment;
+import models.DeploymentLog;
+import models.Host;
+import org.joda.time.DateTime;
+import play.inject.ApplicationLifecycle;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+/**
+ * Writes the deployment logs of all the running deployments in batches.  Log records are queued and a
+ * background thread inserts them with batched statements once <code>artemis.deploymentLog.batchSize</code>
+ * records are waiting or every <code>artemis.deploymentLog.flushInterval</code>, so a fleet deployment does
+ * not wait on the database for every line it logs.  The queue holds at most
+ * <code>artemis.deploymentLog.bufferSize</code> records; once it is full writers block until the next flush.
+ *
+ * <p>Committed lines are published to the {@link DeployLogHub} for the clients following the deployment.  A
+ * deployment whose log only this server writes is registered with {@link #openExclusive(long)}, the hub then
+ * relies on the published lines instead of polling the database for it.
+ *
+ * <p>Call {@link #flush()} to write everything queued so far before the deployment state that readers
+ * of the log depend on, e.g. the deployment being finished, is saved.
+ *
+ * @author Brandon Arp (brandon dot arp at inscopemetrics dot com)
+ */
+@Singleton
+public class DeploymentLogWriter {
+    /**
+     * Public constructor.
+     *
+     * @param config Artemis configuration
+     * @param metricsFactory metrics factory
+     * @param deployLogHub the deployment log hub
+     * @param lifecycle application lifecycle, the queued records are written when the application stops
+     */
+    @Inject
+    public DeploymentLogWriter(
+            final Config config,
+            final MetricsFactory metricsFactory,
+            @Named("DeployLogHub") final ActorRef deployLogHub,
+            final ApplicationLifecycle lifecycle) {
+        _batchSize = config.getInt("artemis.deploymentLog.batchSize");
+        _flushIntervalMillis = config.getDuration("artemis.deploymentLog.flushInterval").toMillis();
+        _queue = new ArrayBlockingQueue<>(config.getInt("artemis.deploymentLog.bufferSize"));
+        _index = config.getBoolean("artemis.deploymentLog.index");
+        _metricsFactory = metricsFactory;
+        _deployLogHub = deployLogHub;
+
+        _flusher = new Thread(this::run, "deployment-log-writer");
+        _flusher.setDaemon(true);
+        _flusher.start();
+        lifecycle.addStopHook(() -> {
+            _running = false;
+            _flusher.interrupt();
+            flush();
+            return CompletableFuture.completedFuture(null);
+        });
+    }
+
+    /**
+     * Queues a log line for a deployment.
+     *
+     * @param deployment the deployment
+     * @param host the host the message is about, or null for the deployment itself
+     * @param message the message
+     */
+    public void write(final Deployment deployment, final Host host, final String message) {
+        final DeploymentLog record = new DeploymentLog();
+        record.setDeployment(Ebean.getReference(Deployment.class, deployment.getId()));
+        if (host != null) {
+            record.setHost(Ebean.getReference(Host.class, host.getId()));
+        }
+        record.setLogTime(DateTime.now());
+        record.setMessage(message);
+        try {
+            _queue.put(new PendingLine(record, deployment.getId(), host == null ? null : host.getName()));
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted queueing a deployment log record", e);
+        }
+        if (_queue.size() >= _batchSize) {
+            synchronized (_signal) {
+                _signal.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Tells the {@link DeployLogHub} that only this server writes the log of a deployment.
+     *
+     * @param deploymentId id of the deployment
+     */
+    public void openExclusive(final long deploymentId) {
+        _deployLogHub.tell(new DeployLogHub.LocalWriterStarted(deploymentId), ActorRef.noSender());
+    }
+
+    /**
+     * Writes the queued log records and tells the {@link DeployLogHub} that this server no longer writes the log
+     * of a deployment.
+     *
+     * @param deploymentId id of the deployment
+     */
+    public void closeExclusive(final long deploymentId) {
+        flush();
+        _deployLogHub.tell(new DeployLogHub.LocalWriterStopped(deploymentId), ActorRef.noSender());
+    }
+
+    /**
+     * Writes all the queued log records, returning once they are committed.
+     */
+    public void flush() {
+        synchronized (_writeLock) {
+            final List<PendingLine> batch = Lists.newArrayListWithCapacity(_batchSize);
+            while (_queue.drainTo(batch, _batchSize) > 0) {
+                insert(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    private void run() {
+        while (_running) {
+            try {
+                synchronized (_signal) {
+                    if (_queue.size() < _batchSize) {
+                        _signal.wait(_flushIntervalMillis);
+                    }
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            // CHECKSTYLE.OFF: IllegalCatch - The writer thread must survive a failed flush
+            try {
+                flush();
+            } catch (final RuntimeException e) {
+                LOGGER.error()
+                        .setMessage("Failed to flush deployment logs")
+                        .setThrowable(e)
+                        .log();
+            }
+            // CHECKSTYLE.ON: IllegalCatch
+        }
+    }
+
+    private void insert(final List<PendingLine> batch) {
+        final long start = System.nanoTime();
+        // CHECKSTYLE.OFF: IllegalCatch - A failed batch is dropped rather than blocking the logs behind it
+        try (Transaction transaction = Ebean.beginTransaction()) {
+            transaction.setBatchMode(true);
+            transaction.setBatchSize(_batchSize);
+            final List<DeploymentLog> records = batch.stream().map(PendingLine::getRecord).collect(Collectors.toList());
+            Ebean.saveAll(records);
+            if (_index) {
+                // The ids are assigned once the inserts are flushed
+                transaction.flush();
+                DeploymentLog.index(records);
+            }
+            transaction.commit();
+            _deployLogHub.tell(
+                    new DeployLogHub.Published(batch.stream().map(PendingLine::toLogLine).collect(Collectors.toList())),
+                    ActorRef.noSender());
+        } catch (final RuntimeException e) {
+            LOGGER.error()
+                    .setMessage("Failed to write deployment logs, dropping the batch")
+                    .addData("records", batch.size())
+                    .setThrowable(e)
+                    .log();
+        }
+        // CHECKSTYLE.ON: IllegalCatch
+        try (Metrics metrics = _metricsFactory.create()) {
+            metrics.setTimer("deployment/log/flush_latency", System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            metrics.setGauge("deployment/log/batch_size", batch.size());
+            metrics.setGauge("deployment/log/queue_depth", _queue.size());
+        }
+    }
+
+    private volatile boolean _running = true;
+
+    private final int _batchSize;
+    private final boolean _index;
+    private final long _flushIntervalMillis;
+    private final BlockingQueue<PendingLine> _queue;
+    private final MetricsFactory _metricsFactory;
+    private final ActorRef _deployLogHub;
+    private final Thread _flusher;
+    private final Object _signal = new Object();
+    private final Object _writeLock = new Object();
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DeploymentLogWriter.class);
+
+    /**
+     * A queued log record.  The deployment id and host name are captured when the line is written so the
+     * writer thread does not read the entities of the fleet deployment actors.
+     */
+    private static final class PendingLine {
+        PendingLine(final DeploymentLog record, final long deploymentId, final String host) {
+            _record = record;
+            _deploymentId = deploymentId;
+            _host = host;
+        }
+
+        DeploymentLog getRecord() {
+            return _record;
+        }
+
+        DeployLogHub.LogLine toLogLine() {
+            return new DeployLogHub.LogLine(_record.getId(), _deploymentId, _host, _record.getLogTime(), _record.getMessage());
+        }
+
+        private final DeploymentLog _record;
+        private final long _deploymentId;
+        private final String _host;
+    }
+}
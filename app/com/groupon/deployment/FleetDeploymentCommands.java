@@ -57,4 +57,24 @@ public class FleetDeploymentCommands {
         private final Manifest _deployment;
         private final String _initiator;
     }
+
+    /**
+     * Resume deployments that have been handed off by another server.
+     */
+    public static final class ResumeHandedOff {
+        /**
+         * Public constructor.
+         *
+         * @param deploymentId the id of the deployment that was handed off
+         */
+        public ResumeHandedOff(final long deploymentId) {
+            _deploymentId = deploymentId;
+        }
+
+        public long getDeploymentId() {
+            return _deploymentId;
+        }
+
+        private final long _deploymentId;
+    }
 }
@@ -17,6 +17,8 @@ package com.groupon.deployment;
 
 import models.Host;
 
+import javax.annotation.Nullable;
+
 /**
  * Notification messages for host deployments.
  *
@@ -116,4 +118,32 @@ public final class HostDeploymentNotifications {
         private final Host _host;
         private final String _log;
     }
+
+    /**
+     * Artifacts for a deployment have been downloaded to a host ahead of the cutover.
+     */
+    public static final class PrefetchCompleted {
+        /**
+         * Public constructor.
+         *
+         * @param host host the artifacts were downloaded to
+         * @param failure the failure exception, or null if the prefetch succeeded
+         */
+        public PrefetchCompleted(final Host host, @Nullable final Throwable failure) {
+            _host = host;
+            _failure = failure;
+        }
+
+        public Host getHost() {
+            return _host;
+        }
+
+        @Nullable
+        public Throwable getFailure() {
+            return _failure;
+        }
+
+        private final Host _host;
+        private final Throwable _failure;
+    }
 }
@@ -0,0 +1,174 @@
+/**
+ * Copyright 2021 Brandon Arp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.groupon.deployment;
+
+import client.DeploymentClientFactory;
+import client.DockerDeploymentClient;
+import com.arpnetworking.steno.Logger;
+import com.arpnetworking.steno.LoggerFactory;
+import com.google.common.collect.Maps;
+import com.google.inject.Inject;
+import com.groupon.deployment.host.RpmPlan;
+import com.typesafe.config.Config;
+import models.EnvironmentType;
+import models.Host;
+import models.HostPackage;
+import models.PackageVersion;
+import net.schmizz.sshj.SSHClient;
+import org.joda.time.DateTime;
+import utils.RpmVersionComparator;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.inject.Singleton;
+
+/**
+ * Collects and reads the inventory of what is actually installed on the hosts: the versions of the rpms of an
+ * RPM host and the images of the containers running on a docker host.  The inventory is stored as
+ * {@link HostPackage} records.
+ *
+ * <p>The collection methods block on ssh, they are expected to be called from an actor on the ssh dispatcher
+ * or from a dedicated executor.
+ *
+ * @author Brandon Arp (brandon dot arp at inscopemetrics dot com)
+ */
+@Singleton
+public class HostInventory {
+    /**
+     * Public constructor.
+     *
+     * @param sshFactory ssh session factory
+     * @param dcf deployment client factory
+     * @param config Artemis configuration
+     */
+    @Inject
+    public HostInventory(final SshSessionFactory sshFactory, final DeploymentClientFactory dcf, final Config config) {
+        _sshFactory = sshFactory;
+        _dcf = dcf;
+        _config = config;
+        _maxAge = config.getDuration("artemis.inventory.maxAge");
+    }
+
+    /**
+     * Collects the installed versions of a set of rpms from a host and replaces its rpm inventory.
+     *
+     * @param host the host
+     * @param names the names of the rpms Artemis deploys to the host
+     * @return the installed versions, by name
+     * @throws IOException on ssh errors
+     */
+    public Map<String, String> refreshRpm(final Host host, final Set<String> names) throws IOException {
+        final Map<String, String> versions;
+        try (SSHClient sshClient = _sshFactory.create(host.getName())) {
+            final SshCommandExecutor executor = new SshCommandExecutor(
+                    line -> LOGGER.debug()
+                            .setMessage("Inventory command output")
+                            .addData("host", host.getName())
+                            .addData("line", line)
+                            .log(),
+                    _config);
+            versions = RpmPlan.getInstalledPackages(sshClient, executor, names);
+        }
+        HostPackage.replace(host, EnvironmentType.RPM, versions);
+        return versions;
+    }
+
+    /**
+     * Collects the running containers of a host and replaces its docker inventory.
+     *
+     * @param host the host
+     * @return the image id of each running container, by container name
+     * @throws DockerDeploymentClient.DockerDeploymentClientException on docker errors
+     */
+    public Map<String, String> refreshDocker(final Host host) throws DockerDeploymentClient.DockerDeploymentClientException {
+        final DockerDeploymentClient client = _dcf.createDockerClient(_sshFactory.create(host.getName()));
+        try {
+            final Map<String, String> images = getImages(client.getRunningContainers());
+            HostPackage.replace(host, EnvironmentType.DOCKER, images);
+            return images;
+        } finally {
+            client.shutdown();
+        }
+    }
+
+    /**
+     * Records the installed versions of the rpms of a deployment, queried after it ran; the rest of the host's
+     * inventory is kept.
+     *
+     * @param host the host
+     * @param versions the installed versions, by name
+     */
+    public void recordRpm(final Host host, final Map<String, String> versions) {
+        HostPackage.update(host, EnvironmentType.RPM, versions);
+    }
+
+    /**
+     * Records the containers running on a host after a deployment, replacing its docker inventory.
+     *
+     * @param host the host
+     * @param containers the running containers
+     */
+    public void recordDocker(final Host host, final List<DockerDeploymentClient.ContainerDescription> containers) {
+        HostPackage.replace(host, EnvironmentType.DOCKER, getImages(containers));
+    }
+
+    /**
+     * Checks if the inventory shows a host already has the versions of a manifest.  Inventory records older than
+     * <code>artemis.inventory.maxAge</code> are not trusted.
+     *
+     * @param host the host
+     * @param deploymentMap the manifest packages by name
+     * @return true if every package of the manifest is recorded at its manifest version
+     */
+    public boolean isRpmConverged(final Host host, final Map<String, PackageVersion> deploymentMap) {
+        if (deploymentMap.isEmpty()) {
+            return false;
+        }
+        final DateTime oldest = DateTime.now().minus(_maxAge.toMillis());
+        final Map<String, HostPackage> inventory = Maps.newHashMap();
+        for (final HostPackage pkg : HostPackage.getForHost(host, EnvironmentType.RPM)) {
+            inventory.put(pkg.getName(), pkg);
+        }
+        for (final Map.Entry<String, PackageVersion> entry : deploymentMap.entrySet()) {
+            final HostPackage installed = inventory.get(entry.getKey());
+            if (installed == null
+                    || installed.getUpdatedAt().isBefore(oldest)
+                    || RPM_VERSION_COMPARATOR.compare(installed.getVersion(), entry.getValue().getVersion()) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Map<String, String> getImages(final List<DockerDeploymentClient.ContainerDescription> containers) {
+        final Map<String, String> images = Maps.newHashMapWithExpectedSize(containers.size());
+        for (final DockerDeploymentClient.ContainerDescription container : containers) {
+            images.put(container.getName(), container.getImageId());
+        }
+        return images;
+    }
+
+    private final SshSessionFactory _sshFactory;
+    private final DeploymentClientFactory _dcf;
+    private final Config _config;
+    private final Duration _maxAge;
+
+    private static final RpmVersionComparator RPM_VERSION_COMPARATOR = new RpmVersionComparator();
+    private static final Logger LOGGER = LoggerFactory.getLogger(HostInventory.class);
+}
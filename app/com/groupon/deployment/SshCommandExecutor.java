@@ -0,0 +1,309 @@
+/**
+ * Copyright 2021 Brandon Arp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.groupon.deployment;
+
+import com.arpnetworking.steno.LoggerFactory;
+import com.google.common.base.Charsets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.typesafe.config.Config;
+import net.schmizz.sshj.SSHClient;
+import net.schmizz.sshj.connection.channel.direct.Session;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+
+/**
+ * Executes commands over ssh for the host deployment actors, sending the command and its output to a
+ * deployment log.
+ *
+ * <p>The output is read in large chunks and the lines are sent to the deployment log in batches, bounded by
+ * the <code>ssh.output.maxBatchSize</code> and <code>ssh.output.maxBatchDelay</code> settings, so a verbose
+ * command costs a handful of log records instead of one per line.  The output is only read as fast as the
+ * consumer accepts it: the host deployment actors write it to the bounded queue of the
+ * {@link DeploymentLogWriter}, which blocks once the queue is full, so a database that falls behind fills the
+ * ssh channel window and pauses the remote command.  Standard error is read alongside, on a thread of its own
+ * for each command, and sent to the deployment log with a <code>[stderr]</code> prefix.
+ *
+ * <p>The deployment log consumer may be called from a different thread than the one executing the command.
+ *
+ * @author Brandon Arp (brandon dot arp at inscopemetrics dot com)
+ */
+public final class SshCommandExecutor {
+    /**
+     * Public constructor.
+     *
+     * @param deploymentLog consumer of the deployment log lines
+     * @param config Artemis configuration
+     */
+    public SshCommandExecutor(final Consumer<String> deploymentLog, final Config config) {
+        _deploymentLog = deploymentLog;
+        _maxBatchSize = config.getBytes("ssh.output.maxBatchSize").intValue();
+        _maxBatchDelay = config.getDuration("ssh.output.maxBatchDelay").toMillis();
+    }
+
+    /**
+     * Executes a command, sending its output to the deployment log.
+     *
+     * @param sshClient the ssh client
+     * @param commandString the command to execute
+     * @param pty true to allocate a pty for the command
+     * @return the exit status of the command, or null if it is unknown
+     * @throws IOException on ssh errors
+     */
+    public Integer execute(final SSHClient sshClient, final String commandString, final boolean pty) throws IOException {
+        try (OutputBatch batch = new OutputBatch()) {
+            return execute(sshClient, commandString, pty, batch::add, batch);
+        }
+    }
+
+    /**
+     * Executes a command, sending each line of output to a consumer as well as to the deployment log.
+     *
+     * @param sshClient the ssh client
+     * @param commandString the command to execute
+     * @param pty true to allocate a pty for the command
+     * @param lineConsumer consumer of the output lines
+     * @return the exit status of the command, or null if it is unknown
+     * @throws IOException on ssh errors
+     */
+    public Integer execute(
+            final SSHClient sshClient,
+            final String commandString,
+            final boolean pty,
+            final Consumer<String> lineConsumer)
+            throws IOException {
+        try (OutputBatch batch = new OutputBatch()) {
+            return execute(sshClient, commandString, pty, lineConsumer.andThen(batch::add), batch);
+        }
+    }
+
+    /**
+     * Executes a command, sending each line of output only to a consumer.  The standard error still goes to the
+     * deployment log.  Used for queries whose output is summarized rather than logged line by line.
+     *
+     * @param sshClient the ssh client
+     * @param commandString the command to execute
+     * @param lineConsumer consumer of the output lines
+     * @return the exit status of the command, or null if it is unknown
+     * @throws IOException on ssh errors
+     */
+    public Integer query(
+            final SSHClient sshClient,
+            final String commandString,
+            final Consumer<String> lineConsumer)
+            throws IOException {
+        try (OutputBatch batch = new OutputBatch()) {
+            return execute(sshClient, commandString, false, lineConsumer, batch);
+        }
+    }
+
+    /**
+     * Executes a command that must succeed.
+     *
+     * @param sshClient the ssh client
+     * @param commandString the command to execute
+     * @param description description of the command for the failure message
+     * @param pty true to allocate a pty for the command
+     * @throws IOException on ssh errors
+     * @throws IllegalStateException if the command does not exit with a status of 0
+     */
+    public void executeRequired(
+            final SSHClient sshClient,
+            final String commandString,
+            final String description,
+            final boolean pty)
+            throws IOException {
+        final Integer exitStatus = execute(sshClient, commandString, pty);
+        if (exitStatus == null || exitStatus != 0) {
+            throw new IllegalStateException(description + " exit code was " + exitStatus);
+        }
+    }
+
+    private Integer execute(
+            final SSHClient sshClient,
+            final String commandString,
+            final boolean pty,
+            final Consumer<String> stdout,
+            final OutputBatch stderr)
+            throws IOException {
+        _deploymentLog.accept("Executing '" + commandString + "'");
+        final Integer exitStatus;
+        try (Session session = sshClient.startSession()) {
+            if (pty) {
+                session.allocateDefaultPTY();
+            }
+            try (Session.Command command = session.exec(commandString)) {
+                final Future<?> errorPump = STDERR_PUMPS.submit(() -> {
+                    pump(command.getErrorStream(), line -> stderr.add(STDERR_PREFIX + line));
+                    return null;
+                });
+                pump(command.getInputStream(), stdout);
+                awaitErrorPump(errorPump);
+                command.join(30, TimeUnit.SECONDS);
+                session.join(30, TimeUnit.SECONDS);
+                exitStatus = command.getExitStatus();
+            }
+        }
+        return exitStatus;
+    }
+
+    private static void pump(final InputStream stream, final Consumer<String> lineConsumer) throws IOException {
+        final Reader reader = new InputStreamReader(stream, Charsets.UTF_8);
+        final char[] buffer = new char[READ_BUFFER_SIZE];
+        final StringBuilder line = new StringBuilder();
+        int read = reader.read(buffer);
+        while (read != -1) {
+            int start = 0;
+            for (int i = 0; i < read; i++) {
+                if (buffer[i] == '\n') {
+                    line.append(buffer, start, i - start);
+                    emit(line, lineConsumer);
+                    start = i + 1;
+                }
+            }
+            line.append(buffer, start, read - start);
+            read = reader.read(buffer);
+        }
+        if (line.length() > 0) {
+            emit(line, lineConsumer);
+        }
+    }
+
+    private static void emit(final StringBuilder line, final Consumer<String> lineConsumer) {
+        final int length = line.length();
+        if (length > 0 && line.charAt(length - 1) == '\r') {
+            line.setLength(length - 1);
+        }
+        lineConsumer.accept(line.toString());
+        line.setLength(0);
+    }
+
+    private static void awaitErrorPump(final Future<?> errorPump) throws IOException {
+        try {
+            errorPump.get(30, TimeUnit.SECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            errorPump.cancel(true);
+        } catch (final TimeoutException e) {
+            LOGGER.warn("Timed out reading the standard error of a command");
+            errorPump.cancel(true);
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private static ExecutorService createStderrPumps() {
+        // Every running command gets a pump at once, a queued pump would leave a command with a lot of standard
+        // error blocked on a full window while its standard output is read; idle threads are reused
+        return new ThreadPoolExecutor(
+                0,
+                Integer.MAX_VALUE,
+                60,
+                TimeUnit.SECONDS,
+                new SynchronousQueue<>(),
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("ssh-stderr-%d").build());
+    }
+
+    private final Consumer<String> _deploymentLog;
+    private final int _maxBatchSize;
+    private final long _maxBatchDelay;
+
+    private static final String STDERR_PREFIX = "[stderr] ";
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    private static final ExecutorService STDERR_PUMPS = createStderrPumps();
+    private static final ScheduledExecutorService FLUSHER = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("ssh-output-flusher-%d").build());
+    private static final com.arpnetworking.steno.Logger LOGGER = LoggerFactory.getLogger(SshCommandExecutor.class);
+
+    /**
+     * Lines of output waiting to be sent to the deployment log.  A batch is sent once it reaches the maximum
+     * size, once its first line is older than the maximum delay, and when the command finishes.
+     */
+    private final class OutputBatch implements AutoCloseable {
+        OutputBatch() {
+            _flushTask = FLUSHER.scheduleWithFixedDelay(
+                    this::flushIfDue,
+                    _maxBatchDelay,
+                    _maxBatchDelay,
+                    TimeUnit.MILLISECONDS);
+        }
+
+        synchronized void add(final String line) {
+            if (_lines.length() == 0) {
+                _firstLineNanos = System.nanoTime();
+            } else {
+                _lines.append('\n');
+            }
+            _lines.append(line);
+            _lineCount++;
+            if (_lines.length() >= _maxBatchSize) {
+                flush();
+            }
+        }
+
+        @Override
+        public void close() {
+            _flushTask.cancel(false);
+            synchronized (this) {
+                flush();
+            }
+        }
+
+        private synchronized void flushIfDue() {
+            if (_lines.length() > 0
+                    && System.nanoTime() - _firstLineNanos >= TimeUnit.MILLISECONDS.toNanos(_maxBatchDelay)) {
+                flush();
+            }
+        }
+
+        private void flush() {
+            if (_lines.length() == 0) {
+                return;
+            }
+            final String output = _lines.toString();
+            LOGGER.debug()
+                    .setMessage("Command output")
+                    .addData("lines", _lineCount)
+                    .addData("output", output)
+                    .log();
+            _deploymentLog.accept(output);
+            _lines.setLength(0);
+            _lineCount = 0;
+        }
+
+        private long _firstLineNanos;
+        private int _lineCount;
+
+        private final StringBuilder _lines = new StringBuilder();
+        private final ScheduledFuture<?> _flushTask;
+    }
+}
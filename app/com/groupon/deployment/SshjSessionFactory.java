@@ -15,22 +15,46 @@
  */
 package com.groupon.deployment;
 
+import com.arpnetworking.steno.Logger;
+import com.arpnetworking.steno.LoggerFactory;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Queues;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Inject;
 import com.typesafe.config.Config;
+import net.schmizz.keepalive.KeepAliveProvider;
 import net.schmizz.sshj.DefaultConfig;
 import net.schmizz.sshj.SSHClient;
 import net.schmizz.sshj.common.Factory;
 import net.schmizz.sshj.transport.verification.PromiscuousVerifier;
 import net.schmizz.sshj.userauth.keyprovider.FileKeyProvider;
+import net.schmizz.sshj.userauth.keyprovider.KeyPairWrapper;
 import net.schmizz.sshj.userauth.keyprovider.KeyProvider;
 import net.schmizz.sshj.userauth.keyprovider.PKCS5KeyFile;
+import play.inject.ApplicationLifecycle;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
- * A factory for creating ssh sessions.
+ * A factory for creating ssh sessions.  Connections are pooled per host: closing a client returns it to the
+ * pool, and the next session to the host reuses it if it is still connected.  Idle connections are closed
+ * after the <code>ssh.pool.idleTimeout</code> and kept alive until then.  The private key is parsed once.
  *
  * @author Brandon Arp (barp at groupon dot com)
  */
@@ -39,32 +63,216 @@ public class SshjSessionFactory implements SshSessionFactory {
      * Public constructor.
      *
      * @param config Artemis configuration
+     * @param lifecycle application lifecycle, pooled connections are closed when the application stops
      */
     @Inject
-    public SshjSessionFactory(final Config config) {
+    public SshjSessionFactory(final Config config, final ApplicationLifecycle lifecycle) {
         _userName = config.getString("ssh.user");
-        _keyPath = config.getString("ssh.keyFile");
+        final String keyPath = config.getString("ssh.keyFile");
+        _keys = Suppliers.memoize(() -> loadKeys(keyPath));
+        _maxPerHost = config.getInt("ssh.pool.maxPerHost");
+        _idleTimeout = config.getDuration("ssh.pool.idleTimeout");
+        _borrowTimeout = config.getDuration("ssh.pool.borrowTimeout");
+        _keepAliveSeconds = (int) config.getDuration("ssh.pool.keepAliveInterval").getSeconds();
+
+        _sshConfig = new DefaultConfig();
+        final List<Factory.Named<FileKeyProvider>> keyProviders = Lists.newArrayList();
+        keyProviders.add(new PKCS5KeyFile.Factory());
+        _sshConfig.setFileKeyProviderFactories(keyProviders);
+        _sshConfig.setKeepAliveProvider(KeepAliveProvider.KEEP_ALIVE);
+
+        final long evictionMillis = config.getDuration("ssh.pool.evictionInterval").toMillis();
+        _evictor.scheduleWithFixedDelay(this::evictIdle, evictionMillis, evictionMillis, TimeUnit.MILLISECONDS);
+        lifecycle.addStopHook(() -> {
+            _evictor.shutdownNow();
+            _pools.values().forEach(HostPool::closeIdle);
+            return CompletableFuture.completedFuture(null);
+        });
     }
 
     @Override
     public SSHClient create(final String host) {
+        return _pools.computeIfAbsent(host, HostPool::new).borrow();
+    }
+
+    private void evictIdle() {
+        // CHECKSTYLE.OFF: IllegalCatch - An exception would cancel the eviction schedule
+        try {
+            final long idleBefore = System.nanoTime() - _idleTimeout.toNanos();
+            _pools.values().forEach(pool -> pool.evictIdle(idleBefore));
+        } catch (final RuntimeException e) {
+            LOGGER.warn()
+                    .setMessage("Failed to evict idle ssh connections")
+                    .setThrowable(e)
+                    .log();
+        }
+        // CHECKSTYLE.ON: IllegalCatch
+    }
+
+    private static KeyProvider loadKeys(final String keyPath) {
+        final PKCS5KeyFile keyFile = new PKCS5KeyFile();
+        keyFile.init(new File(keyPath));
         try {
-            final DefaultConfig config = new DefaultConfig();
-            final List<Factory.Named<FileKeyProvider>> keyProviders = Lists.newArrayList();
-            keyProviders.add(new PKCS5KeyFile.Factory());
-            config.setFileKeyProviderFactories(keyProviders);
-
-            final SSHClient client = new SSHClient(config);
-            final KeyProvider keys = client.loadKeys(_keyPath);
-            client.addHostKeyVerifier(new PromiscuousVerifier());
-            client.connect(host);
-            client.authPublickey(_userName, keys);
-            return client;
+            return new KeyPairWrapper(keyFile.getPublic(), keyFile.getPrivate());
         } catch (final IOException e) {
-            throw new RuntimeException(e);
+            throw new UncheckedIOException(e);
         }
     }
 
     private final String _userName;
-    private final String _keyPath;
+    private final Supplier<KeyProvider> _keys;
+    private final int _maxPerHost;
+    private final Duration _idleTimeout;
+    private final Duration _borrowTimeout;
+    private final int _keepAliveSeconds;
+    private final DefaultConfig _sshConfig;
+    private final Map<String, HostPool> _pools = Maps.newConcurrentMap();
+    private final ScheduledExecutorService _evictor = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("ssh-pool-evictor-%d").build());
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SshjSessionFactory.class);
+
+    /**
+     * The connections to one host.  The semaphore caps the connections that are borrowed, idle connections
+     * are reused most recently returned first so the least used ones age out.
+     */
+    private final class HostPool {
+        HostPool(final String host) {
+            _host = host;
+            _permits = new Semaphore(_maxPerHost, true);
+        }
+
+        SSHClient borrow() {
+            try {
+                if (!_permits.tryAcquire(_borrowTimeout.toMillis(), TimeUnit.MILLISECONDS)) {
+                    throw new IllegalStateException(String.format(
+                            "Timed out waiting for an ssh connection; host=%s, maxPerHost=%d",
+                            _host,
+                            _maxPerHost));
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted waiting for an ssh connection; host=" + _host, e);
+            }
+
+            // CHECKSTYLE.OFF: IllegalCatch - The permit must be returned whatever the failure
+            try {
+                PooledSshClient client;
+                while ((client = _idle.pollFirst()) != null) {
+                    if (client.isHealthy()) {
+                        client.borrowed();
+                        return client;
+                    }
+                    client.destroy();
+                }
+                client = connect();
+                client.borrowed();
+                return client;
+            } catch (final RuntimeException e) {
+                _permits.release();
+                throw e;
+            }
+            // CHECKSTYLE.ON: IllegalCatch
+        }
+
+        void release(final PooledSshClient client) {
+            if (client.isHealthy()) {
+                client.touch();
+                _idle.offerFirst(client);
+            } else {
+                client.destroy();
+            }
+            _permits.release();
+        }
+
+        void evictIdle(final long idleBefore) {
+            final Iterator<PooledSshClient> iterator = _idle.descendingIterator();
+            while (iterator.hasNext()) {
+                final PooledSshClient client = iterator.next();
+                if (client.getLastUsed() < idleBefore || !client.isHealthy()) {
+                    if (_idle.removeFirstOccurrence(client)) {
+                        client.destroy();
+                    }
+                }
+            }
+        }
+
+        void closeIdle() {
+            PooledSshClient client;
+            while ((client = _idle.pollFirst()) != null) {
+                client.destroy();
+            }
+        }
+
+        private PooledSshClient connect() {
+            final PooledSshClient client = new PooledSshClient(this);
+            try {
+                client.addHostKeyVerifier(new PromiscuousVerifier());
+                client.getConnection().getKeepAlive().setKeepAliveInterval(_keepAliveSeconds);
+                client.connect(_host);
+                client.authPublickey(_userName, _keys.get());
+                LOGGER.debug()
+                        .setMessage("Opened ssh connection")
+                        .addData("host", _host)
+                        .log();
+                return client;
+            } catch (final IOException e) {
+                client.destroy();
+                throw new RuntimeException(e);
+            }
+        }
+
+        private final String _host;
+        private final Semaphore _permits;
+        private final Deque<PooledSshClient> _idle = Queues.newConcurrentLinkedDeque();
+    }
+
+    /**
+     * A client that goes back to its pool when it is closed.
+     */
+    private final class PooledSshClient extends SSHClient {
+        PooledSshClient(final HostPool pool) {
+            super(_sshConfig);
+            _pool = pool;
+        }
+
+        @Override
+        public void close() {
+            if (_borrowed.compareAndSet(true, false)) {
+                _pool.release(this);
+            }
+        }
+
+        void borrowed() {
+            _borrowed.set(true);
+        }
+
+        void touch() {
+            _lastUsed = System.nanoTime();
+        }
+
+        long getLastUsed() {
+            return _lastUsed;
+        }
+
+        boolean isHealthy() {
+            return isConnected() && isAuthenticated() && getTransport().isRunning();
+        }
+
+        void destroy() {
+            try {
+                disconnect();
+            } catch (final IOException e) {
+                LOGGER.debug()
+                        .setMessage("Failed to close ssh connection")
+                        .setThrowable(e)
+                        .log();
+            }
+        }
+
+        private volatile long _lastUsed = System.nanoTime();
+
+        private final HostPool _pool;
+        private final AtomicBoolean _borrowed = new AtomicBoolean(false);
+    }
 }
@@ -0,0 +1,153 @@
+/**
+ * Copyright 2021 Brandon Arp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.groupon.deployment.fleet;
+
+import java.util.Arrays;
+
+/**
+ * Additive increase, multiplicative decrease concurrency limit.  The limit grows by one host after every
+ * <code>limit</code> healthy completions and is multiplied by the backoff ratio when a completion shows that the
+ * fleet is degrading: the failure rate over the recent samples is above the threshold, or the latency of the
+ * host deployment is more than the tolerance times the best median latency seen so far.  After a decrease the
+ * limit is not decreased again until the host deployments started under the old limit have drained.
+ *
+ * This class is not thread safe; it is meant to be owned by a single fleet deployment actor.
+ *
+ * @author Brandon Arp (brandon dot arp at inscopemetrics dot com)
+ */
+public final class AimdConcurrencyLimit implements ConcurrencyLimit {
+    /**
+     * Public constructor.
+     *
+     * @param initial the initial limit
+     * @param min the smallest limit
+     * @param max the largest limit
+     * @param backoffRatio the ratio the limit is multiplied by on degradation, between 0 and 1
+     * @param maxFailureRate the highest healthy failure rate over the recent samples, between 0 and 1
+     * @param latencyTolerance how many times the best median latency a host deployment may take and still be healthy
+     * @param sampleSize the number of recent host deployments to keep samples for
+     */
+    public AimdConcurrencyLimit(
+            final int initial,
+            final int min,
+            final int max,
+            final double backoffRatio,
+            final double maxFailureRate,
+            final double latencyTolerance,
+            final int sampleSize) {
+        _min = Math.max(1, min);
+        _max = Math.max(_min, max);
+        _limit = Math.min(_max, Math.max(_min, initial));
+        _backoffRatio = backoffRatio;
+        _maxFailureRate = maxFailureRate;
+        _latencyTolerance = latencyTolerance;
+        _latencies = new long[Math.max(1, sampleSize)];
+        _failures = new boolean[_latencies.length];
+    }
+
+    @Override
+    public int getLimit() {
+        return _limit;
+    }
+
+    @Override
+    public void onComplete(final long latencyMillis, final boolean failed) {
+        _latencies[_next] = latencyMillis;
+        _failures[_next] = failed;
+        _next = (_next + 1) % _latencies.length;
+        _samples = Math.min(_samples + 1, _latencies.length);
+        _completions++;
+
+        final boolean degraded = failed
+                ? getFailureRate() > _maxFailureRate
+                : _bestMedian > 0 && latencyMillis > _bestMedian * _latencyTolerance;
+
+        if (degraded) {
+            if (_completions >= _cooldown) {
+                _limit = Math.max(_min, (int) Math.floor(_limit * _backoffRatio));
+                _completions = 0;
+                _increaseProgress = 0;
+                // Hosts started under the old limit are still finishing, don't penalize them twice
+                _cooldown = _limit;
+            }
+        } else {
+            _increaseProgress++;
+            if (_increaseProgress >= _limit) {
+                _limit = Math.min(_max, _limit + 1);
+                _increaseProgress = 0;
+            }
+        }
+
+        if (!failed && _samples >= MIN_SAMPLES_FOR_BASELINE) {
+            final long median = getLatencyPercentile(50);
+            if (_bestMedian == 0 || median < _bestMedian) {
+                _bestMedian = median;
+            }
+        }
+    }
+
+    /**
+     * Gets the failure rate over the recent samples.
+     *
+     * @return the failure rate, between 0 and 1
+     */
+    public double getFailureRate() {
+        if (_samples == 0) {
+            return 0;
+        }
+        int failures = 0;
+        for (int i = 0; i < _samples; i++) {
+            if (_failures[i]) {
+                failures++;
+            }
+        }
+        return (double) failures / _samples;
+    }
+
+    /**
+     * Gets a latency percentile over the recent samples.
+     *
+     * @param percentile the percentile, between 0 and 100
+     * @return the latency in milliseconds, 0 if there are no samples
+     */
+    public long getLatencyPercentile(final double percentile) {
+        if (_samples == 0) {
+            return 0;
+        }
+        final long[] sorted = Arrays.copyOf(_latencies, _samples);
+        Arrays.sort(sorted);
+        final int index = (int) Math.ceil(percentile / 100d * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    private int _limit;
+    private int _next = 0;
+    private int _samples = 0;
+    private int _completions = 0;
+    private int _cooldown = 0;
+    private int _increaseProgress = 0;
+    private long _bestMedian = 0;
+
+    private final int _min;
+    private final int _max;
+    private final double _backoffRatio;
+    private final double _maxFailureRate;
+    private final double _latencyTolerance;
+    private final long[] _latencies;
+    private final boolean[] _failures;
+
+    private static final int MIN_SAMPLES_FOR_BASELINE = 3;
+}
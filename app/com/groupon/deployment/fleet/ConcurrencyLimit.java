@@ -0,0 +1,62 @@
+/**
+ * Copyright 2021 Brandon Arp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.groupon.deployment.fleet;
+
+/**
+ * Limits the number of host deployments in flight during a fleet deployment.
+ *
+ * @author Brandon Arp (brandon dot arp at inscopemetrics dot com)
+ */
+public interface ConcurrencyLimit {
+    /**
+     * Gets the current number of host deployments allowed in flight.
+     *
+     * @return the limit
+     */
+    int getLimit();
+
+    /**
+     * Records the completion of a host deployment.
+     *
+     * @param latencyMillis the time the host deployment took, in milliseconds
+     * @param failed true if the host deployment failed
+     */
+    void onComplete(long latencyMillis, boolean failed);
+
+    /**
+     * A limit that never changes.
+     */
+    final class Fixed implements ConcurrencyLimit {
+        /**
+         * Public constructor.
+         *
+         * @param limit the limit
+         */
+        public Fixed(final int limit) {
+            _limit = limit;
+        }
+
+        @Override
+        public int getLimit() {
+            return _limit;
+        }
+
+        @Override
+        public void onComplete(final long latencyMillis, final boolean failed) { }
+
+        private final int _limit;
+    }
+}
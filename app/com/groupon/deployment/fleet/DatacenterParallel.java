@@ -0,0 +1,169 @@
+/**
+ * Copyright 2021 Brandon Arp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.groupon.deployment.fleet;
+
+import akka.actor.ActorRef;
+import client.DeploymentClientFactory;
+import com.arpnetworking.steno.LoggerFactory;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Queues;
+import com.google.common.collect.Sets;
+import com.google.inject.assistedinject.Assisted;
+import com.google.inject.assistedinject.AssistedInject;
+import com.groupon.deployment.DeploymentLogWriter;
+import com.groupon.deployment.SshSessionFactory;
+import com.groupon.deployment.host.HostDeploymentFactory;
+import com.typesafe.config.Config;
+import models.Deployment;
+import models.DeploymentState;
+import models.HostDeployment;
+import utils.HostUtil;
+
+import java.util.Deque;
+import java.util.Map;
+import java.util.Set;
+import javax.inject.Named;
+
+/**
+ * Groups the hosts of a deployment by datacenter and deploys the datacenters in parallel, each with its own
+ * window of concurrent host deployments.  The number of datacenters that are deploying at the same time can
+ * be capped.  The datacenter of a host is the last label of its name, the same key the {@link
+ * com.groupon.deployment.host.Roller} uses to pick the Artemis base url.
+ *
+ * @author Brandon Arp (brandon dot arp at inscopemetrics dot com)
+ */
+public class DatacenterParallel extends FleetDeploymentBase {
+    /**
+     * Public constructor.
+     *
+     * @param hostDeploymentFactory a factory to create a host deployment
+     * @param dcf deployment client factory
+     * @param sshFactory ssh session factory
+     * @param heartbeater the deployment heartbeater
+     * @param logWriter the deployment log writer
+     * @param config Artemis configuration
+     * @param deployment deployment to run
+     */
+    @AssistedInject
+    public DatacenterParallel(
+            final HostDeploymentFactory hostDeploymentFactory,
+            final DeploymentClientFactory dcf,
+            final SshSessionFactory sshFactory,
+            @Named("DeploymentHeartbeater") final ActorRef heartbeater,
+            final DeploymentLogWriter logWriter,
+            final Config config,
+            @Assisted final Deployment deployment) {
+        super(hostDeploymentFactory, dcf, sshFactory, heartbeater, logWriter, config, deployment);
+        HostDeployment selfHost = null;
+        for (final HostDeployment hostDeployment : getPendingHosts()) {
+            if (isSelf(hostDeployment)) {
+                selfHost = hostDeployment;
+            } else {
+                _queues.computeIfAbsent(datacenterOf(hostDeployment), dc -> Queues.newArrayDeque()).add(hostDeployment);
+            }
+        }
+        _self = selfHost;
+
+        final FleetDeploymentSettings settings = FleetDeploymentSettings.forDeployment(getDeployment(), config);
+        // Size the windows from all the hosts of each datacenter, not only the pending ones
+        final Map<String, Integer> hostCounts = Maps.newHashMap();
+        getDeployment().getHostStates().forEach(
+                hostDeployment -> hostCounts.merge(datacenterOf(hostDeployment), 1, Integer::sum));
+        _queues.keySet().forEach(dc -> _windows.put(dc, settings.getDatacenterParallelism(dc, hostCounts.get(dc))));
+        _maxDatacenters = settings.getMaxConcurrentDatacenters();
+        LOGGER.info()
+                .setMessage("Datacenter parallel fleet deployment actor started up")
+                .addData("deployment", getDeployment().getId())
+                .addData("windows", _windows)
+                .addData("maxDatacenters", _maxDatacenters)
+                .log();
+        self().tell("start", self());
+    }
+
+    @Override
+    protected Receive createDeploymentReceive() {
+        return receiveBuilder()
+                .matchEquals("start", start -> {
+                    log(String.format("Deployment starting; windows=%s, maxDatacenters=%d", _windows, _maxDatacenters), null);
+                    fillWindows();
+                })
+                .build()
+                .orElse(hostNotifications());
+    }
+
+    @Override
+    protected void hostFinished(final HostDeployment hostDeployment, final boolean failed) {
+        _inFlightCounts.merge(datacenterOf(hostDeployment), -1, Integer::sum);
+        if (failed) {
+            _failed = true;
+        }
+        fillWindows();
+    }
+
+    private void fillWindows() {
+        if (_failed) {
+            if (getInFlightCount() == 0) {
+                finishDeployment(DeploymentState.FAILED, "Deployment failed");
+            }
+            return;
+        }
+
+        // Retire the datacenters that have finished
+        _activeDatacenters.removeIf(dc -> _queues.get(dc).isEmpty() && _inFlightCounts.getOrDefault(dc, 0) == 0);
+
+        // Activate waiting datacenters up to the cap
+        for (final Map.Entry<String, Deque<HostDeployment>> entry : _queues.entrySet()) {
+            if (_maxDatacenters > 0 && _activeDatacenters.size() >= _maxDatacenters) {
+                break;
+            }
+            if (!entry.getValue().isEmpty() && _activeDatacenters.add(entry.getKey())) {
+                log(String.format("Starting datacenter; dc=%s, hosts=%d", entry.getKey(), entry.getValue().size()), null);
+            }
+        }
+
+        for (final String dc : _activeDatacenters) {
+            final Deque<HostDeployment> queue = _queues.get(dc);
+            final int window = _windows.get(dc);
+            while (_inFlightCounts.getOrDefault(dc, 0) < window && !queue.isEmpty()) {
+                _inFlightCounts.merge(dc, 1, Integer::sum);
+                startInFlight(queue.poll());
+            }
+        }
+
+        if (getInFlightCount() == 0 && _activeDatacenters.isEmpty()) {
+            if (_self != null) {
+                // We can only hand off the deployment once all the other hosts are finished
+                handOff();
+            } else {
+                finishDeployment(DeploymentState.SUCCEEDED, "Deployment completed successfully");
+            }
+        }
+    }
+
+    private static String datacenterOf(final HostDeployment hostDeployment) {
+        return HostUtil.getDatacenter(hostDeployment.getHost().getName());
+    }
+
+    private boolean _failed = false;
+
+    private final HostDeployment _self;
+    private final int _maxDatacenters;
+    private final Map<String, Deque<HostDeployment>> _queues = Maps.newTreeMap();
+    private final Map<String, Integer> _windows = Maps.newTreeMap();
+    private final Map<String, Integer> _inFlightCounts = Maps.newHashMap();
+    private final Set<String> _activeDatacenters = Sets.newLinkedHashSet();
+    private static final com.arpnetworking.steno.Logger LOGGER = LoggerFactory.getLogger(DatacenterParallel.class);
+}
@@ -0,0 +1,230 @@
+/**
+ * Copyright 2021 Brandon Arp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.groupon.deployment.fleet;
+
+import akka.actor.ActorRef;
+import akka.actor.Cancellable;
+import akka.actor.PoisonPill;
+import client.DeploymentClientFactory;
+import com.arpnetworking.steno.LoggerFactory;
+import com.google.inject.assistedinject.Assisted;
+import com.google.inject.assistedinject.AssistedInject;
+import com.groupon.deployment.DeploymentLogWriter;
+import com.groupon.deployment.SshSessionFactory;
+import com.groupon.deployment.host.HostDeploymentFactory;
+import com.typesafe.config.Config;
+import models.Deployment;
+import models.DeploymentState;
+import models.HostDeployment;
+
+import java.time.Duration;
+import java.util.List;
+import javax.inject.Named;
+
+/**
+ * One Artemis server's share of a deployment that every server works on.  Each server claims a window of
+ * host deployments with a lease, renews the leases of the hosts it is deploying and claims more as they
+ * finish.  Hosts whose lease expires, because the server deploying them died, are claimed again by another
+ * server.  A server whose lease is lost stops deploying the host.  Only the server holding the lease records the
+ * result of a host, so a command that was still running when the lease expired cannot overwrite the result of
+ * the server that took over.  A server leaves its own host to the other servers, so there is no hand off, unless
+ * nothing else has been claimable for a lease duration, i.e. it is the only server or the others are down.  The
+ * first server to see every host finished records the result of the deployment.
+ *
+ * @author Brandon Arp (brandon dot arp at inscopemetrics dot com)
+ */
+public class Distributed extends FleetDeploymentBase {
+    /**
+     * Public constructor.
+     *
+     * @param hostDeploymentFactory a factory to create a host deployment
+     * @param dcf deployment client factory
+     * @param sshFactory ssh session factory
+     * @param heartbeater the deployment heartbeater
+     * @param logWriter the deployment log writer
+     * @param config Artemis configuration
+     * @param deployment deployment to run
+     */
+    @AssistedInject
+    public Distributed(
+            final HostDeploymentFactory hostDeploymentFactory,
+            final DeploymentClientFactory dcf,
+            final SshSessionFactory sshFactory,
+            @Named("DeploymentHeartbeater") final ActorRef heartbeater,
+            final DeploymentLogWriter logWriter,
+            final Config config,
+            @Assisted final Deployment deployment) {
+        super(hostDeploymentFactory, dcf, sshFactory, heartbeater, logWriter, config, deployment, false);
+        final FleetDeploymentSettings settings = FleetDeploymentSettings.forDeployment(getDeployment(), config);
+        _window = settings.getParallelism(getHostCount());
+        _maxFailures = settings.getMaxFailures();
+        _leaseDuration = settings.getLeaseDuration();
+        LOGGER.info()
+                .setMessage("Distributed fleet deployment actor started up")
+                .addData("deployment", getDeployment().getId())
+                .addData("window", _window)
+                .addData("leaseDuration", _leaseDuration)
+                .log();
+        _tick = context().system().scheduler().scheduleWithFixedDelay(
+                settings.getClaimInterval(),
+                settings.getClaimInterval(),
+                self(),
+                TICK,
+                context().dispatcher(),
+                self());
+        self().tell("start", self());
+    }
+
+    @Override
+    public void postStop() throws Exception {
+        _tick.cancel();
+        super.postStop();
+    }
+
+    @Override
+    protected Receive createDeploymentReceive() {
+        return receiveBuilder()
+                .matchEquals("start", start -> {
+                    log(String.format("Server joined the deployment; server=%s, window=%d", getNodeName(), _window), null);
+                    claimHosts();
+                })
+                .matchEquals(TICK, tick -> {
+                    renewLeases();
+                    claimHosts();
+                })
+                .build()
+                .orElse(hostNotifications());
+    }
+
+    @Override
+    protected void markRunning(final HostDeployment hostDeployment) {
+        if (hostDeployment.startOwned(getNodeName())) {
+            log("Deployment started for host; host=" + hostDeployment.getHost().getName(), hostDeployment.getHost());
+        } else {
+            log(String.format("Lost the lease on the host; server=%s", getNodeName()), hostDeployment.getHost());
+            stopInFlight(hostDeployment);
+            claimHosts();
+        }
+    }
+
+    @Override
+    protected void markFinished(final HostDeployment hostDeployment, final DeploymentState state) {
+        // The lease may have expired while the command ran, the server that took over records the result then
+        if (!hostDeployment.finishOwned(getNodeName(), state)) {
+            log(
+                    String.format(
+                            "Lost the lease on the host, dropping its result; server=%s, result=%s",
+                            getNodeName(),
+                            state),
+                    hostDeployment.getHost());
+        }
+    }
+
+    @Override
+    protected void hostFinished(final HostDeployment hostDeployment, final boolean failed) {
+        claimHosts();
+    }
+
+    private void renewLeases() {
+        getDeployment().heartbeatShared();
+        for (final HostDeployment hostDeployment : getInFlightHosts()) {
+            if (!hostDeployment.renewLease(getNodeName(), _leaseDuration)) {
+                // Another server took over the host, stop deploying it and leave the result to that server
+                log(String.format("Lost the lease on the host; server=%s", getNodeName()), hostDeployment.getHost());
+                stopInFlight(hostDeployment);
+            }
+        }
+    }
+
+    private void claimHosts() {
+        if (_finished) {
+            return;
+        }
+        final Deployment deployment = getDeployment();
+        final int failures = HostDeployment.countByState(deployment, DeploymentState.FAILED);
+        if (failures > _maxFailures) {
+            // Stop claiming hosts, the deployment fails once no server has a host in flight
+            if (getInFlightCount() == 0 && HostDeployment.countLeased(deployment) == 0) {
+                finish(DeploymentState.FAILED, String.format("Deployment failed; failures=%d", failures));
+            }
+            return;
+        }
+
+        final int available = _window - getInFlightCount();
+        if (available > 0) {
+            List<HostDeployment> candidates = HostDeployment.getClaimable(deployment, getNodeName(), available);
+            if (!candidates.isEmpty()) {
+                _nothingClaimableSince = null;
+            } else if (isSelfClaimDue()) {
+                candidates = HostDeployment.getClaimable(deployment, null, available);
+            }
+            for (final HostDeployment candidate : candidates) {
+                if (candidate.claim(getNodeName(), _leaseDuration)) {
+                    if (isSelf(candidate)) {
+                        log(
+                                String.format(
+                                        "No other server claimed this server's host, deploying it here; server=%s",
+                                        getNodeName()),
+                                candidate.getHost());
+                    }
+                    startInFlight(candidate);
+                }
+            }
+        }
+
+        if (getInFlightCount() == 0 && HostDeployment.countUnfinished(deployment) == 0) {
+            if (failures == 0) {
+                finish(DeploymentState.SUCCEEDED, "Deployment completed successfully");
+            } else {
+                finish(DeploymentState.FAILED, String.format("Deployment completed with failed hosts; failures=%d", failures));
+            }
+        }
+        // Otherwise the remaining hosts are leased by other servers, check again on the next tick
+    }
+
+    /**
+     * Checks if this server may deploy its own host.  The other servers deploy it, so this server only claims it
+     * once nothing else has been claimable for a lease duration: either it is the only server or the others are
+     * down.
+     *
+     * @return true if this server may claim its own host
+     */
+    private boolean isSelfClaimDue() {
+        final long now = System.nanoTime();
+        if (_nothingClaimableSince == null) {
+            _nothingClaimableSince = now;
+        }
+        return now - _nothingClaimableSince >= _leaseDuration.toNanos();
+    }
+
+    private void finish(final DeploymentState state, final String message) {
+        _finished = true;
+        if (getDeployment().finishShared(state)) {
+            log(message, null);
+        }
+        self().tell(PoisonPill.getInstance(), self());
+    }
+
+    private boolean _finished = false;
+    private Long _nothingClaimableSince = null;
+
+    private final int _window;
+    private final int _maxFailures;
+    private final Duration _leaseDuration;
+    private final Cancellable _tick;
+    private static final String TICK = "tick";
+    private static final com.arpnetworking.steno.Logger LOGGER = LoggerFactory.getLogger(Distributed.class);
+}
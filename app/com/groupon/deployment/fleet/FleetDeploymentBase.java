@@ -0,0 +1,623 @@
+/**
+ * Copyright 2021 Brandon Arp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.groupon.deployment.fleet;
+
+import actors.DeploymentHeartbeater;
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.PoisonPill;
+import akka.actor.Props;
+import client.DeploymentClientFactory;
+import com.arpnetworking.steno.LoggerFactory;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Queues;
+import com.groupon.akka.Dispatchers;
+import com.groupon.deployment.DeploymentLogWriter;
+import com.groupon.deployment.HostDeploymentCommands;
+import com.groupon.deployment.HostDeploymentNotifications;
+import com.groupon.deployment.SshSessionFactory;
+import com.groupon.deployment.host.Docker;
+import com.groupon.deployment.host.HostDeploymentFactory;
+import com.groupon.deployment.host.Prefetch;
+import com.groupon.deployment.host.Roller;
+import com.groupon.deployment.host.Rpm;
+import com.typesafe.config.Config;
+import models.Deployment;
+import models.DeploymentState;
+import models.EnvironmentType;
+import models.Host;
+import models.HostDeployment;
+import models.ManifestHistory;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.joda.time.DateTime;
+import utils.HostUtil;
+
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Base class for fleet deployment strategies.  Handles the deployment ownership check, the selection
+ * of the hosts left to deploy, the bookkeeping of the {@link HostDeployment} records and the creation
+ * of the host deployment actors.
+ *
+ * Unless it is disabled in the fleet deployment settings, the artifacts are first downloaded to all the
+ * pending hosts by {@link Prefetch} actors.  The strategy's behavior from {@link #createDeploymentReceive()}
+ * only takes over once the prefetch phase is done, so the rollout only paces the cutover.  A failed
+ * prefetch is logged and the host downloads its artifacts during the cutover instead.
+ *
+ * @author Brandon Arp (brandon dot arp at inscopemetrics dot com)
+ */
+public abstract class FleetDeploymentBase extends AbstractActor {
+    /**
+     * Protected constructor.
+     *
+     * @param hostDeploymentFactory a factory to create a host deployment
+     * @param dcf deployment client factory
+     * @param sshFactory ssh session factory
+     * @param heartbeater the deployment heartbeater
+     * @param logWriter the deployment log writer
+     * @param config Artemis configuration
+     * @param deployment deployment to run
+     */
+    protected FleetDeploymentBase(
+            final HostDeploymentFactory hostDeploymentFactory,
+            final DeploymentClientFactory dcf,
+            final SshSessionFactory sshFactory,
+            final ActorRef heartbeater,
+            final DeploymentLogWriter logWriter,
+            final Config config,
+            final Deployment deployment) {
+        this(hostDeploymentFactory, dcf, sshFactory, heartbeater, logWriter, config, deployment, true);
+    }
+
+    /**
+     * Protected constructor.
+     *
+     * @param hostDeploymentFactory a factory to create a host deployment
+     * @param dcf deployment client factory
+     * @param sshFactory ssh session factory
+     * @param heartbeater the deployment heartbeater
+     * @param logWriter the deployment log writer
+     * @param config Artemis configuration
+     * @param deployment deployment to run
+     * @param exclusive true if this server must own the deployment to run it, false if the deployment is
+     * shared by all the servers, in which case there is no prefetch phase
+     */
+    protected FleetDeploymentBase(
+            final HostDeploymentFactory hostDeploymentFactory,
+            final DeploymentClientFactory dcf,
+            final SshSessionFactory sshFactory,
+            final ActorRef heartbeater,
+            final DeploymentLogWriter logWriter,
+            final Config config,
+            final Deployment deployment,
+            final boolean exclusive) {
+        _hostDeploymentFactory = hostDeploymentFactory;
+        _dcf = dcf;
+        _sshFactory = sshFactory;
+        _deployment = Deployment.getById(deployment.getId());  // Refresh the deployment
+
+        _heartbeater = heartbeater;
+        _logWriter = logWriter;
+        _exclusive = exclusive;
+        _myName = HostUtil.getLocalHostName();
+        // If this host no longer owns the deployment, die
+        if (exclusive && !_myName.equals(_deployment.getDeploymentOwner())) {
+            LOGGER.warn(String.format(
+                    "Current server does not own the deployment, aborting deploy on this server; owner=%s",
+                    _deployment.getDeploymentOwner()));
+            self().tell(PoisonPill.getInstance(), self());
+        } else if (exclusive) {
+            heartbeater.tell(new DeploymentHeartbeater.Register(_deployment.getId()), self());
+            logWriter.openExclusive(_deployment.getId());
+        }
+
+        final List<HostDeployment> hosts = Lists.newArrayList();
+        deployment.getHostStates().forEach(
+                host -> {
+                    final DeploymentState hostState = host.getState();
+                    if (host.getFinished() == null
+                            || hostState == null
+                            || (hostState != DeploymentState.FAILED && hostState != DeploymentState.SUCCEEDED)) {
+                        hosts.add(host);
+                    }
+                });
+
+        // Sort the hosts with the following rules:
+        // TODO(barp): 1) hosts that are "down" should be deployed first [Artemis-?]
+        // 2) if the current machine is in the list, it should be last
+        hosts.sort((a, b) -> {
+            if (a.getHost().getName().equals(_myName)) {
+                return 1;
+            }
+            if (b.getHost().getName().equals(_myName)) {
+                return -1;
+            }
+            return a.getHost().getName().compareTo(b.getHost().getName());
+        });
+        _pendingHosts = hosts;
+
+        final FleetDeploymentSettings settings = FleetDeploymentSettings.forDeployment(_deployment, config);
+        final EnvironmentType environmentType = _deployment.getManifestHistory()
+                .getStage()
+                .getEnvironment()
+                .getEnvironmentType();
+        if (exclusive && settings.isPrefetchEnabled() && environmentType != EnvironmentType.ROLLER && !hosts.isEmpty()) {
+            _prefetchQueue = Queues.newArrayDeque(hosts);
+            // Every prefetch holds an ssh dispatcher thread, more would only queue behind the host deployments
+            _prefetchParallelism = Math.min(
+                    settings.getPrefetchParallelism(getHostCount()),
+                    Dispatchers.getPoolSize(config, Dispatchers.SSH));
+            self().tell(PREFETCH, self());
+        } else {
+            _prefetchQueue = Queues.newArrayDeque();
+            _prefetchParallelism = 0;
+        }
+    }
+
+    @Override
+    public void postStop() throws Exception {
+        if (_exclusive) {
+            _heartbeater.tell(new DeploymentHeartbeater.Unregister(_deployment.getId()), self());
+            _logWriter.closeExclusive(_deployment.getId());
+        } else {
+            _logWriter.flush();
+        }
+        super.postStop();
+    }
+
+    @Override
+    public final Receive createReceive() {
+        if (_prefetchQueue.isEmpty()) {
+            return withOwnershipCheck(createDeploymentReceive());
+        }
+        return withOwnershipCheck(receiveBuilder()
+                .matchEquals(PREFETCH, prefetch -> {
+                    log(String.format(
+                            "Prefetch starting; hosts=%d, parallelism=%d",
+                            _prefetchQueue.size(),
+                            _prefetchParallelism),
+                            null);
+                    fillPrefetch();
+                })
+                .matchEquals(START, start -> _startDeferred = true)
+                .match(HostDeploymentNotifications.PrefetchCompleted.class, this::prefetchCompleted)
+                .match(HostNotStarted.class, notStarted -> {
+                    final HostDeployment hostDeployment = notStarted._hostDeployment;
+                    if (_inFlight.get(hostDeployment.getHost().getName()) == hostDeployment) {
+                        finishInFlight(hostDeployment);
+                        markFinished(hostDeployment, DeploymentState.FAILED);
+                        hostFinished(hostDeployment, true);
+                    }
+                })
+                .match(HostDeploymentNotifications.DeploymentLog.class, log -> log(log.getLog(), log.getHost()))
+                .build());
+    }
+
+    /**
+     * Creates the behavior of the strategy.  The strategy is sent a <code>"start"</code> message once the
+     * prefetch phase is done.
+     *
+     * @return the behavior of the strategy
+     */
+    protected abstract Receive createDeploymentReceive();
+
+    /**
+     * Gets the host deployments that have not yet finished, sorted in deployment order.  If this
+     * server is one of the targets it is always the last entry.
+     *
+     * @return the pending host deployments
+     */
+    protected List<HostDeployment> getPendingHosts() {
+        return _pendingHosts;
+    }
+
+    protected Deployment getDeployment() {
+        return _deployment;
+    }
+
+    /**
+     * Gets the number of hosts in the deployment, finished or not.  Percentage settings are resolved against this
+     * count so a resumed deployment sizes its windows like the original one.
+     *
+     * @return the number of hosts
+     */
+    protected int getHostCount() {
+        return _deployment.getHostStates().size();
+    }
+
+    /**
+     * Gets the canonical host name of the server running this actor.
+     *
+     * @return the server name
+     */
+    protected String getNodeName() {
+        return _myName;
+    }
+
+    /**
+     * Checks if a host deployment targets the server running this actor.
+     *
+     * @param hostDeployment the host deployment
+     * @return true if the host is this server
+     */
+    protected boolean isSelf(final HostDeployment hostDeployment) {
+        return _myName.equals(hostDeployment.getHost().getName());
+    }
+
+    /**
+     * Sets the deployment owner to null and notifies the other servers so that one of them picks up the
+     * deployment, then stops.
+     */
+    protected void handOff() {
+        LOGGER.info("Found myself as the deploy target. Turning over control.");
+        _logWriter.flush();
+        _deployment.refresh();
+        _deployment.setDeploymentOwner(null);
+        _deployment.save();
+        Deployment.notifyHandoff(_deployment.getId(), _myName);
+
+        self().tell(PoisonPill.getInstance(), self());
+    }
+
+    /**
+     * Records that a host deployment is running.
+     *
+     * @param hostDeployment the host deployment
+     */
+    protected void markRunning(final HostDeployment hostDeployment) {
+        log("Deployment started for host; host=" + hostDeployment.getHost().getName(), hostDeployment.getHost());
+        hostDeployment.setState(DeploymentState.RUNNING);
+        hostDeployment.setStarted(DateTime.now());
+        hostDeployment.save();
+    }
+
+    /**
+     * Records the final state of a host deployment.
+     *
+     * @param hostDeployment the host deployment
+     * @param state the final state
+     */
+    protected void markFinished(final HostDeployment hostDeployment, final DeploymentState state) {
+        hostDeployment.setState(state);
+        hostDeployment.setFinished(DateTime.now());
+        hostDeployment.save();
+    }
+
+    /**
+     * Records the final state of the deployment, logs it and stops the actor.
+     *
+     * @param state the final state
+     * @param message the message to log
+     */
+    protected void finishDeployment(final DeploymentState state, final String message) {
+        // The log is complete before the deployment shows as finished, readers stop following it then
+        log(message, null);
+        _logWriter.flush();
+        _deployment.setState(state);
+        _deployment.setFinished(DateTime.now());
+        _deployment.save();
+        self().tell(PoisonPill.getInstance(), self());
+    }
+
+    /**
+     * Creates the handlers for the notifications of the host deployment actors started with
+     * {@link #startInFlight(HostDeployment)}.  A started host is marked running, a finished host is taken out of
+     * flight, marked finished and its actor stopped before {@link #hostFinished(HostDeployment, boolean)} is called.
+     * A host whose actor could not be created fails the same way.  Notifications from hosts that are not in
+     * flight, or from a host deployment actor that was stopped with {@link #stopInFlight(HostDeployment)}, are
+     * ignored.
+     *
+     * @return the notification handlers
+     */
+    protected Receive hostNotifications() {
+        return receiveBuilder()
+                .match(HostDeploymentNotifications.DeploymentStarted.class, started -> {
+                    final HostDeployment hostDeployment = getInFlight(started.getHost(), "started");
+                    if (hostDeployment != null) {
+                        hostStarted(hostDeployment);
+                    }
+                })
+                .match(HostDeploymentNotifications.DeploymentSucceeded.class, succeeded -> {
+                    final HostDeployment hostDeployment = getInFlight(succeeded.getHost(), "succeeded");
+                    if (hostDeployment != null) {
+                        finishInFlight(hostDeployment);
+                        markFinished(hostDeployment, DeploymentState.SUCCEEDED);
+                        context().stop(sender());
+                        hostFinished(hostDeployment, false);
+                    }
+                })
+                .match(HostDeploymentNotifications.DeploymentFailed.class, failed -> {
+                    final HostDeployment hostDeployment = getInFlight(failed.getHost(), "failed");
+                    if (hostDeployment != null) {
+                        finishInFlight(hostDeployment);
+                        markFinished(hostDeployment, DeploymentState.FAILED);
+                        context().stop(sender());
+                        log("Host deployment has failed; cause=" + failed.getFailure(), failed.getFailure(), failed.getHost());
+                        hostFinished(hostDeployment, true);
+                    }
+                })
+                .match(HostNotStarted.class, notStarted -> {
+                    final HostDeployment hostDeployment = notStarted._hostDeployment;
+                    if (_inFlight.get(hostDeployment.getHost().getName()) == hostDeployment) {
+                        finishInFlight(hostDeployment);
+                        markFinished(hostDeployment, DeploymentState.FAILED);
+                        hostFinished(hostDeployment, true);
+                    }
+                })
+                .match(HostDeploymentNotifications.DeploymentLog.class, log -> log(log.getLog(), log.getHost()))
+                .build();
+    }
+
+    /**
+     * Called when an in flight host deployment has started.  Marks the host deployment running.
+     *
+     * @param hostDeployment the host deployment
+     */
+    protected void hostStarted(final HostDeployment hostDeployment) {
+        markRunning(hostDeployment);
+    }
+
+    /**
+     * Called once an in flight host deployment has finished and been recorded.
+     *
+     * @param hostDeployment the host deployment
+     * @param failed true if the host deployment failed
+     */
+    protected void hostFinished(final HostDeployment hostDeployment, final boolean failed) {
+    }
+
+    /**
+     * Puts a host deployment in flight and creates its host deployment actor.
+     *
+     * @param hostDeployment the host deployment to start
+     */
+    protected void startInFlight(final HostDeployment hostDeployment) {
+        final String name = hostDeployment.getHost().getName();
+        _inFlight.put(name, hostDeployment);
+        final ActorRef hostActor = startHost(hostDeployment);
+        if (hostActor != null) {
+            _hostActors.put(name, hostActor);
+        } else {
+            // No host deployment actor will report on the host, fail it once the caller is done starting hosts
+            self().tell(new HostNotStarted(hostDeployment), self());
+        }
+    }
+
+    /**
+     * Gets the host deployments that are in flight.
+     *
+     * @return the in flight host deployments
+     */
+    protected List<HostDeployment> getInFlightHosts() {
+        return ImmutableList.copyOf(_inFlight.values());
+    }
+
+    protected int getInFlightCount() {
+        return _inFlight.size();
+    }
+
+    /**
+     * Takes a host deployment out of flight without recording a result and stops its host deployment actor.  A
+     * command the actor is already running on the host completes, but the actor takes no further step and its
+     * later notifications are ignored.
+     *
+     * @param hostDeployment the host deployment
+     */
+    protected void stopInFlight(final HostDeployment hostDeployment) {
+        final ActorRef hostActor = finishInFlight(hostDeployment);
+        if (hostActor != null) {
+            context().stop(hostActor);
+        }
+    }
+
+    /**
+     * Creates the host deployment actor for a host.
+     *
+     * @param hostDeployment the host deployment to start
+     * @return the host deployment actor, null if the environment type is not supported
+     */
+    protected ActorRef startHost(final HostDeployment hostDeployment) {
+        final Host host = hostDeployment.getHost();
+        final HostDeploymentFactory hostDeploymentFactory = _hostDeploymentFactory;
+        final DeploymentClientFactory dcf = _dcf;
+        final SshSessionFactory sshFactory = _sshFactory;
+        final Deployment deployment = _deployment;
+        final ManifestHistory manifestHistory = _deployment.getManifestHistory();
+        final EnvironmentType environmentType = manifestHistory
+                .getStage()
+                .getEnvironment()
+                .getEnvironmentType();
+        // A host can be started again while a stopped actor for it is still finishing, the names must not collide
+        _hostActorCount++;
+        final String actorSuffix = host.getId() + "-" + _hostActorCount;
+        switch (environmentType) {
+            case ROLLER:
+                return context()
+                        .actorOf(
+                                Props.create(
+                                        Roller.class,
+                                        () -> hostDeploymentFactory.createRoller(host, deployment))
+                                        .withDispatcher(Dispatchers.SSH),
+                                "rollerDeploy-" + actorSuffix);
+            case DOCKER:
+                final ActorRef dockerDeployActor = context()
+                        .actorOf(
+                                Props.create(
+                                        Docker.class,
+                                        () -> hostDeploymentFactory.createDocker(
+                                                dcf.createDockerClient(sshFactory.create(host.getName()))))
+                                        .withDispatcher(Dispatchers.SSH),
+                                "dockerDeploy-" + actorSuffix);
+                dockerDeployActor.tell(
+                        new HostDeploymentCommands.StartDeployment(
+                                manifestHistory.getManifest(),
+                                host,
+                                manifestHistory.getStage()),
+                        self());
+                return dockerDeployActor;
+            case RPM:
+                return context()
+                        .actorOf(
+                                Props.create(
+                                        Rpm.class,
+                                        () -> hostDeploymentFactory.createRpm(host, deployment))
+                                        .withDispatcher(Dispatchers.SSH),
+                                "rpmDeploy-" + actorSuffix);
+            default:
+                log(
+                        String.format(
+                                "Unable to start deployment: Unknown environment type [%s]",
+                                environmentType.toString()),
+                        host);
+                return null;
+        }
+    }
+
+    /**
+     * Writes a log line for the deployment.  The line is queued, see {@link DeploymentLogWriter}.
+     *
+     * @param message the message
+     * @param host the host the message is about, or null for the deployment itself
+     */
+    protected void log(final String message, final Host host) {
+        _logWriter.write(_deployment, host, message);
+    }
+
+    /**
+     * Writes a log line with a stack trace for the deployment.
+     *
+     * @param message the message
+     * @param exception the exception to record
+     * @param host the host the message is about, or null for the deployment itself
+     */
+    protected void log(final String message, final Throwable exception, final Host host) {
+        log(String.format("%s%n%s", message, ExceptionUtils.getStackTrace(exception)), host);
+    }
+
+    private HostDeployment getInFlight(final Host host, final String event) {
+        final HostDeployment hostDeployment = _inFlight.get(host.getName());
+        if (hostDeployment == null) {
+            LOGGER.warn()
+                    .setMessage("Received a host deployment message from a host that is not in flight")
+                    .addData("event", event)
+                    .addData("host", host.getName())
+                    .log();
+            return null;
+        }
+        final ActorRef hostActor = _hostActors.get(host.getName());
+        if (hostActor != null && !hostActor.equals(sender())) {
+            LOGGER.warn()
+                    .setMessage("Received a host deployment message from a stopped host deployment actor")
+                    .addData("event", event)
+                    .addData("host", host.getName())
+                    .log();
+            return null;
+        }
+        return hostDeployment;
+    }
+
+    private ActorRef finishInFlight(final HostDeployment hostDeployment) {
+        final String name = hostDeployment.getHost().getName();
+        _inFlight.remove(name);
+        return _hostActors.remove(name);
+    }
+
+    private Receive withOwnershipCheck(final Receive receive) {
+        return receive.orElse(receiveBuilder()
+                .match(DeploymentHeartbeater.OwnershipLost.class, lost -> {
+                    LOGGER.warn()
+                            .setMessage("Deployment was taken over by another server, stopping")
+                            .addData("deployment", lost.getDeploymentId())
+                            .log();
+                    context().stop(self());
+                })
+                .build());
+    }
+
+    private void prefetchCompleted(final HostDeploymentNotifications.PrefetchCompleted completed) {
+        _prefetching--;
+        context().stop(sender());
+        final Throwable failure = completed.getFailure();
+        if (failure != null) {
+            _prefetchFailures++;
+            log(
+                    "Prefetch failed, the host will download during the cutover; cause=" + failure,
+                    failure,
+                    completed.getHost());
+        }
+        fillPrefetch();
+    }
+
+    private void fillPrefetch() {
+        final HostDeploymentFactory hostDeploymentFactory = _hostDeploymentFactory;
+        final Deployment deployment = _deployment;
+        while (_prefetching < _prefetchParallelism && !_prefetchQueue.isEmpty()) {
+            final Host host = _prefetchQueue.poll().getHost();
+            context().actorOf(
+                    Props.create(Prefetch.class, () -> hostDeploymentFactory.createPrefetch(host, deployment))
+                            .withDispatcher(Dispatchers.SSH),
+                    "prefetch-" + host.getId());
+            _prefetching++;
+        }
+
+        if (_prefetching == 0) {
+            log(String.format(
+                    "Prefetch finished; hosts=%d, failures=%d",
+                    _pendingHosts.size(),
+                    _prefetchFailures),
+                    null);
+            getContext().become(withOwnershipCheck(createDeploymentReceive()));
+            if (_startDeferred) {
+                self().tell(START, self());
+            }
+        }
+    }
+
+    private int _prefetching = 0;
+    private int _prefetchFailures = 0;
+    private boolean _startDeferred = false;
+
+    private int _hostActorCount = 0;
+
+    private final Map<String, HostDeployment> _inFlight = Maps.newLinkedHashMap();
+    private final Map<String, ActorRef> _hostActors = Maps.newHashMap();
+    private final Deque<HostDeployment> _prefetchQueue;
+    private final int _prefetchParallelism;
+    private final List<HostDeployment> _pendingHosts;
+    private final String _myName;
+    private final ActorRef _heartbeater;
+    private final DeploymentLogWriter _logWriter;
+    private final boolean _exclusive;
+    private final HostDeploymentFactory _hostDeploymentFactory;
+    private final DeploymentClientFactory _dcf;
+    private final SshSessionFactory _sshFactory;
+    private final Deployment _deployment;
+    private static final String PREFETCH = "prefetch";
+    private static final String START = "start";
+    private static final com.arpnetworking.steno.Logger LOGGER = LoggerFactory.getLogger(FleetDeploymentBase.class);
+
+    private static final class HostNotStarted {
+        HostNotStarted(final HostDeployment hostDeployment) {
+            _hostDeployment = hostDeployment;
+        }
+
+        private final HostDeployment _hostDeployment;
+    }
+}
@@ -30,4 +30,36 @@ public interface FleetDeploymentFactory {
      * @return a new fleet deployment
      */
     Sequential create(Deployment deployment);
+
+    /**
+     * Create a parallel fleet deployment.
+     *
+     * @param deployment the deployment
+     * @return a new fleet deployment
+     */
+    Parallel createParallel(Deployment deployment);
+
+    /**
+     * Create a canary then waves fleet deployment.
+     *
+     * @param deployment the deployment
+     * @return a new fleet deployment
+     */
+    Waves createWaves(Deployment deployment);
+
+    /**
+     * Create a datacenter aware parallel fleet deployment.
+     *
+     * @param deployment the deployment
+     * @return a new fleet deployment
+     */
+    DatacenterParallel createDatacenterParallel(Deployment deployment);
+
+    /**
+     * Create this server's share of a deployment run by every server.
+     *
+     * @param deployment the deployment
+     * @return a new fleet deployment
+     */
+    Distributed createDistributed(Deployment deployment);
 }
@@ -0,0 +1,286 @@
+/**
+ * Copyright 2021 Brandon Arp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.groupon.deployment.fleet;
+
+import com.arpnetworking.steno.Logger;
+import com.arpnetworking.steno.LoggerFactory;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigException;
+import com.typesafe.config.ConfigFactory;
+import com.typesafe.config.ConfigUtil;
+import models.Deployment;
+import models.ManifestHistory;
+
+import java.time.Duration;
+import java.util.Locale;
+
+/**
+ * Fleet deployment settings for a deployment.  The settings are read from the <code>artemis.deployment</code>
+ * block of the stage configuration captured in the deployment's {@link ManifestHistory}, falling back to the
+ * <code>artemis.deployment</code> block of the Artemis configuration.  A stage configuration that does not parse
+ * or holds invalid deployment settings is logged and ignored, so one bad stage cannot fail the callers that read
+ * the settings of every deployment.
+ *
+ * @author Brandon Arp (brandon dot arp at inscopemetrics dot com)
+ */
+public final class FleetDeploymentSettings {
+    /**
+     * Builds the settings for a deployment.
+     *
+     * @param deployment the deployment
+     * @param config Artemis configuration
+     * @return the settings for the deployment
+     */
+    public static FleetDeploymentSettings forDeployment(final Deployment deployment, final Config config) {
+        final Config defaults = config.getConfig(PATH);
+        final ManifestHistory manifestHistory = deployment.getManifestHistory();
+        if (manifestHistory == null || manifestHistory.getConfig() == null) {
+            return new FleetDeploymentSettings(defaults);
+        }
+        try {
+            final Config stageConfig = ConfigFactory.parseString(manifestHistory.getConfig()).resolve();
+            if (!stageConfig.hasPath(PATH)) {
+                return new FleetDeploymentSettings(defaults);
+            }
+            final Config settings = stageConfig.getConfig(PATH).withFallback(defaults);
+            // Fail here rather than in whichever actor reads the bad setting first
+            settings.checkValid(defaults);
+            Strategy.valueOf(settings.getString("strategy").toUpperCase(Locale.ENGLISH));
+            return new FleetDeploymentSettings(settings);
+        } catch (final ConfigException | IllegalArgumentException e) {
+            LOGGER.warn()
+                    .setMessage("Invalid deployment settings in the stage configuration, using the defaults")
+                    .addData("deployment", deployment.getId())
+                    .setThrowable(e)
+                    .log();
+            return new FleetDeploymentSettings(defaults);
+        }
+    }
+
+    public Strategy getStrategy() {
+        return Strategy.valueOf(_config.getString("strategy").toUpperCase(Locale.ENGLISH));
+    }
+
+    /**
+     * Resolves the number of hosts to deploy at the same time.  The <code>parallelism</code> setting is either
+     * an absolute number of hosts or a percentage of the stage, e.g. "25%".  The result is always at least 1.
+     * See {@link #createConcurrencyLimit(int)} for adaptive parallelism.
+     *
+     * @param hostCount the number of hosts in the deployment
+     * @return the number of hosts to deploy concurrently
+     */
+    public int getParallelism(final int hostCount) {
+        return resolveHostCount(_config.getString("parallelism"), hostCount);
+    }
+
+    /**
+     * Creates the concurrency limit for a parallel deployment.  A <code>parallelism</code> of "adaptive" creates
+     * an {@link AimdConcurrencyLimit} configured by the <code>adaptive</code> block, anything else creates a fixed
+     * limit of {@link #getParallelism(int)} hosts.
+     *
+     * @param hostCount the number of hosts in the deployment
+     * @return a new concurrency limit
+     */
+    public ConcurrencyLimit createConcurrencyLimit(final int hostCount) {
+        if (!ADAPTIVE.equalsIgnoreCase(_config.getString("parallelism").trim())) {
+            return new ConcurrencyLimit.Fixed(getParallelism(hostCount));
+        }
+        final Config adaptive = _config.getConfig("adaptive");
+        return new AimdConcurrencyLimit(
+                resolveHostCount(adaptive.getString("initial"), hostCount),
+                resolveHostCount(adaptive.getString("min"), hostCount),
+                resolveHostCount(adaptive.getString("max"), hostCount),
+                adaptive.getDouble("backoffRatio"),
+                adaptive.getDouble("maxFailureRate"),
+                adaptive.getDouble("latencyTolerance"),
+                adaptive.getInt("sampleSize"));
+    }
+
+    /**
+     * Gets the number of failed hosts a parallel deployment tolerates before it stops starting new hosts.
+     *
+     * @return the number of tolerated failures
+     */
+    public int getMaxFailures() {
+        return _config.getInt("maxFailures");
+    }
+
+    /**
+     * Resolves the number of hosts in the canary wave of a waves deployment.
+     *
+     * @param hostCount the number of hosts in the deployment
+     * @return the number of hosts in the canary wave
+     */
+    public int getCanarySize(final int hostCount) {
+        return resolveHostCount(_config.getString("waves.canary"), hostCount);
+    }
+
+    /**
+     * Resolves the maximum number of hosts in a single wave of a waves deployment.
+     *
+     * @param hostCount the number of hosts in the deployment
+     * @return the maximum number of hosts in a wave
+     */
+    public int getMaxWaveSize(final int hostCount) {
+        return resolveHostCount(_config.getString("waves.maxSize"), hostCount);
+    }
+
+    /**
+     * Gets the highest fraction of failed hosts in a wave that still allows the next wave to start.
+     *
+     * @return the failure threshold, between 0 and 1
+     */
+    public double getWaveFailureThreshold() {
+        return _config.getDouble("waves.failureThreshold");
+    }
+
+    /**
+     * Resolves the number of hosts to deploy at the same time within a datacenter.  The
+     * <code>datacenters.overrides.&lt;dc&gt;</code> setting takes precedence over <code>datacenters.parallelism</code>.
+     *
+     * @param datacenter the datacenter
+     * @param hostCount the number of hosts in the datacenter
+     * @return the number of hosts to deploy concurrently in the datacenter
+     */
+    public int getDatacenterParallelism(final String datacenter, final int hostCount) {
+        final String overridePath = "datacenters.overrides." + ConfigUtil.joinPath(datacenter);
+        if (_config.hasPath(overridePath)) {
+            return resolveHostCount(_config.getString(overridePath), hostCount);
+        }
+        return resolveHostCount(_config.getString("datacenters.parallelism"), hostCount);
+    }
+
+    /**
+     * Gets the maximum number of datacenters that may be deploying at the same time.
+     *
+     * @return the maximum number of datacenters, 0 for no limit
+     */
+    public int getMaxConcurrentDatacenters() {
+        return _config.getInt("datacenters.maxConcurrent");
+    }
+
+    /**
+     * Checks if the artifacts of the deployment are downloaded to all the hosts before the rollout starts.
+     *
+     * @return true if the prefetch phase is enabled
+     */
+    public boolean isPrefetchEnabled() {
+        return _config.getBoolean("prefetch.enabled");
+    }
+
+    /**
+     * Resolves the number of hosts to download the artifacts to at the same time.
+     *
+     * @param hostCount the number of hosts in the deployment
+     * @return the number of hosts to prefetch concurrently
+     */
+    public int getPrefetchParallelism(final int hostCount) {
+        return resolveHostCount(_config.getString("prefetch.parallelism"), hostCount);
+    }
+
+    /**
+     * Checks if an rpm deployment skips the hosts the host inventory shows are already at the manifest versions.
+     * Off by default; a stage that turns it on can still force a full deployment by turning it off in the
+     * configuration of a release.
+     *
+     * @return true to skip the converged hosts
+     */
+    public boolean isSkipConverged() {
+        return _config.getBoolean("skipConverged");
+    }
+
+    /**
+     * Gets how long a node's claim on a host deployment lasts without being renewed in a distributed deployment.
+     *
+     * @return the lease duration
+     */
+    public Duration getLeaseDuration() {
+        return _config.getDuration("distributed.leaseDuration");
+    }
+
+    /**
+     * Gets how often a node renews its leases and claims more hosts in a distributed deployment.
+     *
+     * @return the claim interval
+     */
+    public Duration getClaimInterval() {
+        return _config.getDuration("distributed.claimInterval");
+    }
+
+    /**
+     * Gets the raw settings block.
+     *
+     * @return the settings
+     */
+    public Config getConfig() {
+        return _config;
+    }
+
+    /**
+     * Resolves a host count setting that is either an absolute number or a percentage of the fleet.
+     *
+     * @param value the setting value
+     * @param hostCount the number of hosts in the deployment
+     * @return the number of hosts, at least 1
+     */
+    static int resolveHostCount(final String value, final int hostCount) {
+        final String trimmed = value.trim();
+        final int resolved;
+        if (trimmed.endsWith("%")) {
+            final double percent = Double.parseDouble(trimmed.substring(0, trimmed.length() - 1).trim());
+            resolved = (int) Math.ceil(hostCount * percent / 100d);
+        } else {
+            resolved = Integer.parseInt(trimmed);
+        }
+        return Math.max(1, resolved);
+    }
+
+    private FleetDeploymentSettings(final Config config) {
+        _config = config;
+    }
+
+    private final Config _config;
+
+    private static final String PATH = "artemis.deployment";
+    private static final String ADAPTIVE = "adaptive";
+    private static final Logger LOGGER = LoggerFactory.getLogger(FleetDeploymentSettings.class);
+
+    /**
+     * The fleet deployment strategies.
+     */
+    public enum Strategy {
+        /**
+         * Deploy one host at a time.
+         */
+        SEQUENTIAL,
+        /**
+         * Deploy a window of hosts at a time.
+         */
+        PARALLEL,
+        /**
+         * Deploy a canary, then geometrically growing waves of hosts.
+         */
+        WAVES,
+        /**
+         * Deploy all datacenters in parallel, each with a window of hosts at a time.
+         */
+        DATACENTER,
+        /**
+         * Every Artemis node claims and deploys a window of hosts at a time.
+         */
+        DISTRIBUTED
+    }
+}
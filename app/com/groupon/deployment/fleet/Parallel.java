@@ -0,0 +1,183 @@
+/**
+ * Copyright 2021 Brandon Arp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.groupon.deployment.fleet;
+
+import akka.actor.ActorRef;
+import client.DeploymentClientFactory;
+import com.arpnetworking.metrics.Metrics;
+import com.arpnetworking.metrics.MetricsFactory;
+import com.arpnetworking.steno.LoggerFactory;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Queues;
+import com.google.inject.assistedinject.Assisted;
+import com.google.inject.assistedinject.AssistedInject;
+import com.groupon.deployment.DeploymentLogWriter;
+import com.groupon.deployment.SshSessionFactory;
+import com.groupon.deployment.host.HostDeploymentFactory;
+import com.typesafe.config.Config;
+import models.Deployment;
+import models.DeploymentState;
+import models.HostDeployment;
+
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.inject.Named;
+
+/**
+ * Deploys a window of hosts at the same time.  As each host finishes, the next host in the queue is started.
+ * The window is either fixed or adapted to the health of the fleet by an {@link AimdConcurrencyLimit}.  Once
+ * more hosts have failed than the configured number of tolerated failures no new hosts are started; the hosts
+ * already in flight are allowed to finish and the deployment is marked as failed.
+ *
+ * @author Brandon Arp (brandon dot arp at inscopemetrics dot com)
+ */
+public class Parallel extends FleetDeploymentBase {
+    /**
+     * Public constructor.
+     *
+     * @param hostDeploymentFactory a factory to create a host deployment
+     * @param dcf deployment client factory
+     * @param sshFactory ssh session factory
+     * @param heartbeater the deployment heartbeater
+     * @param logWriter the deployment log writer
+     * @param config Artemis configuration
+     * @param metricsFactory metrics factory to publish the concurrency metrics to
+     * @param deployment deployment to run
+     */
+    @AssistedInject
+    public Parallel(
+            final HostDeploymentFactory hostDeploymentFactory,
+            final DeploymentClientFactory dcf,
+            final SshSessionFactory sshFactory,
+            @Named("DeploymentHeartbeater") final ActorRef heartbeater,
+            final DeploymentLogWriter logWriter,
+            final Config config,
+            final MetricsFactory metricsFactory,
+            @Assisted final Deployment deployment) {
+        super(hostDeploymentFactory, dcf, sshFactory, heartbeater, logWriter, config, deployment);
+        _metricsFactory = metricsFactory;
+        _hostQueue = Queues.newArrayDeque(getPendingHosts());
+        final FleetDeploymentSettings settings = FleetDeploymentSettings.forDeployment(getDeployment(), config);
+        _limit = settings.createConcurrencyLimit(getHostCount());
+        _maxFailures = settings.getMaxFailures();
+        LOGGER.info()
+                .setMessage("Parallel fleet deployment actor started up")
+                .addData("deployment", getDeployment().getId())
+                .addData("window", _limit.getLimit())
+                .addData("adaptive", _limit instanceof AimdConcurrencyLimit)
+                .log();
+        self().tell("start", self());
+    }
+
+    @Override
+    protected Receive createDeploymentReceive() {
+        return receiveBuilder()
+                .matchEquals("start", start -> {
+                    log(String.format(
+                            "Deployment starting; window=%d, adaptive=%s, maxFailures=%d",
+                            _limit.getLimit(),
+                            _limit instanceof AimdConcurrencyLimit,
+                            _maxFailures),
+                            null);
+                    fillWindow();
+                })
+                .build()
+                .orElse(hostNotifications());
+    }
+
+    @Override
+    protected void hostStarted(final HostDeployment hostDeployment) {
+        _startTimes.put(hostDeployment.getHost().getName(), System.nanoTime());
+        super.hostStarted(hostDeployment);
+    }
+
+    @Override
+    protected void hostFinished(final HostDeployment hostDeployment, final boolean failed) {
+        complete(hostDeployment, failed);
+        if (failed) {
+            _failures++;
+        }
+        fillWindow();
+    }
+
+    private void complete(final HostDeployment hostDeployment, final boolean failed) {
+        final Long startTime = _startTimes.remove(hostDeployment.getHost().getName());
+        final long latencyMillis = startTime == null ? 0 : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+        final int previousLimit = _limit.getLimit();
+        _limit.onComplete(latencyMillis, failed);
+        if (_limit.getLimit() != previousLimit) {
+            log(String.format("Concurrency limit changed; from=%d, to=%d", previousLimit, _limit.getLimit()), null);
+        }
+
+        try (Metrics metrics = _metricsFactory.create()) {
+            metrics.addAnnotation("deployment", String.valueOf(getDeployment().getId()));
+            metrics.setTimer("deployment/fleet/host_latency", latencyMillis, TimeUnit.MILLISECONDS);
+            metrics.incrementCounter("deployment/fleet/host_failed", failed ? 1 : 0);
+            metrics.setGauge("deployment/fleet/concurrency_limit", _limit.getLimit());
+            metrics.setGauge("deployment/fleet/in_flight", getInFlightCount());
+            if (_limit instanceof AimdConcurrencyLimit) {
+                final AimdConcurrencyLimit aimd = (AimdConcurrencyLimit) _limit;
+                metrics.setGauge("deployment/fleet/host_latency_p50", aimd.getLatencyPercentile(50));
+                metrics.setGauge("deployment/fleet/host_latency_p90", aimd.getLatencyPercentile(90));
+                metrics.setGauge("deployment/fleet/host_latency_p99", aimd.getLatencyPercentile(99));
+                metrics.setGauge("deployment/fleet/failure_rate", aimd.getFailureRate());
+            }
+        }
+    }
+
+    private void fillWindow() {
+        if (_failures > _maxFailures) {
+            if (getInFlightCount() == 0) {
+                finishDeployment(DeploymentState.FAILED, String.format("Deployment failed; failures=%d", _failures));
+            }
+            return;
+        }
+
+        while (getInFlightCount() < _limit.getLimit() && !_hostQueue.isEmpty()) {
+            final HostDeployment next = _hostQueue.peek();
+            if (isSelf(next)) {
+                // We can only hand off the deployment once all the other hosts are finished
+                if (getInFlightCount() == 0) {
+                    handOff();
+                }
+                return;
+            }
+            _hostQueue.poll();
+            _startTimes.put(next.getHost().getName(), System.nanoTime());
+            startInFlight(next);
+        }
+
+        if (getInFlightCount() == 0 && _hostQueue.isEmpty()) {
+            if (_failures == 0) {
+                finishDeployment(DeploymentState.SUCCEEDED, "Deployment completed successfully");
+            } else {
+                finishDeployment(
+                        DeploymentState.FAILED,
+                        String.format("Deployment completed with failed hosts; failures=%d", _failures));
+            }
+        }
+    }
+
+    private int _failures = 0;
+
+    private final ConcurrencyLimit _limit;
+    private final int _maxFailures;
+    private final MetricsFactory _metricsFactory;
+    private final Deque<HostDeployment> _hostQueue;
+    private final Map<String, Long> _startTimes = Maps.newHashMap();
+    private static final com.arpnetworking.steno.Logger LOGGER = LoggerFactory.getLogger(Parallel.class);
+}
@@ -0,0 +1,193 @@
+/**
+ * Copyright 2021 Brandon Arp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.groupon.deployment.fleet;
+
+import akka.actor.ActorRef;
+import client.DeploymentClientFactory;
+import com.arpnetworking.steno.LoggerFactory;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Queues;
+import com.google.inject.assistedinject.Assisted;
+import com.google.inject.assistedinject.AssistedInject;
+import com.groupon.deployment.DeploymentLogWriter;
+import com.groupon.deployment.SshSessionFactory;
+import com.groupon.deployment.host.HostDeploymentFactory;
+import com.typesafe.config.Config;
+import models.Deployment;
+import models.DeploymentState;
+import models.HostDeployment;
+
+import java.util.Deque;
+import java.util.List;
+import javax.inject.Named;
+
+/**
+ * Deploys a canary set of hosts, then deploys the rest of the hosts in waves.  Each wave is twice the size
+ * of the previous one, up to a maximum wave size.  A wave is only started once the previous wave has
+ * finished and its failure rate did not exceed the configured threshold.
+ *
+ * <p>A deployment picked up by another server, after a hand off or a recovery, carries on from the recorded host
+ * deployments: the failed hosts still count against the deployment and the waves continue at the size they had
+ * reached.
+ *
+ * @author Brandon Arp (brandon dot arp at inscopemetrics dot com)
+ */
+public class Waves extends FleetDeploymentBase {
+    /**
+     * Public constructor.
+     *
+     * @param hostDeploymentFactory a factory to create a host deployment
+     * @param dcf deployment client factory
+     * @param sshFactory ssh session factory
+     * @param heartbeater the deployment heartbeater
+     * @param logWriter the deployment log writer
+     * @param config Artemis configuration
+     * @param deployment deployment to run
+     */
+    @AssistedInject
+    public Waves(
+            final HostDeploymentFactory hostDeploymentFactory,
+            final DeploymentClientFactory dcf,
+            final SshSessionFactory sshFactory,
+            @Named("DeploymentHeartbeater") final ActorRef heartbeater,
+            final DeploymentLogWriter logWriter,
+            final Config config,
+            @Assisted final Deployment deployment) {
+        super(hostDeploymentFactory, dcf, sshFactory, heartbeater, logWriter, config, deployment);
+        _hostQueue = Queues.newArrayDeque(getPendingHosts());
+        final FleetDeploymentSettings settings = FleetDeploymentSettings.forDeployment(getDeployment(), config);
+        _canarySize = settings.getCanarySize(getHostCount());
+        _maxWaveSize = settings.getMaxWaveSize(getHostCount());
+        _failureThreshold = settings.getWaveFailureThreshold();
+
+        // Replay the waves that covered the hosts already finished
+        final int finished = getHostCount() - getPendingHosts().size();
+        int deployed = 0;
+        int size = _canarySize;
+        while (deployed < finished) {
+            deployed += size;
+            size = Math.min(_maxWaveSize, size * 2);
+            _wave++;
+        }
+        _firstWaveSize = size;
+        _totalFailures = HostDeployment.countByState(getDeployment(), DeploymentState.FAILED);
+        LOGGER.info()
+                .setMessage("Waves fleet deployment actor started up")
+                .addData("deployment", getDeployment().getId())
+                .addData("canarySize", _canarySize)
+                .addData("maxWaveSize", _maxWaveSize)
+                .addData("failureThreshold", _failureThreshold)
+                .addData("firstWaveSize", _firstWaveSize)
+                .addData("failures", _totalFailures)
+                .log();
+        self().tell("start", self());
+    }
+
+    @Override
+    protected Receive createDeploymentReceive() {
+        return receiveBuilder()
+                .matchEquals("start", start -> {
+                    log(String.format(
+                            "Deployment starting; canarySize=%d, maxWaveSize=%d, failureThreshold=%.2f, "
+                                    + "waveSize=%d, failures=%d",
+                            _canarySize,
+                            _maxWaveSize,
+                            _failureThreshold,
+                            _firstWaveSize,
+                            _totalFailures),
+                            null);
+                    startWave(_firstWaveSize);
+                })
+                .build()
+                .orElse(hostNotifications());
+    }
+
+    @Override
+    protected void hostFinished(final HostDeployment hostDeployment, final boolean failed) {
+        if (failed) {
+            _waveFailures++;
+            _totalFailures++;
+        }
+        checkWave();
+    }
+
+    private void checkWave() {
+        if (getInFlightCount() > 0) {
+            return;
+        }
+
+        final double failureRate = (double) _waveFailures / _waveSize;
+        log(String.format(
+                "Wave %d finished; hosts=%d, failures=%d, failureRate=%.2f",
+                _wave,
+                _waveSize,
+                _waveFailures,
+                failureRate),
+                null);
+        if (failureRate > _failureThreshold) {
+            finishDeployment(
+                    DeploymentState.FAILED,
+                    String.format(
+                            "Deployment halted, wave %d failure rate exceeded the threshold; failureRate=%.2f, threshold=%.2f",
+                            _wave,
+                            failureRate,
+                            _failureThreshold));
+            return;
+        }
+        startWave(Math.min(_maxWaveSize, _waveSize * 2));
+    }
+
+    private void startWave(final int size) {
+        if (_hostQueue.isEmpty()) {
+            if (_totalFailures == 0) {
+                finishDeployment(DeploymentState.SUCCEEDED, "Deployment completed successfully");
+            } else {
+                finishDeployment(
+                        DeploymentState.FAILED,
+                        String.format("Deployment completed with failed hosts; failures=%d", _totalFailures));
+            }
+            return;
+        }
+
+        if (isSelf(_hostQueue.peek())) {
+            // This server is always the last host and nothing is in flight between waves
+            handOff();
+            return;
+        }
+
+        _wave++;
+        _waveFailures = 0;
+        final List<HostDeployment> wave = Lists.newArrayList();
+        while (wave.size() < size && !_hostQueue.isEmpty() && !isSelf(_hostQueue.peek())) {
+            wave.add(_hostQueue.poll());
+        }
+        _waveSize = wave.size();
+        log(String.format("Starting wave %d; hosts=%d, remaining=%d", _wave, _waveSize, _hostQueue.size()), null);
+        wave.forEach(this::startInFlight);
+    }
+
+    private int _wave = 0;
+    private int _waveSize = 0;
+    private int _waveFailures = 0;
+    private int _totalFailures = 0;
+
+    private final int _canarySize;
+    private final int _firstWaveSize;
+    private final int _maxWaveSize;
+    private final double _failureThreshold;
+    private final Deque<HostDeployment> _hostQueue;
+    private static final com.arpnetworking.steno.Logger LOGGER = LoggerFactory.getLogger(Waves.class);
+}
@@ -19,31 +19,37 @@ import akka.actor.AbstractActor;
 import akka.actor.ActorRef;
 import client.DockerDeploymentClient;
 import client.DockerDeploymentClient.ContainerDescription;
+import client.docker.ImageInspectionCache;
 import client.docker.PortMapping;
 import client.docker.inspectionbeans.ImageInspection;
 import com.arpnetworking.steno.Logger;
 import com.arpnetworking.steno.LoggerFactory;
 import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.inject.assistedinject.Assisted;
 import com.google.inject.assistedinject.AssistedInject;
+import com.groupon.akka.Dispatchers;
 import com.groupon.deployment.HostDeploymentCommands;
 import com.groupon.deployment.HostDeploymentNotifications;
+import com.groupon.deployment.HostInventory;
 import models.Host;
 import models.Manifest;
 import models.PackageVersion;
 import models.Stage;
 
+import java.net.URI;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executor;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import java.util.stream.Collectors;
+import java.util.function.Consumer;
+import javax.inject.Named;
 
 /**
  * Implements the DeploymentManager actor interface by accepting HostDeploymentCommands.StartDeployment messages.
@@ -55,12 +61,22 @@ public class Docker extends AbstractActor {
      * Public constructor.
      *
      * @param deploymentClient a deployment client
-     * @param futuresContext a context to run futures in
+     * @param registryUrl url of the docker registry the images are pulled from
+     * @param inspectionCache the image inspections shared by the docker deployments
+     * @param inventory the host package inventory
      */
     @AssistedInject
-    public Docker(@Assisted final DockerDeploymentClient deploymentClient, final Executor futuresContext) {
+    public Docker(
+            @Assisted final DockerDeploymentClient deploymentClient,
+            @Named("DockerRegistryUrl") final String registryUrl,
+            final ImageInspectionCache inspectionCache,
+            final HostInventory inventory) {
         _deploymentClient = deploymentClient;
-        _futuresContext = futuresContext;
+        // The callbacks block on the docker client, keep them on the ssh dispatcher like the other host deployments
+        _futuresContext = context().system().dispatchers().lookup(Dispatchers.SSH);
+        _registryUrl = registryUrl;
+        _inspectionCache = inspectionCache;
+        _inventory = inventory;
     }
 
     @Override
@@ -89,31 +105,28 @@ public class Docker extends AbstractActor {
 
         // TODO(mhayter): andThen always runs in the provided _futuresContext, right? .map sometimes runs in the calling thread. [Artemis-?]
         final String environmentId = String.valueOf(stage.getEnvironment().getId());
+        final Map<String, String> labels = Maps.newLinkedHashMap();
+        labels.put(ENVIRONMENT_LABEL, environmentId);
+        labels.put(STAGE_LABEL, String.valueOf(stage.getId()));
+        labels.put(MANIFEST_LABEL, String.valueOf(manifest.getId()));
         final CompletableFuture<Void> containerDescriptions = CompletableFuture.supplyAsync(() -> {
+                    logger.log("Looking for extraneous containers");
                     try {
-                        return _deploymentClient.getRunningContainers();
-                    } catch (DockerDeploymentClient.DockerDeploymentClientException e) {
+                        return findContainersForRemoval(_deploymentClient, environmentId);
+                    } catch (final DockerDeploymentClient.DockerDeploymentClientException e) {
                         throw new RuntimeException(e);
                     }
                 },
                 _futuresContext)
                 .thenApplyAsync(containers -> {
-                    context().parent().tell(
-                            new HostDeploymentNotifications.DeploymentLog(
-                                    host,
-                                    String.format("Found %d running containers", containers.size())),
-                            self());
-                    context().parent().tell(
-                            new HostDeploymentNotifications.DeploymentLog(
-                                    host,
-                                    "Looking for extraneous containers"),
-                            self());
-                    return findContainersForRemoval(manifest, containers, environmentId);
-                })
+                    logger.log(String.format("Found %d running containers in the environment", containers.size()));
+                    return containers;
+                }, _futuresContext)
                 .thenApplyAsync((containers) -> rmContainersCb(logger, containers, _deploymentClient), _futuresContext)
-//                .map(JFunction.func(new PullImagesCb(manifest, _deploymentClient, logger)), _futuresContext)
-                .thenApplyAsync((v) -> getPortsCb(manifest, _deploymentClient, logger), _futuresContext)
-                .thenApplyAsync((portsMap) -> startImagesCb(manifest, _deploymentClient, logger, environmentId, portsMap), _futuresContext)
+                .thenApplyAsync((v) -> pullImagesCb(manifest, _deploymentClient, _registryUrl, _inspectionCache, logger::log), _futuresContext)
+                .thenApplyAsync((v) -> getPortsCb(manifest, _deploymentClient, _inspectionCache, logger), _futuresContext)
+                .thenApplyAsync((portsMap) -> startImagesCb(manifest, _deploymentClient, logger, environmentId, labels, portsMap), _futuresContext)
+                .thenApplyAsync((v) -> recordInventoryCb(host, _deploymentClient, _inventory), _futuresContext)
                 .whenCompleteAsync((success, failure) -> {
                         if (failure == null) {
                             // Deploy success!
@@ -126,40 +139,43 @@ public class Docker extends AbstractActor {
     }
 
     /**
+     * Finds the containers running as part of an environment.  Docker filters the containers by the environment
+     * label, or by name for the containers started before Artemis labelled them, so the other containers on the
+     * host are never listed.
      *
-     * @return Containers that are running as part of this Environment, which have images that are not specified in
-     * the manifest that is being deployed.
+     * @return the containers to remove before the manifest is started
      */
-    private List<ContainerDescription> findContainersForRemoval(
-            final Manifest manifest,
-            final List<ContainerDescription> runningContainers,
+    private static List<ContainerDescription> findContainersForRemoval(
+            final DockerDeploymentClient deploymentClient,
             final String envId)
-            throws DockerDeployFailureException {
-        return runningContainers.stream()
-                .filter(container -> isInEnv(envId, container))
-                .collect(Collectors.toList());
-    }
-
-    private boolean isInEnv(final String envName, final ContainerDescription container) {
-        final Matcher matcher = CONTAINER_NAME_PATTERN.matcher(container.getName());
-        if (!matcher.find()) {
-            // If the name of the image does not match artemis' format, it mustn't be in our artemis environment.
-            return false;
+            throws DockerDeploymentClient.DockerDeploymentClientException {
+        final Map<String, ContainerDescription> containers = Maps.newLinkedHashMap();
+        for (final ContainerDescription container : deploymentClient.getRunningContainers(
+                Collections.singletonList("label=" + ENVIRONMENT_LABEL + "=" + envId))) {
+            containers.put(container.getId(), container);
+        }
+        for (final ContainerDescription container : deploymentClient.getRunningContainers(
+                Collections.singletonList("name=^/" + CONTAINER_NAME_PREFIX + envId + "$"))) {
+            containers.putIfAbsent(container.getId(), container);
         }
-        return envName.equals(matcher.group(CONTAINER_NAME_PATTERN_ENVIRONMENT_GROUP));
+        return Lists.newArrayList(containers.values());
     }
 
     private final DockerDeploymentClient _deploymentClient;
     private final Executor _futuresContext;
+    private final String _registryUrl;
+    private final ImageInspectionCache _inspectionCache;
+    private final HostInventory _inventory;
     private Manifest _manifest;
 
     /**
      * This string should be prepended to the containers created by artemis.
      */
-    // TODO(mhayter): Use 'labels' on containers instead of name prefixes. [Artemis-?]
     private static final String CONTAINER_NAME_PREFIX = "artemis-";
-    private static final Pattern CONTAINER_NAME_PATTERN = Pattern.compile(CONTAINER_NAME_PREFIX + "(\\d+)");
-    private static final int CONTAINER_NAME_PATTERN_ENVIRONMENT_GROUP = 1;
+    private static final String ENVIRONMENT_LABEL = "com.groupon.artemis.environment";
+    private static final String STAGE_LABEL = "com.groupon.artemis.stage";
+    private static final String MANIFEST_LABEL = "com.groupon.artemis.manifest";
+    private static final String LATEST_TAG = "latest";
     private static final Logger LOGGER = LoggerFactory.getLogger(Docker.class);
 
     // TODO(mhayter): make this a checked exception [Artemis-?]
@@ -188,6 +204,7 @@ public class Docker extends AbstractActor {
             final DockerDeploymentClient client,
             final LoggerToParent logger,
             final String envId,
+            final Map<String, String> labels,
             final Map<PackageVersion, List<PortMapping>> packageToPortMap) {
         // Start all the images from the manifest
         for (final PackageVersion pkgVersion : manifest.getPackages()) {
@@ -195,8 +212,9 @@ public class Docker extends AbstractActor {
             // The docker ImageId is the 'version' in the manifest package list
             final String imageId = pkgVersion.getVersion();
             final DockerDeploymentClient.RunCommandBuilder runCommandBuilder = client.createRunCommandBuilder(imageId);
-            // The container name MUST match CONTAINER_NAME_PATTERN
             runCommandBuilder.setContainerName(CONTAINER_NAME_PREFIX + envId);
+            // The labels are how the container is found by the next deployment
+            labels.forEach(runCommandBuilder::addLabel);
             for (final PortMapping portMapping : packageToPortMap.get(pkgVersion)) {
                 runCommandBuilder.addPortMapping(portMapping);
             }
@@ -212,6 +230,24 @@ public class Docker extends AbstractActor {
 
 
 
+    private static Void recordInventoryCb(
+            final Host host,
+            final DockerDeploymentClient deploymentClient,
+            final HostInventory inventory) {
+        // CHECKSTYLE.OFF: IllegalCatch - the host is deployed, a stale inventory must not fail the deployment
+        try {
+            inventory.recordDocker(host, deploymentClient.getRunningContainers());
+        } catch (final DockerDeploymentClient.DockerDeploymentClientException | RuntimeException e) {
+            // CHECKSTYLE.ON: IllegalCatch
+            LOGGER.warn()
+                    .setMessage("Failed to record the host inventory")
+                    .addData("host", host.getName())
+                    .setThrowable(e)
+                    .log();
+        }
+        return null;
+    }
+
     private static Void rmContainersCb (final LoggerToParent logger, final List<ContainerDescription> containers, final DockerDeploymentClient deploymentClient) {
         try {
             for (final ContainerDescription c : containers) {
@@ -225,7 +261,11 @@ public class Docker extends AbstractActor {
     }
 
 
-    private static Map<PackageVersion, List<PortMapping>> getPortsCb(final Manifest manifest, final DockerDeploymentClient deploymentClient, final LoggerToParent logger) {
+    private static Map<PackageVersion, List<PortMapping>> getPortsCb(
+            final Manifest manifest,
+            final DockerDeploymentClient deploymentClient,
+            final ImageInspectionCache inspectionCache,
+            final LoggerToParent logger) {
         final List<String> imageReferences = new LinkedList<>();
         final List<PackageVersion> packageVersions = manifest.getPackages();
         for (final PackageVersion packageVersion : packageVersions) {
@@ -234,7 +274,8 @@ public class Docker extends AbstractActor {
 
         final List<ImageInspection> inspections;
         try {
-            inspections = deploymentClient.inspectImages(imageReferences);
+            // The exposed ports of an image never change, most hosts are answered from the cache
+            inspections = inspectionCache.inspectImages(deploymentClient, imageReferences);
         } catch (final DockerDeploymentClient.DockerDeploymentClientException e) {
             throw new RuntimeException(e);
         }
@@ -264,10 +305,91 @@ public class Docker extends AbstractActor {
         return packageToPortsMap;
     }
 
-    private static Void pullImagesCb(final Manifest manifest, final DockerDeploymentClient deploymentClient, final LoggerToParent logger) {
+    /**
+     * Pulls the images of a manifest that are not already on the host.  The manifest records the image id as the
+     * package version, so an image is pulled by a registry tag that points at that id, see
+     * {@link #getImageReference(String, PackageVersion)}, and then must be present by id.  Images that were
+     * prefetched before the cutover are skipped.
+     *
+     * @param manifest the manifest
+     * @param deploymentClient the client for the host
+     * @param registryUrl url of the docker registry
+     * @param inspectionCache the image inspections, filled from the presence checks
+     * @param logger consumer of the deployment log lines
+     * @return nothing
+     */
+    static Void pullImagesCb(
+            final Manifest manifest,
+            final DockerDeploymentClient deploymentClient,
+            final String registryUrl,
+            final ImageInspectionCache inspectionCache,
+            final Consumer<String> logger) {
+        for (final PackageVersion packageVersion : manifest.getPackages()) {
+            final String imageId = packageVersion.getVersion();
+            if (inspectionCache.isImagePresent(deploymentClient, imageId)) {
+                logger.accept("Image already present; image=" + imageId);
+                continue;
+            }
+            final String reference = getImageReference(registryUrl, packageVersion);
+            logger.accept(String.format("Pulling image; reference=%s, image=%s", reference, imageId));
+            try {
+                deploymentClient.pull(reference);
+            } catch (final DockerDeploymentClient.DockerDeploymentClientException e) {
+                throw new DockerDeployFailureException("Failed to pull image " + reference, e);
+            }
+            if (!inspectionCache.isImagePresent(deploymentClient, imageId)) {
+                throw new DockerDeployFailureException(
+                        String.format("Image not found after pull; reference=%s, image=%s", reference, imageId));
+            }
+        }
         return null;
     }
 
+    /**
+     * Gets the reference to pull the image of a package version by, <code>repository:tag</code>.  The registry tags
+     * of the image are recorded in the description of the package version by the package refresher.  A fixed tag
+     * is preferred to <code>latest</code>, which may have moved to another image since.
+     *
+     * @param registryUrl url of the docker registry
+     * @param packageVersion the package version, its version is the image id
+     * @return the image reference
+     */
+    static String getImageReference(final String registryUrl, final PackageVersion packageVersion) {
+        final String repository = getImageRepository(registryUrl, packageVersion);
+        final List<String> tags = getImageTags(packageVersion);
+        if (tags.isEmpty()) {
+            throw new DockerDeployFailureException(String.format(
+                    "No registry tag is known for the image; repository=%s, image=%s",
+                    repository,
+                    packageVersion.getVersion()));
+        }
+        final String tag = tags.stream().filter(t -> !LATEST_TAG.equals(t)).findFirst().orElse(tags.get(0));
+        return repository + ":" + tag;
+    }
+
+    private static List<String> getImageTags(final PackageVersion packageVersion) {
+        final String description = packageVersion.getDescription();
+        if (description == null || !description.startsWith("[")) {
+            return Collections.emptyList();
+        }
+        // The description is the tag list as formatted by List.toString, possibly cut short; drop a partial last tag
+        final boolean complete = description.endsWith("]");
+        final List<String> tags = Lists.newArrayList(Splitter.on(',')
+                .trimResults()
+                .omitEmptyStrings()
+                .split(description.substring(1, complete ? description.length() - 1 : description.length())));
+        if (!complete && !tags.isEmpty()) {
+            tags.remove(tags.size() - 1);
+        }
+        return tags;
+    }
+
+    private static String getImageRepository(final String registryUrl, final PackageVersion packageVersion) {
+        final String name = packageVersion.getPkg().getName();
+        final String authority = URI.create(registryUrl).getAuthority();
+        return authority == null ? name : authority + "/" + name;
+    }
+
     private static final class LoggerToParent {
 
         private final ActorRef _parent;
@@ -29,9 +29,10 @@ public interface HostDeploymentFactory {
      * Create a roller deployment.
      *
      * @param host the host to deploy to
+     * @param deployment the deployment spec
      * @return a new host deployment strategy
      */
-    Roller createRoller(Host host);
+    Roller createRoller(Host host, Deployment deployment);
 
     /**
      * Create a docker deployment.
@@ -49,4 +50,13 @@ public interface HostDeploymentFactory {
      * @return a new host deployment strategy
      */
     Rpm createRpm(Host host, Deployment deployment);
+
+    /**
+     * Create a prefetch of the artifacts of a deployment.
+     *
+     * @param host the host to download to
+     * @param deployment the deployment spec
+     * @return a new host prefetch
+     */
+    Prefetch createPrefetch(Host host, Deployment deployment);
 }
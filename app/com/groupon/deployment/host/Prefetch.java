@@ -0,0 +1,175 @@
+/**
+ * Copyright 2021 Brandon Arp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.groupon.deployment.host;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import client.DeploymentClientFactory;
+import client.DockerDeploymentClient;
+import client.docker.ImageInspectionCache;
+import com.arpnetworking.steno.LoggerFactory;
+import com.google.inject.assistedinject.Assisted;
+import com.google.inject.assistedinject.AssistedInject;
+import com.groupon.deployment.DeploymentLogWriter;
+import com.groupon.deployment.HostDeploymentNotifications;
+import com.groupon.deployment.SshCommandExecutor;
+import com.groupon.deployment.SshSessionFactory;
+import com.typesafe.config.Config;
+import models.Deployment;
+import models.EnvironmentType;
+import models.Host;
+import models.Manifest;
+import net.schmizz.sshj.SSHClient;
+
+import java.io.IOException;
+import java.util.List;
+import javax.inject.Named;
+
+/**
+ * Downloads the artifacts of a deployment to a host without activating them, so that the cutover only has
+ * to switch versions.  RPM hosts download the packages into the yum cache, Docker hosts pull the images.
+ * Roller hosts have no separate download step and complete immediately.
+ *
+ * @author Brandon Arp (brandon dot arp at inscopemetrics dot com)
+ */
+public class Prefetch extends AbstractActor {
+    /**
+     * Public constructor.
+     *
+     * @param host host to download to
+     * @param deployment the deployment spec
+     * @param sshFactory factory for ssh connections
+     * @param dcf deployment client factory
+     * @param registryUrl url of the docker registry the images are pulled from
+     * @param inspectionCache the image inspections shared by the docker deployments
+     * @param config artemis configuration
+     * @param logWriter the deployment log writer
+     */
+    @AssistedInject
+    public Prefetch(
+            @Assisted final Host host,
+            @Assisted final Deployment deployment,
+            final SshSessionFactory sshFactory,
+            final DeploymentClientFactory dcf,
+            @Named("DockerRegistryUrl") final String registryUrl,
+            final ImageInspectionCache inspectionCache,
+            final Config config,
+            final DeploymentLogWriter logWriter) {
+        _host = host;
+        _deployment = deployment;
+        _sshFactory = sshFactory;
+        _dcf = dcf;
+        _registryUrl = registryUrl;
+        _inspectionCache = inspectionCache;
+        _parent = context().parent();
+        _self = self();
+        _logWriter = logWriter;
+        _executor = new SshCommandExecutor(this::log, config);
+        self().tell("start", self());
+    }
+
+    @Override
+    public Receive createReceive() {
+        return receiveBuilder()
+                .matchEquals("start", msg -> prefetch())
+                .build();
+    }
+
+    private void prefetch() {
+        final EnvironmentType environmentType = _deployment.getManifestHistory()
+                .getStage()
+                .getEnvironment()
+                .getEnvironmentType();
+        try {
+            switch (environmentType) {
+                case RPM:
+                    prefetchRpm();
+                    break;
+                case DOCKER:
+                    prefetchDocker();
+                    break;
+                default:
+                    break;
+            }
+            _parent.tell(new HostDeploymentNotifications.PrefetchCompleted(_host, null), _self);
+            // CHECKSTYLE.OFF: IllegalCatch - we need to catch everything, we'll record it and die
+        } catch (final IOException | RuntimeException e) {
+            // CHECKSTYLE.ON: IllegalCatch
+            _parent.tell(new HostDeploymentNotifications.PrefetchCompleted(_host, e), _self);
+        }
+    }
+
+    private void prefetchRpm() throws IOException {
+        try (SSHClient sshClient = _sshFactory.create(_host.getName())) {
+            final RpmPlan plan = RpmPlan.create(sshClient, _executor, _deployment.getManifestHistory().getManifest().asPackageMap());
+            if (plan.isEmpty()) {
+                log("All packages are at the deployment versions, nothing to download");
+                return;
+            }
+            _executor.executeRequired(sshClient, "sudo -n yum clean expire-cache", "yum", true);
+            executeDownload(sshClient, plan, "install", plan.getInstallTargets());
+            executeDownload(sshClient, plan, "update", plan.getUpdateTargets());
+            executeDownload(sshClient, plan, "downgrade", plan.getDowngradeTargets());
+        }
+    }
+
+    private void executeDownload(
+            final SSHClient sshClient,
+            final RpmPlan plan,
+            final String operation,
+            final List<String> targetList)
+            throws IOException {
+        if (!targetList.isEmpty()) {
+            _executor.executeRequired(
+                    sshClient,
+                    String.format("sudo -n yum %s --downloadonly -y %s 2>&1", operation, plan.toYumArguments(targetList)),
+                    "yum download",
+                    true);
+        }
+    }
+
+    private void prefetchDocker() throws IOException {
+        final Manifest manifest = _deployment.getManifestHistory().getManifest();
+        final DockerDeploymentClient client = _dcf.createDockerClient(_sshFactory.create(_host.getName()));
+        try {
+            Docker.pullImagesCb(manifest, client, _registryUrl, _inspectionCache, this::log);
+        } finally {
+            client.shutdown();
+        }
+    }
+
+    private void log(final String line) {
+        LOGGER.debug()
+                .setMessage("Prefetch log")
+                .addData("host", _host.getName())
+                .addData("line", line)
+                .log();
+        // Written to the bounded queue directly, not through the parent, so the command output is backpressured
+        _logWriter.write(_deployment, _host, line);
+    }
+
+    private final Host _host;
+    private final Deployment _deployment;
+    private final SshSessionFactory _sshFactory;
+    private final DeploymentClientFactory _dcf;
+    private final String _registryUrl;
+    private final ImageInspectionCache _inspectionCache;
+    private final SshCommandExecutor _executor;
+    private final ActorRef _parent;
+    private final ActorRef _self;
+    private final DeploymentLogWriter _logWriter;
+    private static final com.arpnetworking.steno.Logger LOGGER = LoggerFactory.getLogger(Prefetch.class);
+}
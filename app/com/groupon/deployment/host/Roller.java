@@ -17,21 +17,20 @@ package com.groupon.deployment.host;
 
 import akka.actor.AbstractActor;
 import com.arpnetworking.steno.LoggerFactory;
-import com.google.common.base.Charsets;
 import com.google.inject.assistedinject.Assisted;
 import com.google.inject.assistedinject.AssistedInject;
+import com.groupon.deployment.DeploymentLogWriter;
 import com.groupon.deployment.HostDeploymentNotifications;
+import com.groupon.deployment.SshCommandExecutor;
 import com.groupon.deployment.SshSessionFactory;
 import com.typesafe.config.Config;
+import models.Deployment;
 import models.Host;
 import net.schmizz.sshj.SSHClient;
-import net.schmizz.sshj.connection.channel.direct.Session;
 import play.Logger;
+import utils.HostUtil;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.util.concurrent.TimeUnit;
 
 /**
  * Roller deployment actor.
@@ -43,17 +42,24 @@ public class Roller extends AbstractActor {
      * Public constructor.
      *
      * @param host host to deploy to
+     * @param deployment the deployment spec
      * @param sshFactory factory for ssh connections
      * @param config artemis configuration
+     * @param logWriter the deployment log writer
      */
     @AssistedInject
     public Roller(
             @Assisted final Host host,
+            @Assisted final Deployment deployment,
             final SshSessionFactory sshFactory,
-            final Config config) {
+            final Config config,
+            final DeploymentLogWriter logWriter) {
         _host = host;
+        _deployment = deployment;
         _sshFactory = sshFactory;
         _config = config;
+        _logWriter = logWriter;
+        _executor = new SshCommandExecutor(this::log, config);
         LOGGER.info()
                 .setMessage("Started roller deployment actor for host")
                 .addData("host", host.getName())
@@ -66,7 +72,7 @@ public class Roller extends AbstractActor {
     public Receive createReceive() {
         return receiveBuilder()
                 .matchEquals("start", start -> {
-                    final String dc = _host.getName().substring(_host.getName().lastIndexOf('.') + 1);
+                    final String dc = HostUtil.getDatacenter(_host.getName());
                     String baseUrl = _config.getString("roller.artemisBaseUrl." + dc);
                     if (baseUrl == null) {
                         baseUrl = _config.getString("roller.artemisBaseUrl.default");
@@ -75,16 +81,16 @@ public class Roller extends AbstractActor {
                     try (SSHClient sshClient = _sshFactory.create(_host.getName())) {
 
                         // Pre-roll scripts
-                        executeCommand(sshClient, "sudo /usr/local/bin/beforeRoll 2>&1");
+                        _executor.execute(sshClient, "sudo /usr/local/bin/beforeRoll 2>&1", false);
 
                         // Roll
-                        executeRequired(sshClient, "sudo /var/tmp/roll --baseurl " + baseUrl + " 2>&1", "roller");
+                        _executor.executeRequired(sshClient, "sudo /var/tmp/roll --baseurl " + baseUrl + " 2>&1", "roller", false);
 
                         // Verify
-                        executeRequired(sshClient, "sudo /usr/local/bin/verifyRoll 2>&1", "verify roll script");
+                        _executor.executeRequired(sshClient, "sudo /usr/local/bin/verifyRoll 2>&1", "verify roll script", false);
 
                         // Post-roll scripts
-                        executeRequired(sshClient, "sudo /usr/local/bin/afterRoll 2>&1", "post-roll script");
+                        _executor.executeRequired(sshClient, "sudo /usr/local/bin/afterRoll 2>&1", "post-roll script", false);
 
                         context().parent().tell(new HostDeploymentNotifications.DeploymentSucceeded(_host), self());
                         // CHECKSTYLE.OFF: IllegalCatch - we need to catch everything, we'll record it and die
@@ -96,36 +102,16 @@ public class Roller extends AbstractActor {
                 .build();
     }
 
-    private void executeRequired(final SSHClient sshClient, final String commandString, final String description) throws IOException {
-        final Integer exitStatus;
-        exitStatus = executeCommand(sshClient, commandString);
-        if (exitStatus == null || exitStatus != 0) {
-            throw new IllegalStateException(description + " exit code was " + exitStatus);
-        }
-    }
-
-    private Integer executeCommand(final SSHClient sshClient, final String commandString) throws IOException {
-        context().parent().tell(new HostDeploymentNotifications.DeploymentLog(_host, "Executing '" + commandString + "'"), self());
-        final Integer exitStatus;
-        try (Session session = sshClient.startSession();
-                Session.Command command = session.exec(commandString);
-                BufferedReader error = new BufferedReader(new InputStreamReader(command.getErrorStream(), Charsets.UTF_8));
-                BufferedReader reader = new BufferedReader(new InputStreamReader(command.getInputStream(), Charsets.UTF_8))) {
-            String line = reader.readLine();
-            while (line != null) {
-                LOGGER.info("***" + line);
-                context().parent().tell(new HostDeploymentNotifications.DeploymentLog(_host, line), self());
-                line = reader.readLine();
-            }
-            command.join(30, TimeUnit.SECONDS);
-            session.join(30, TimeUnit.SECONDS);
-            exitStatus = command.getExitStatus();
-        }
-        return exitStatus;
+    private void log(final String line) {
+        // Written to the bounded queue directly, not through the parent, so the command output is backpressured
+        _logWriter.write(_deployment, _host, line);
     }
 
     private final Host _host;
+    private final Deployment _deployment;
     private final SshSessionFactory _sshFactory;
     private final Config _config;
+    private final SshCommandExecutor _executor;
+    private final DeploymentLogWriter _logWriter;
     private static final com.arpnetworking.steno.Logger LOGGER = LoggerFactory.getLogger(Roller.class);
 }
@@ -17,28 +17,24 @@ package com.groupon.deployment.host;
 
 import akka.actor.AbstractActor;
 import com.arpnetworking.steno.LoggerFactory;
-import com.google.common.base.Charsets;
-import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
 import com.google.inject.assistedinject.Assisted;
 import com.google.inject.assistedinject.AssistedInject;
+import com.groupon.deployment.DeploymentLogWriter;
 import com.groupon.deployment.HostDeploymentNotifications;
+import com.groupon.deployment.HostInventory;
+import com.groupon.deployment.SshCommandExecutor;
 import com.groupon.deployment.SshSessionFactory;
+import com.groupon.deployment.fleet.FleetDeploymentSettings;
 import com.typesafe.config.Config;
 import models.Deployment;
 import models.Host;
 import models.PackageVersion;
 import net.schmizz.sshj.SSHClient;
-import net.schmizz.sshj.connection.channel.direct.Session;
-import play.Logger;
-import utils.RpmVersionComparator;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 /**
  * RPM deployment actor.
@@ -53,16 +49,26 @@ public class Rpm extends AbstractActor {
      * @param deployment the deployment spec
      * @param sshFactory factory for ssh connections
      * @param config artemis configuration
+     * @param inventory the host package inventory
+     * @param logWriter the deployment log writer
      */
     @AssistedInject
     public Rpm(
             @Assisted final Host host,
             @Assisted final Deployment deployment,
             final SshSessionFactory sshFactory,
-            final Config config) {
+            final Config config,
+            final HostInventory inventory,
+            final DeploymentLogWriter logWriter) {
         _host = host;
         _deployment = deployment;
         _sshFactory = sshFactory;
+        _logWriter = logWriter;
+        _executor = new SshCommandExecutor(this::log, config);
+        _singleTransaction = config.getBoolean("artemis.rpm.singleTransaction");
+        _inventory = inventory;
+        _skipConverged = config.getBoolean("artemis.inventory.enabled")
+                && FleetDeploymentSettings.forDeployment(deployment, config).isSkipConverged();
         LOGGER.info()
                 .setMessage("Started rpm deployment actor for host")
                 .addData("host", host.getName())
@@ -79,43 +85,45 @@ public class Rpm extends AbstractActor {
     }
 
     private void deploy() {
+        final Map<String, PackageVersion> deploymentMap = _deployment.getManifestHistory().getManifest().asPackageMap();
+        if (_skipConverged && isConverged(deploymentMap)) {
+            // Re-running a partially failed deployment only touches the hosts that did not get there
+            log("Host inventory shows all packages at the manifest versions, skipping the host");
+            context().parent().tell(new HostDeploymentNotifications.DeploymentSucceeded(_host), self());
+            return;
+        }
         try (SSHClient sshClient = _sshFactory.create(_host.getName())) {
-            final Map<String, PackageVersion> deploymentMap = _deployment.getManifestHistory().getManifest().asPackageMap();
             // Yum install
-            final Map<String, String> installedPackages = getInstalledPackages(sshClient, deploymentMap);
+            final Map<String, String> installed = RpmPlan.getInstalledPackages(sshClient, _executor, deploymentMap.keySet());
+            final RpmPlan plan = RpmPlan.create(deploymentMap, installed);
+            // One message for the whole plan rather than a log row per package
+            log(String.format(
+                    "Package plan; packages=%d, install=%d, upgrade=%d, downgrade=%d\n%s",
+                    deploymentMap.size(),
+                    plan.getInstallTargets().size(),
+                    plan.getUpdateTargets().size(),
+                    plan.getDowngradeTargets().size(),
+                    String.join("\n", plan.getChanges())));
 
-            final List<String> installTargets = Lists.newArrayList();
-            final List<String> updateTargets = Lists.newArrayList();
-            final List<String> downgradeTargets = Lists.newArrayList();
-            for (final Map.Entry<String, PackageVersion> entry : deploymentMap.entrySet()) {
-                final String pkg = entry.getKey();
-                final String newVersion = entry.getValue().getVersion();
-                final String oldVersion = installedPackages.get(pkg);
-                final String line;
-                if (oldVersion != null) {
-                    final int comparison = RPM_VERSION_COMPARATOR.compare(oldVersion, newVersion);
-                    if (comparison < 0) {
-                        line = String.format("upgrade package %s from %s to %s", pkg, oldVersion, newVersion);
-                        updateTargets.add(pkg);
-                    } else if (comparison > 0) {
-                        line = String.format("downgrade package %s from %s to %s", pkg, oldVersion, newVersion);
-                        downgradeTargets.add(pkg);
-                    } else {
-                        line = String.format("package %s version not changing", pkg);
-                    }
+            if (plan.isEmpty()) {
+                log("All packages are at the manifest versions");
+                recordInventory(installed);
+            } else {
+                if (_singleTransaction) {
+                    executeYumShell(sshClient, plan);
                 } else {
-                    line = String.format("installing package %s version %s", pkg, newVersion);
-                    installTargets.add(pkg);
+                    _executor.executeRequired(sshClient, "sudo -n yum clean expire-cache", "yum", true);
+                    executeYum(sshClient, plan, "install", plan.getInstallTargets());
+                    executeYum(sshClient, plan, "downgrade", plan.getDowngradeTargets());
+                    executeYum(sshClient, plan, "update", plan.getUpdateTargets());
+                }
+                // Record what the host ended up with rather than what the manifest asked for
+                final Map<String, String> deployed = RpmPlan.getInstalledPackages(sshClient, _executor, deploymentMap.keySet());
+                recordInventory(deployed);
+                if (_singleTransaction) {
+                    checkConverged(deploymentMap, deployed);
                 }
-                context().parent().tell(new HostDeploymentNotifications.DeploymentLog(_host, line), self());
-            }
-
-            if (installTargets.size() > 0 || downgradeTargets.size() > 0 || updateTargets.size() > 0) {
-                executeRequired(sshClient, "sudo -n yum clean expire-cache", "yum");
             }
-            executeYum(sshClient, deploymentMap, "install", installTargets);
-            executeYum(sshClient, deploymentMap, "downgrade", downgradeTargets);
-            executeYum(sshClient, deploymentMap, "update", updateTargets);
 
             context().parent().tell(new HostDeploymentNotifications.DeploymentSucceeded(_host), self());
             // CHECKSTYLE.OFF: IllegalCatch - we need to catch everything, we'll record it and die
@@ -127,88 +135,83 @@ public class Rpm extends AbstractActor {
 
     private void executeYum(
             final SSHClient sshClient,
-            final Map<String, PackageVersion> deploymentMap,
+            final RpmPlan plan,
             final String operation,
             final List<String> targetList)
             throws IOException {
         if (targetList.size() > 0) {
-            final String installString = targetList.stream()
-                    .map(pkg -> String.format("%s-%s", pkg, deploymentMap.get(pkg).getVersion()))
-                    .reduce("", (a, b) -> String.format("%s %s", a, b));
-            executeRequired(sshClient, String.format("sudo -n yum %s -y %s 2>&1", operation, installString), "yum");
+            _executor.executeRequired(
+                    sshClient,
+                    String.format("sudo -n yum %s -y %s 2>&1", operation, plan.toYumArguments(targetList)),
+                    "yum",
+                    true);
         }
     }
 
-    private void executeRequired(final SSHClient sshClient, final String commandString, final String description) throws IOException {
-        final Integer exitStatus;
-        exitStatus = executeCommand(sshClient, commandString);
-        if (exitStatus == null || exitStatus != 0) {
-            throw new IllegalStateException(description + " exit code was " + exitStatus);
+    private void executeYumShell(final SSHClient sshClient, final RpmPlan plan) throws IOException {
+        final String script = plan.toYumShellScript().stream()
+                .map(RpmPlan::shellQuote)
+                .collect(Collectors.joining(" "));
+        _executor.executeRequired(
+                sshClient,
+                String.format("printf '%%s\\n' %s | sudo -n yum -y shell 2>&1", script),
+                "yum shell",
+                false);
+    }
+
+    private static void checkConverged(final Map<String, PackageVersion> deploymentMap, final Map<String, String> installed) {
+        // yum shell reports a command it cannot resolve but still runs the rest, make sure the host converged
+        final RpmPlan remaining = RpmPlan.create(deploymentMap, installed);
+        if (!remaining.isEmpty()) {
+            throw new IllegalStateException(String.format(
+                    "Packages not at the manifest versions after the yum transaction; install=%s, downgrade=%s, update=%s",
+                    remaining.getInstallTargets(),
+                    remaining.getDowngradeTargets(),
+                    remaining.getUpdateTargets()));
         }
     }
 
-    private Integer executeCommand(final SSHClient sshClient, final String commandString) throws IOException {
-        context().parent().tell(new HostDeploymentNotifications.DeploymentLog(_host, "Executing '" + commandString + "'"), self());
-        final Integer exitStatus;
-        try (Session session = sshClient.startSession()) {
-            session.allocateDefaultPTY();
-            try (
-                Session.Command command = session.exec(commandString);
-                BufferedReader error = new BufferedReader(new InputStreamReader(command.getErrorStream(), Charsets.UTF_8));
-                BufferedReader reader = new BufferedReader(new InputStreamReader(command.getInputStream(), Charsets.UTF_8))) {
-                String line = reader.readLine();
-                while (line != null) {
-                    LOGGER.info("***" + line);
-                    context().parent().tell(new HostDeploymentNotifications.DeploymentLog(_host, line), self());
-                    line = reader.readLine();
-                }
-                command.join(30, TimeUnit.SECONDS);
-                session.join(30, TimeUnit.SECONDS);
-                exitStatus = command.getExitStatus();
-            }
+    private boolean isConverged(final Map<String, PackageVersion> deploymentMap) {
+        // CHECKSTYLE.OFF: IllegalCatch - without the inventory the host is simply deployed
+        try {
+            return _inventory.isRpmConverged(_host, deploymentMap);
+        } catch (final RuntimeException e) {
+            // CHECKSTYLE.ON: IllegalCatch
+            LOGGER.warn()
+                    .setMessage("Failed to read the host inventory")
+                    .addData("host", _host.getName())
+                    .setThrowable(e)
+                    .log();
+            return false;
         }
-        return exitStatus;
     }
 
-    private Map<String, String> getInstalledPackages(
-            final SSHClient sshClient,
-            final Map<String, PackageVersion> deployVersions)
-            throws IOException {
-        final String commandString = "rpm -qa --queryformat \"%{NAME} %{VERSION} %{RELEASE}\\n\"";
-        final Map<String, String> versions = Maps.newHashMap();
-        context().parent().tell(new HostDeploymentNotifications.DeploymentLog(_host, "Executing '" + commandString + "'"), self());
-        final Integer exitStatus;
-        try (Session session = sshClient.startSession();
-             Session.Command command = session.exec(commandString);
-             BufferedReader error = new BufferedReader(new InputStreamReader(command.getErrorStream(), Charsets.UTF_8));
-             BufferedReader reader = new BufferedReader(new InputStreamReader(command.getInputStream(), Charsets.UTF_8))) {
-            String line = reader.readLine();
-            while (line != null) {
-                final String[] split = line.split(" ", 3);
-                if (split.length == 3) {
-                    final String name = split[0];
-                    final String version = split[1] + "-" + split[2];
-                    if (deployVersions.containsKey(name)) {
-                        versions.put(name, version);
-                    }
-                }
-                LOGGER.info("***" + line);
-                context().parent().tell(new HostDeploymentNotifications.DeploymentLog(_host, line), self());
-                line = reader.readLine();
-            }
-            command.join(30, TimeUnit.SECONDS);
-            session.join(30, TimeUnit.SECONDS);
-            exitStatus = command.getExitStatus();
-            if (exitStatus == null || exitStatus != 0) {
-                throw new IllegalStateException("package lookup exit code was " + exitStatus);
-            }
+    private void recordInventory(final Map<String, String> installed) {
+        // CHECKSTYLE.OFF: IllegalCatch - a failure to record must not fail the deployment
+        try {
+            _inventory.recordRpm(_host, installed);
+        } catch (final RuntimeException e) {
+            // CHECKSTYLE.ON: IllegalCatch
+            LOGGER.warn()
+                    .setMessage("Failed to record the host inventory")
+                    .addData("host", _host.getName())
+                    .setThrowable(e)
+                    .log();
         }
-        return versions;
+    }
+
+    private void log(final String line) {
+        // Written to the bounded queue directly, not through the parent, so the command output is backpressured
+        _logWriter.write(_deployment, _host, line);
     }
 
     private final Host _host;
     private final Deployment _deployment;
     private final SshSessionFactory _sshFactory;
-    private static final RpmVersionComparator RPM_VERSION_COMPARATOR = new RpmVersionComparator();
+    private final SshCommandExecutor _executor;
+    private final boolean _singleTransaction;
+    private final boolean _skipConverged;
+    private final HostInventory _inventory;
+    private final DeploymentLogWriter _logWriter;
     private static final com.arpnetworking.steno.Logger LOGGER = LoggerFactory.getLogger(Rpm.class);
 }
@@ -0,0 +1,235 @@
+/**
+ * Copyright 2021 Brandon Arp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.groupon.deployment.host;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.groupon.deployment.SshCommandExecutor;
+import models.PackageVersion;
+import net.schmizz.sshj.SSHClient;
+import utils.RpmVersionComparator;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * The packages to install, upgrade and downgrade on a host to bring it to the versions of a manifest.
+ *
+ * @author Brandon Arp (brandon dot arp at inscopemetrics dot com)
+ */
+public final class RpmPlan {
+    /**
+     * Queries the installed versions of the packages in a manifest and plans the changes to the host.
+     *
+     * @param sshClient the ssh client connected to the host
+     * @param executor the command executor
+     * @param deploymentMap the manifest packages by name
+     * @return the plan
+     * @throws IOException on ssh errors
+     */
+    public static RpmPlan create(
+            final SSHClient sshClient,
+            final SshCommandExecutor executor,
+            final Map<String, PackageVersion> deploymentMap)
+            throws IOException {
+        return create(deploymentMap, getInstalledPackages(sshClient, executor, deploymentMap.keySet()));
+    }
+
+    /**
+     * Plans the changes to a host given the installed versions of the packages.
+     *
+     * @param deploymentMap the manifest packages by name
+     * @param installedPackages the installed versions of the packages by name
+     * @return the plan
+     */
+    public static RpmPlan create(final Map<String, PackageVersion> deploymentMap, final Map<String, String> installedPackages) {
+        final List<String> installTargets = Lists.newArrayList();
+        final List<String> updateTargets = Lists.newArrayList();
+        final List<String> downgradeTargets = Lists.newArrayList();
+        final List<String> changes = Lists.newArrayList();
+        for (final Map.Entry<String, PackageVersion> entry : deploymentMap.entrySet()) {
+            final String pkg = entry.getKey();
+            final String newVersion = entry.getValue().getVersion();
+            final String oldVersion = installedPackages.get(pkg);
+            if (oldVersion != null) {
+                final int comparison = RPM_VERSION_COMPARATOR.compare(oldVersion, newVersion);
+                if (comparison < 0) {
+                    changes.add(String.format("upgrade package %s from %s to %s", pkg, oldVersion, newVersion));
+                    updateTargets.add(pkg);
+                } else if (comparison > 0) {
+                    changes.add(String.format("downgrade package %s from %s to %s", pkg, oldVersion, newVersion));
+                    downgradeTargets.add(pkg);
+                } else {
+                    changes.add(String.format("package %s version not changing", pkg));
+                }
+            } else {
+                changes.add(String.format("installing package %s version %s", pkg, newVersion));
+                installTargets.add(pkg);
+            }
+        }
+        return new RpmPlan(deploymentMap, installTargets, updateTargets, downgradeTargets, changes);
+    }
+
+    public List<String> getInstallTargets() {
+        return _installTargets;
+    }
+
+    public List<String> getUpdateTargets() {
+        return _updateTargets;
+    }
+
+    public List<String> getDowngradeTargets() {
+        return _downgradeTargets;
+    }
+
+    /**
+     * Gets a human readable line for each package in the manifest describing what will happen to it.
+     *
+     * @return the change descriptions
+     */
+    public List<String> getChanges() {
+        return _changes;
+    }
+
+    /**
+     * Checks if the host already has the versions of the manifest.
+     *
+     * @return true if nothing needs to be installed, upgraded or downgraded
+     */
+    public boolean isEmpty() {
+        return _installTargets.isEmpty() && _updateTargets.isEmpty() && _downgradeTargets.isEmpty();
+    }
+
+    /**
+     * Builds the yum arguments for a list of targets, pinning each package to its manifest version.
+     *
+     * @param targets the package names
+     * @return the space separated name-version arguments
+     */
+    public String toYumArguments(final List<String> targets) {
+        return targets.stream()
+                .map(pkg -> String.format("%s-%s", pkg, _deploymentMap.get(pkg).getVersion()))
+                .collect(Collectors.joining(" "));
+    }
+
+    /**
+     * Builds a yum shell script that applies the whole plan as one transaction: the repository metadata is
+     * refreshed once and the installs, downgrades and upgrades are resolved and applied together.  yum shell
+     * still runs the transaction when one of the commands cannot be resolved, e.g. a version missing from the
+     * repositories, so the caller has to check the installed versions afterwards.
+     *
+     * @return the yum shell commands, one per line
+     */
+    public List<String> toYumShellScript() {
+        final List<String> script = Lists.newArrayList();
+        script.add("clean expire-cache");
+        if (!_installTargets.isEmpty()) {
+            script.add("install " + toYumArguments(_installTargets));
+        }
+        if (!_downgradeTargets.isEmpty()) {
+            script.add("downgrade " + toYumArguments(_downgradeTargets));
+        }
+        if (!_updateTargets.isEmpty()) {
+            script.add("update " + toYumArguments(_updateTargets));
+        }
+        script.add("run");
+        return script;
+    }
+
+    /**
+     * Queries the installed versions of a set of packages.  Only the named packages are looked up, the rpmdb is
+     * never listed in full.
+     *
+     * @param sshClient the ssh client connected to the host
+     * @param executor the command executor
+     * @param names the package names
+     * @return the newest installed version of each installed package, by name
+     * @throws IOException on ssh errors
+     */
+    public static Map<String, String> getInstalledPackages(
+            final SSHClient sshClient,
+            final SshCommandExecutor executor,
+            final Set<String> names)
+            throws IOException {
+        final Map<String, String> versions = Maps.newHashMap();
+        if (names.isEmpty()) {
+            return versions;
+        }
+        // Only ask about the packages in the manifest, rather than listing the whole rpmdb
+        final String command = INSTALLED_PACKAGES_COMMAND + names.stream()
+                .map(RpmPlan::shellQuote)
+                .collect(Collectors.joining(" "));
+        final List<String> notInstalled = Lists.newArrayList();
+        final Integer exitStatus = executor.query(sshClient, command, line -> {
+            if (line.startsWith(INSTALLED_MARKER)) {
+                final String[] split = line.substring(INSTALLED_MARKER.length()).split(" ", 3);
+                if (split.length == 3 && names.contains(split[0])) {
+                    // Several versions can be installed side by side, the newest one is the one to compare
+                    versions.merge(
+                            split[0],
+                            split[1] + "-" + split[2],
+                            (a, b) -> RPM_VERSION_COMPARATOR.compare(a, b) >= 0 ? a : b);
+                }
+            } else if (line.endsWith(NOT_INSTALLED_SUFFIX)) {
+                notInstalled.add(line);
+            }
+        });
+        // rpm exits with the number of packages it did not find
+        if (exitStatus == null || (exitStatus != 0 && notInstalled.isEmpty())) {
+            throw new IllegalStateException("package lookup exit code was " + exitStatus);
+        }
+        return versions;
+    }
+
+    /**
+     * Quotes a value as a single shell word.
+     *
+     * @param value the value
+     * @return the value in single quotes, with its single quotes escaped
+     */
+    static String shellQuote(final String value) {
+        return "'" + value.replace("'", "'\\''") + "'";
+    }
+
+    private RpmPlan(
+            final Map<String, PackageVersion> deploymentMap,
+            final List<String> installTargets,
+            final List<String> updateTargets,
+            final List<String> downgradeTargets,
+            final List<String> changes) {
+        _deploymentMap = deploymentMap;
+        _installTargets = Collections.unmodifiableList(installTargets);
+        _updateTargets = Collections.unmodifiableList(updateTargets);
+        _downgradeTargets = Collections.unmodifiableList(downgradeTargets);
+        _changes = Collections.unmodifiableList(changes);
+    }
+
+    private final Map<String, PackageVersion> _deploymentMap;
+    private final List<String> _installTargets;
+    private final List<String> _updateTargets;
+    private final List<String> _downgradeTargets;
+    private final List<String> _changes;
+
+    private static final String INSTALLED_MARKER = "installed ";
+    private static final String NOT_INSTALLED_SUFFIX = " is not installed";
+    private static final String INSTALLED_PACKAGES_COMMAND =
+            "rpm -q --queryformat '" + INSTALLED_MARKER + "%{NAME} %{VERSION} %{RELEASE}\\n' ";
+    private static final RpmVersionComparator RPM_VERSION_COMPARATOR = new RpmVersionComparator();
+}
@@ -18,10 +18,13 @@ package com.groupon.guice.akka;
 import akka.actor.Actor;
 import akka.actor.ActorRef;
 import akka.actor.ActorSystem;
+import akka.actor.Props;
 import com.arpnetworking.commons.akka.GuiceActorCreator;
 import com.google.inject.Injector;
 import com.google.inject.Provider;
 
+import javax.annotation.Nullable;
+
 /**
  * Base class for creating a root level actor to reduce boilerplate.
  *
@@ -41,19 +44,43 @@ public abstract class RootActorProvider implements Provider<ActorRef> {
             final Injector injector,
             final Class<? extends Actor> clazz,
             final String name) {
+        this(system, injector, clazz, name, null);
+    }
+
+    /**
+     * Public constructor for an actor that runs on its own dispatcher.
+     *
+     * @param system the actor system
+     * @param injector the guice injector
+     * @param clazz the class of actor to create
+     * @param name the actor's name
+     * @param dispatcher id of the dispatcher to run the actor on, null for the default dispatcher
+     */
+    public RootActorProvider(
+            final ActorSystem system,
+            final Injector injector,
+            final Class<? extends Actor> clazz,
+            final String name,
+            @Nullable final String dispatcher) {
         _system = system;
         _injector = injector;
         _clazz = clazz;
         _name = name;
+        _dispatcher = dispatcher;
     }
 
     @Override
     public ActorRef get() {
-        return _system.actorOf(GuiceActorCreator.props(_injector, _clazz), _name);
+        Props props = GuiceActorCreator.props(_injector, _clazz);
+        if (_dispatcher != null) {
+            props = props.withDispatcher(_dispatcher);
+        }
+        return _system.actorOf(props, _name);
     }
 
     private final ActorSystem _system;
     private final Injector _injector;
     private final Class<? extends Actor> _clazz;
     private final String _name;
+    private final String _dispatcher;
 }
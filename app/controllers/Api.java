@@ -81,6 +81,53 @@ public interface Api {
      */
     CompletionStage<Result> deploymentLog(long deploymentId, final Http.Request request);
 
+    /**
+     * Searches the deployment logs.  Empty or zero filters are ignored.
+     *
+     * @param query the text to search for, every term must match
+     * @param deploymentId only search this deployment
+     * @param host only search the log messages of this host
+     * @param environment only search deployments to this environment
+     * @param stage only search deployments to this stage
+     * @param from only search log messages at or after this ISO 8601 time
+     * @param to only search log messages before this ISO 8601 time
+     * @param before the cursor returned with the previous page
+     * @param limit the page size
+     * @param request
+     * @return an http response
+     */
+    CompletionStage<Result> deploymentLogSearch(
+            String query,
+            long deploymentId,
+            String host,
+            String environment,
+            String stage,
+            String from,
+            String to,
+            long before,
+            int limit,
+            final Http.Request request);
+
+    /**
+     * Gets the drift report: how the hosts differ from the current manifests of their stages, as of the last
+     * inventory scan.  Empty filters are ignored.
+     *
+     * @param environment only the stages of this environment
+     * @param stage only this stage
+     * @param host only this host
+     * @param drifted true to only return the hosts that differ from the manifest
+     * @param limit the most results to return
+     * @param request
+     * @return an http response
+     */
+    CompletionStage<Result> driftReport(
+            String environment,
+            String stage,
+            String host,
+            boolean drifted,
+            int limit,
+            Http.Request request);
+
     /**
      * Gets a list of packages in a manifest version.
      *
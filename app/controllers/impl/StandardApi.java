@@ -18,9 +18,10 @@ package controllers.impl;
 import actors.DeployLogRelay;
 import akka.actor.ActorRef;
 import akka.actor.ActorSystem;
+import akka.actor.Status;
 import akka.pattern.Patterns;
 import akka.pattern.PatternsCS;
-import akka.stream.OverflowStrategy;
+import akka.stream.CompletionStrategy;
 import akka.stream.javadsl.Source;
 import akka.util.ByteString;
 import akka.util.Timeout;
@@ -30,17 +31,25 @@ import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.groupon.akka.Dispatchers;
+import com.groupon.deployment.DeploymentLogArchive;
 import com.groupon.deployment.FleetDeploymentCommands;
 import controllers.Api;
 import models.Deployment;
+import models.DeploymentLog;
+import models.DeploymentLogSearch;
 import models.Environment;
+import models.HostDrift;
 import models.Manifest;
 import models.ManifestHistory;
 import models.Package;
 import models.PackageVersion;
 import models.Stage;
+import net.sf.oval.exception.ConstraintsViolatedException;
+import org.joda.time.DateTime;
 import play.libs.Json;
 import play.mvc.Controller;
 import play.mvc.Http;
@@ -53,6 +62,7 @@ import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -69,12 +79,22 @@ public class StandardApi extends Controller implements Api {
      * Public constructor.
      *
      * @param deploymentManager the deployment manager
+     * @param deployLogHub the deployment log hub
+     * @param logArchive the archive of finished deployment logs
      * @param actorSystem the actor system to create actors in
      */
     @Inject
-    public StandardApi(@Named("DeployManager") final ActorRef deploymentManager, final ActorSystem actorSystem) {
+    public StandardApi(
+            @Named("DeployManager") final ActorRef deploymentManager,
+            @Named("DeployLogHub") final ActorRef deployLogHub,
+            final DeploymentLogArchive logArchive,
+            final ActorSystem actorSystem) {
         _deploymentManager = deploymentManager;
+        _deployLogHub = deployLogHub;
+        _logArchive = logArchive;
         _actorSystem = actorSystem;
+        // The searches block on the database, keep them off the dispatcher that serves requests
+        _databaseContext = actorSystem.dispatchers().lookup(Dispatchers.DATABASE);
     }
 
     @Override
@@ -221,17 +241,115 @@ public class StandardApi extends Controller implements Api {
             return CompletableFuture.completedFuture(notFound());
         }
 
-        final Source<ByteString, ?> source = Source.<String>actorRef((e) -> Optional.empty(), (e) -> Optional.empty(), 1024, OverflowStrategy.dropTail())
+        // Browsers send the id of the last event they saw when they reconnect, resume after it
+        final long lastEventId = request.getHeaders().get("Last-Event-ID")
+                .map(String::trim)
+                .filter(id -> id.matches("\\d{1,18}"))
+                .map(Long::parseLong)
+                .orElse(0L);
+        final Source<ByteString, ?> source = Source.<String>actorRefWithBackpressure(
+                DeployLogRelay.ACK,
+                message -> message instanceof Status.Success ? Optional.of(CompletionStrategy.draining()) : Optional.empty(),
+                message -> Optional.empty())
                 .map(ByteString::fromString)
                 .mapMaterializedValue(outRef -> {
-                    final ActorRef relayActor = _actorSystem.actorOf(DeployLogRelay.props(outRef, deploymentId));
-                    relayActor.tell(outRef, ActorRef.noSender());
+                    _actorSystem.actorOf(DeployLogRelay.props(outRef, deploymentId, lastEventId, _deployLogHub, _logArchive));
                     return outRef;
                 });
         return CompletableFuture.completedFuture(Results.ok().chunked(source).as("text/event-stream"));
     }
 
+    @Override
+    public CompletionStage<Result> deploymentLogSearch(
+            final String query,
+            final long deploymentId,
+            final String host,
+            final String environment,
+            final String stage,
+            final String from,
+            final String to,
+            final long before,
+            final int limit,
+            final Http.Request request) {
+        final DeploymentLogSearch search;
+        try {
+            search = new DeploymentLogSearch.Builder()
+                    .setText(query)
+                    .setDeploymentId(deploymentId > 0 ? deploymentId : null)
+                    .setHost(Strings.emptyToNull(host))
+                    .setEnvironment(Strings.emptyToNull(environment))
+                    .setStage(Strings.emptyToNull(stage))
+                    .setFrom(from.isEmpty() ? null : DateTime.parse(from))
+                    .setTo(to.isEmpty() ? null : DateTime.parse(to))
+                    .setBeforeId(before > 0 ? before : null)
+                    .setLimit(limit)
+                    .build();
+        } catch (final IllegalArgumentException | ConstraintsViolatedException e) {
+            return CompletableFuture.completedFuture(badRequest(e.getMessage()));
+        }
+
+        return CompletableFuture.supplyAsync(() -> {
+            final List<DeploymentLog> logs = DeploymentLog.search(search);
+            final ObjectNode node = Json.newObject();
+            final ArrayNode results = node.putArray("results");
+            for (final DeploymentLog log : logs) {
+                results.addObject()
+                        .put("id", log.getId())
+                        .put("deploymentId", log.getDeployment().getId())
+                        .put("host", Optional.ofNullable(log.getHost()).map(models.Host::getName).orElse("Deployment"))
+                        .put("timestamp", log.getLogTime().toString())
+                        .put("line", log.getMessage());
+            }
+            // A full page may be followed by more results, the cursor is the id of its last log message
+            if (logs.size() == search.getLimit()) {
+                node.put("next", logs.get(logs.size() - 1).getId());
+            } else {
+                node.putNull("next");
+            }
+            return ok(node);
+        }, _databaseContext);
+    }
+
+    @Override
+    public CompletionStage<Result> driftReport(
+            final String environment,
+            final String stage,
+            final String host,
+            final boolean drifted,
+            final int limit,
+            final Http.Request request) {
+        if (limit < 1 || limit > MAX_DRIFT_RESULTS) {
+            return CompletableFuture.completedFuture(badRequest("limit must be between 1 and " + MAX_DRIFT_RESULTS));
+        }
+        return CompletableFuture.supplyAsync(() -> {
+            final List<HostDrift> results = HostDrift.find(
+                    Strings.emptyToNull(environment),
+                    Strings.emptyToNull(stage),
+                    Strings.emptyToNull(host),
+                    drifted,
+                    limit);
+            final ObjectNode node = Json.newObject();
+            final ArrayNode hosts = node.putArray("results");
+            for (final HostDrift drift : results) {
+                final ObjectNode entry = hosts.addObject()
+                        .put("host", drift.getHost().getName())
+                        .put("environment", drift.getStage().getEnvironment().getName())
+                        .put("stage", drift.getStage().getName())
+                        .put("manifestId", drift.getManifest().getId())
+                        .put("drifted", drift.isDrifted())
+                        .put("scannedAt", drift.getScannedAt().toString());
+                final ArrayNode changes = entry.putArray("changes");
+                drift.getChanges().forEach(changes::add);
+            }
+            return ok(node);
+        }, _databaseContext);
+    }
+
     private final ActorRef _deploymentManager;
+    private final ActorRef _deployLogHub;
+    private final DeploymentLogArchive _logArchive;
     private final ActorSystem _actorSystem;
+    private final Executor _databaseContext;
     private static final Logger LOGGER = LoggerFactory.getLogger(StandardApi.class);
+    private static final int MAX_DRIFT_RESULTS = 5000;
 }
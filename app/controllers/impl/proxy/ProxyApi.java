@@ -75,6 +75,32 @@ public class ProxyApi extends ArtemisProxy implements Api {
         return proxy(request);
     }
 
+    @Override
+    public CompletionStage<Result> deploymentLogSearch(
+            final String query,
+            final long deploymentId,
+            final String host,
+            final String environment,
+            final String stage,
+            final String from,
+            final String to,
+            final long before,
+            final int limit,
+            final Http.Request request) {
+        return proxy(request);
+    }
+
+    @Override
+    public CompletionStage<Result> driftReport(
+            final String environment,
+            final String stage,
+            final String host,
+            final boolean drifted,
+            final int limit,
+            final Http.Request request) {
+        return proxy(request);
+    }
+
     @Override
     public CompletionStage<Result> getReleasePreview(final String envName, final String version, final Http.Request request) {
         return proxy(request);
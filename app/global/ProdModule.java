@@ -15,8 +15,14 @@
  */
 package global;
 
+import actors.DeployLogHub;
 import actors.DeployManager;
+import actors.DeploymentHandoffListener;
+import actors.DeploymentHeartbeater;
+import actors.DeploymentLogArchiver;
+import actors.DispatcherMetricsCollector;
 import actors.DockerPackageRefresher;
+import actors.HostInventoryRefresher;
 import actors.HostclassRefresher;
 import actors.JvmMetricsCollector;
 import actors.PackageRefresher;
@@ -24,7 +30,7 @@ import akka.actor.ActorRef;
 import akka.actor.ActorSystem;
 import client.DeploymentClientFactory;
 import client.DockerDeploymentClient;
-import client.DockerSshClient;
+import client.DockerEngineApiClient;
 import client.HostProvider;
 import client.PackageProvider;
 import com.arpnetworking.commons.jackson.databind.ObjectMapperFactory;
@@ -41,6 +47,7 @@ import com.google.inject.Provides;
 import com.google.inject.assistedinject.FactoryModuleBuilder;
 import com.google.inject.name.Named;
 import com.google.inject.name.Names;
+import com.groupon.akka.Dispatchers;
 import com.groupon.deployment.SshSessionFactory;
 import com.groupon.deployment.SshjSessionFactory;
 import com.groupon.deployment.fleet.FleetDeploymentFactory;
@@ -73,13 +80,34 @@ public class ProdModule extends AbstractModule {
                 .toProvider(DockerPackageRefresherProvider.class)
                 .asEagerSingleton();
         bind(ActorRef.class).annotatedWith(Names.named("DeployManager")).toProvider(DeployManagerProvider.class).asEagerSingleton();
+        bind(ActorRef.class).annotatedWith(Names.named("DeployLogHub")).toProvider(DeployLogHubProvider.class).asEagerSingleton();
+        bind(ActorRef.class)
+                .annotatedWith(Names.named("DeploymentHandoffListener"))
+                .toProvider(DeploymentHandoffListenerProvider.class)
+                .asEagerSingleton();
+        bind(ActorRef.class)
+                .annotatedWith(Names.named("DeploymentHeartbeater"))
+                .toProvider(DeploymentHeartbeaterProvider.class)
+                .asEagerSingleton();
+        bind(ActorRef.class)
+                .annotatedWith(Names.named("DeploymentLogArchiver"))
+                .toProvider(DeploymentLogArchiverProvider.class)
+                .asEagerSingleton();
+        bind(ActorRef.class)
+                .annotatedWith(Names.named("HostInventoryRefresher"))
+                .toProvider(HostInventoryRefresherProvider.class)
+                .asEagerSingleton();
         bind(ActorRef.class)
                 .annotatedWith(Names.named("JvmMetricsCollector"))
                 .toProvider(JvmMetricsCollectorProvider.class)
                 .asEagerSingleton();
+        bind(ActorRef.class)
+                .annotatedWith(Names.named("DispatcherMetricsCollector"))
+                .toProvider(DispatcherMetricsCollectorProvider.class)
+                .asEagerSingleton();
         install(
                 new FactoryModuleBuilder()
-                        .implement(DockerDeploymentClient.class, DockerSshClient.class)
+                        .implement(DockerDeploymentClient.class, DockerEngineApiClient.class)
                         .build(DeploymentClientFactory.class));
         install(
                 new FactoryModuleBuilder()
@@ -158,7 +186,7 @@ public class ProdModule extends AbstractModule {
     private static final class HostclassRefresherProvider extends RootActorProvider {
         @Inject
         private HostclassRefresherProvider(final ActorSystem system, final Injector injector) {
-            super(system, injector, HostclassRefresher.class, "HostclassRefresher");
+            super(system, injector, HostclassRefresher.class, "HostclassRefresher", Dispatchers.REFRESH);
         }
     }
 
@@ -166,7 +194,7 @@ public class ProdModule extends AbstractModule {
     private static final class PackageRefresherProvider extends RootActorProvider {
         @Inject
         private PackageRefresherProvider(final ActorSystem system, final Injector injector) {
-            super(system, injector, PackageRefresher.class, "PackageRefresher");
+            super(system, injector, PackageRefresher.class, "PackageRefresher", Dispatchers.REFRESH);
         }
     }
 
@@ -174,7 +202,47 @@ public class ProdModule extends AbstractModule {
     private static final class DeployManagerProvider extends RootActorProvider {
         @Inject
         private DeployManagerProvider(final ActorSystem system, final Injector injector) {
-            super(system, injector, DeployManager.class, "DeployManager");
+            super(system, injector, DeployManager.class, "DeployManager", Dispatchers.DATABASE);
+        }
+    }
+
+    @Singleton
+    private static final class DeployLogHubProvider extends RootActorProvider {
+        @Inject
+        private DeployLogHubProvider(final ActorSystem system, final Injector injector) {
+            super(system, injector, DeployLogHub.class, "DeployLogHub", Dispatchers.DATABASE);
+        }
+    }
+
+    @Singleton
+    private static final class DeploymentHandoffListenerProvider extends RootActorProvider {
+        @Inject
+        private DeploymentHandoffListenerProvider(final ActorSystem system, final Injector injector) {
+            super(system, injector, DeploymentHandoffListener.class, "DeploymentHandoffListener", Dispatchers.DATABASE);
+        }
+    }
+
+    @Singleton
+    private static final class DeploymentHeartbeaterProvider extends RootActorProvider {
+        @Inject
+        private DeploymentHeartbeaterProvider(final ActorSystem system, final Injector injector) {
+            super(system, injector, DeploymentHeartbeater.class, "DeploymentHeartbeater", Dispatchers.DATABASE);
+        }
+    }
+
+    @Singleton
+    private static final class DeploymentLogArchiverProvider extends RootActorProvider {
+        @Inject
+        private DeploymentLogArchiverProvider(final ActorSystem system, final Injector injector) {
+            super(system, injector, DeploymentLogArchiver.class, "DeploymentLogArchiver", Dispatchers.REFRESH);
+        }
+    }
+
+    @Singleton
+    private static final class HostInventoryRefresherProvider extends RootActorProvider {
+        @Inject
+        private HostInventoryRefresherProvider(final ActorSystem system, final Injector injector) {
+            super(system, injector, HostInventoryRefresher.class, "HostInventoryRefresher", Dispatchers.REFRESH);
         }
     }
 
@@ -182,7 +250,7 @@ public class ProdModule extends AbstractModule {
     private static final class DockerPackageRefresherProvider extends RootActorProvider {
         @Inject
         private DockerPackageRefresherProvider(final ActorSystem system, final Injector injector) {
-            super(system, injector, DockerPackageRefresher.class, "DockerPackageRefresher");
+            super(system, injector, DockerPackageRefresher.class, "DockerPackageRefresher", Dispatchers.REFRESH);
         }
     }
 
@@ -193,4 +261,12 @@ public class ProdModule extends AbstractModule {
             super(system, injector, JvmMetricsCollector.class, "JvmMetricsCollector");
         }
     }
+
+    @Singleton
+    private static final class DispatcherMetricsCollectorProvider extends RootActorProvider {
+        @Inject
+        private DispatcherMetricsCollectorProvider(final ActorSystem system, final Injector injector) {
+            super(system, injector, DispatcherMetricsCollector.class, "DispatcherMetricsCollector");
+        }
+    }
 }
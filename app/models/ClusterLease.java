@@ -0,0 +1,101 @@
+/**
+ * Copyright 2021 Brandon Arp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package models;
+
+import io.ebean.DuplicateKeyException;
+import io.ebean.Ebean;
+import io.ebean.Model;
+import org.joda.time.DateTime;
+
+import java.sql.Timestamp;
+import java.time.Duration;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+
+/**
+ * A named lease held by one node of the cluster at a time, for periodic work that must not run on every node.
+ * The holder renews the lease before it expires, another node takes it over once it has expired.
+ *
+ * @author Brandon Arp (brandon dot arp at inscopemetrics dot com)
+ */
+@Entity
+public class ClusterLease extends Model {
+    public String getName() {
+        return name;
+    }
+
+    public void setName(final String value) {
+        name = value;
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public void setOwner(final String value) {
+        owner = value;
+    }
+
+    public DateTime getExpires() {
+        return expires;
+    }
+
+    public void setExpires(final DateTime value) {
+        expires = value;
+    }
+
+    /**
+     * Acquires or renews a lease.  The lease is granted if no node holds it, if the node already holds it or if
+     * the previous holder let it expire.
+     *
+     * @param name the name of the lease
+     * @param node the node acquiring the lease
+     * @param duration how long the lease is held unless renewed
+     * @return true if the node holds the lease
+     */
+    public static boolean acquire(final String name, final String node, final Duration duration) {
+        final DateTime now = DateTime.now();
+        final Timestamp expires = new Timestamp(now.getMillis() + duration.toMillis());
+        final int updated = Ebean.createSqlUpdate(
+                "UPDATE cluster_lease SET owner = :owner, expires = :expires "
+                        + "WHERE name = :name AND (owner = :owner OR expires < :now)")
+                .setParameter("owner", node)
+                .setParameter("expires", expires)
+                .setParameter("name", name)
+                .setParameter("now", new Timestamp(now.getMillis()))
+                .execute();
+        if (updated == 1) {
+            return true;
+        }
+        try {
+            return Ebean.createSqlUpdate(
+                    "INSERT INTO cluster_lease (name, owner, expires) SELECT :name, :owner, :expires "
+                            + "WHERE NOT EXISTS (SELECT 1 FROM cluster_lease WHERE name = :name)")
+                    .setParameter("name", name)
+                    .setParameter("owner", node)
+                    .setParameter("expires", expires)
+                    .execute() == 1;
+        } catch (final DuplicateKeyException e) {
+            // Another node created the lease first
+            return false;
+        }
+    }
+
+    @Id
+    private String name;
+    private String owner;
+    private DateTime expires;
+}
@@ -15,17 +15,25 @@
  */
 package models;
 
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 import io.ebean.Ebean;
 import io.ebean.Expr;
+import io.ebean.ExpressionList;
 import io.ebean.Finder;
 import io.ebean.Model;
+import io.ebean.Query;
 import io.ebean.Transaction;
-import io.ebean.annotation.TxIsolation;
 import org.joda.time.DateTime;
+import utils.DatabaseUtil;
 
-import java.io.IOException;
-import java.net.InetAddress;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
 import javax.annotation.Nullable;
 import javax.persistence.Column;
 import javax.persistence.Entity;
@@ -56,9 +64,22 @@ public class Deployment extends Model {
     private DeploymentState state;
     private DateTime start;
     private DateTime finished;
+    private DateTime logArchived;
+    private String logArchiveOwner;
+    private DateTime logArchiveExpires;
 
     private static final Finder<Long, Deployment> FINDER = new Finder<>(Deployment.class);
 
+    /**
+     * The notification channel deployment hand offs are published on, the payload is
+     * <code>&lt;deployment id&gt;:&lt;server&gt;</code>.
+     */
+    public static final String HANDOFF_CHANNEL = "artemis_deployment_handoff";
+    /**
+     * Separates the deployment id from the server in a hand off notification.
+     */
+    public static final String HANDOFF_SEPARATOR = ":";
+
     public String getDeploymentOwner() {
         return deploymentOwner;
     }
@@ -123,6 +144,30 @@ public class Deployment extends Model {
         state = value;
     }
 
+    public DateTime getLogArchived() {
+        return logArchived;
+    }
+
+    public void setLogArchived(final DateTime value) {
+        logArchived = value;
+    }
+
+    public String getLogArchiveOwner() {
+        return logArchiveOwner;
+    }
+
+    public void setLogArchiveOwner(final String value) {
+        logArchiveOwner = value;
+    }
+
+    public DateTime getLogArchiveExpires() {
+        return logArchiveExpires;
+    }
+
+    public void setLogArchiveExpires(final DateTime value) {
+        logArchiveExpires = value;
+    }
+
     public String getInitiator() {
         return initiator;
     }
@@ -142,6 +187,33 @@ public class Deployment extends Model {
         return FINDER.byId(value);
     }
 
+    /**
+     * Creates a deployment of a manifest history and its host deployments.  The hosts of the stage are loaded
+     * with one query and the host deployments are inserted in batches, so starting a deployment stays fast for
+     * stages with thousands of hosts.  Must be called in a transaction.
+     *
+     * @param history the manifest history being deployed
+     * @param initiator the initiator of the deployment
+     * @param owner the server that will run the deployment
+     * @return the new deployment
+     */
+    public static Deployment materialize(final ManifestHistory history, final String initiator, final String owner) {
+        if (Ebean.currentTransaction() == null) {
+            throw new IllegalStateException("Must be in a transaction to call this function");
+        }
+        final Deployment deployment = new Deployment();
+        deployment.setStart(DateTime.now());
+        deployment.setInitiator(initiator);
+        deployment.setState(DeploymentState.NOT_STARTED);
+        deployment.setDeploymentOwner(owner);
+        deployment.setHeartbeat(DateTime.now());
+        deployment.setManifestHistory(history);
+        deployment.save();
+        final List<Host> hosts = Host.getByHostclasses(history.getStage().getHostclasses());
+        deployment.setHostStates(HostDeployment.createAll(deployment, hosts));
+        return deployment;
+    }
+
     /**
      * Get all deployments to a stage, paginated.
      *
@@ -162,68 +234,225 @@ public class Deployment extends Model {
     }
 
     /**
-     * Gets and locks a deployment that is considered stuck.
+     * Gets the deployments that have not finished.
      *
-     * @return a stuck deployment, or null if there are none
+     * @return the unfinished deployments
      */
-    @Nullable
-    public static Deployment getAndLockStuckDeployment() {
-        if (Ebean.currentTransaction() != null) {
-            throw new IllegalStateException("Must not be in a transaction.  getAndLockStuckDeployment requires creating a new transaction");
-        }
-        try (Transaction transaction = Ebean.beginTransaction(TxIsolation.SERIALIZABLE)) {
-            final Deployment deployment = Ebean.createQuery(Deployment.class)
-                    .forUpdate()
-                    .where()
-                    .isNull("finished")
-                    .ne("state", DeploymentState.SUCCEEDED)
-                    .ne("state", DeploymentState.FAILED)
-                            // if the heartbeat is older than 10 minutes
-                            // OR if the owner is null (it's handing off)
-                    .or(
-                            Expr.lt("heartbeat", DateTime.now().minusMinutes(10)),
-                            Expr.isNull("deploymentOwner")
-                    )
-                    .setMaxRows(1)
-                    .findOne();
-            if (deployment == null) {
-                return null;
-            }
+    public static List<Deployment> getUnfinished() {
+        return FINDER.query()
+                .where()
+                .isNull("finished")
+                .ne("state", DeploymentState.SUCCEEDED)
+                .ne("state", DeploymentState.FAILED)
+                .findList();
+    }
 
-            deployment.setDeploymentOwner(InetAddress.getLocalHost().getCanonicalHostName());
-            deployment.setHeartbeat(DateTime.now());
-            deployment.setState(DeploymentState.RUNNING);
-            deployment.save();
-            transaction.commit();
-            return deployment;
-        } catch (final IOException e) {
-            throw new RuntimeException(e);
-        }
+    /**
+     * Gets finished deployments whose log is still in the database.
+     *
+     * @param finishedBefore only deployments that finished before this time
+     * @param limit maximum number of deployments to return
+     * @return the deployments, oldest first
+     */
+    public static List<Deployment> getLogsToArchive(final DateTime finishedBefore, final int limit) {
+        return FINDER.query()
+                .where()
+                .lt("finished", finishedBefore)
+                .isNull("logArchived")
+                .order().asc("id")
+                .setMaxRows(limit)
+                .findList();
+    }
+
+    /**
+     * Claims the archiving of the log of the deployment for a node.  The claim only succeeds if the log has not
+     * been archived and is not claimed by another node, so at most one node writes the segment of a deployment.
+     * A node may claim again a log it failed to archive.
+     *
+     * @param node the node claiming the log
+     * @param claimDuration how long the claim lasts, another node may take over an expired claim
+     * @return true if the node now holds the claim
+     */
+    public boolean claimLogArchive(final String node, final Duration claimDuration) {
+        final DateTime now = DateTime.now();
+        final int updated = Ebean.createSqlUpdate(
+                "UPDATE deployment SET log_archive_owner = :owner, log_archive_expires = :expires "
+                        + "WHERE id = :id AND log_archived IS NULL "
+                        + "AND (log_archive_owner IS NULL OR log_archive_owner = :owner OR log_archive_expires < :now)")
+                .setParameter("owner", node)
+                .setParameter("expires", new Timestamp(now.getMillis() + claimDuration.toMillis()))
+                .setParameter("id", id)
+                .setParameter("now", new Timestamp(now.getMillis()))
+                .execute();
+        refresh();
+        return updated == 1;
+    }
+
+    /**
+     * Records that the log of the deployment has been moved to the archive.  Only the node holding the claim
+     * from {@link #claimLogArchive(String, Duration)} records it.
+     *
+     * @param node the node that archived the log
+     * @return true if this call recorded the archive
+     */
+    public boolean markLogArchived(final String node) {
+        final int updated = Ebean.createSqlUpdate(
+                "UPDATE deployment SET log_archived = :archived "
+                        + "WHERE id = :id AND log_archived IS NULL AND log_archive_owner = :owner")
+                .setParameter("archived", new Timestamp(DateTime.now().getMillis()))
+                .setParameter("id", id)
+                .setParameter("owner", node)
+                .execute();
+        refresh();
+        return updated == 1;
+    }
+
+    /**
+     * Records the result of a deployment that is run by several nodes.  Only the first node to finish the
+     * deployment records its result.
+     *
+     * @param result the final state of the deployment
+     * @return true if this call recorded the result
+     */
+    public boolean finishShared(final DeploymentState result) {
+        final int updated = Ebean.createSqlUpdate(
+                "UPDATE deployment SET state = :state, finished = :finished WHERE id = :id AND finished IS NULL")
+                .setParameter("state", result.name())
+                .setParameter("finished", new Timestamp(DateTime.now().getMillis()))
+                .setParameter("id", id)
+                .execute();
+        refresh();
+        return updated == 1;
     }
 
     /**
-     * Heartbeats a deployment so it will not be seen as stuck by other hosts.
+     * Heartbeats a deployment that is run by several nodes.  Unlike {@link #heartbeatOwned(String, Collection)}
+     * this does not check the deployment owner.
      */
-    public void heartbeat() {
+    public void heartbeatShared() {
+        Ebean.createSqlUpdate("UPDATE deployment SET heartbeat = :heartbeat WHERE id = :id AND finished IS NULL")
+                .setParameter("heartbeat", new Timestamp(DateTime.now().getMillis()))
+                .setParameter("id", id)
+                .execute();
+    }
+
+    /**
+     * Claims deployments that are considered stuck, either because their owner stopped heartbeating them or
+     * because the owner handed them off.  On PostgreSQL the stuck deployments are locked with
+     * <code>FOR UPDATE SKIP LOCKED</code> so servers recovering at the same time claim different deployments
+     * instead of waiting on each other.  Other databases fall back to claiming each candidate with a
+     * conditional update.
+     *
+     * @param owner the server claiming the deployments
+     * @param staleBefore heartbeats older than this are considered stuck
+     * @param limit maximum number of deployments to claim
+     * @return the claimed deployments
+     */
+    public static List<Deployment> claimStuckDeployments(final String owner, final DateTime staleBefore, final int limit) {
         if (Ebean.currentTransaction() != null) {
-            throw new IllegalStateException("Must not be in a transaction.  getAndLockStuckDeployment requires creating a new transaction");
+            throw new IllegalStateException("Must not be in a transaction.  claimStuckDeployments requires creating a new transaction");
+        }
+        if (DatabaseUtil.isPostgres()) {
+            return claimSkipLocked(owner, staleBefore, limit);
         }
-        try (Transaction transaction = Ebean.beginTransaction(TxIsolation.SERIALIZABLE)) {
-            final String myName = InetAddress.getLocalHost().getCanonicalHostName();
-            final Deployment toHeartbeat = Ebean.createQuery(Deployment.class)
-                    .forUpdate()
-                    .where()
-                    .eq("id", getId())
+        return claimConditional(owner, staleBefore, limit);
+    }
+
+    /**
+     * Tells the other servers that a deployment has been handed off so one of them resumes it right away.
+     * Only PostgreSQL supports notifications, on other databases the deployment is resumed by the next sweep.
+     *
+     * @param deploymentId the id of the deployment
+     * @param owner the server handing off the deployment
+     */
+    public static void notifyHandoff(final long deploymentId, final String owner) {
+        if (DatabaseUtil.isPostgres()) {
+            Ebean.createSqlQuery("SELECT pg_notify(:channel, :payload)")
+                    .setParameter("channel", HANDOFF_CHANNEL)
+                    .setParameter("payload", deploymentId + HANDOFF_SEPARATOR + owner)
                     .findOne();
-            // Verify that we still own the deployment
-            if (!myName.equals(toHeartbeat.getDeploymentOwner())) {
-                throw new IllegalStateException("cannot heartbeat, we no longer own the deployment");
+        }
+    }
+
+    private static List<Deployment> claimSkipLocked(final String owner, final DateTime staleBefore, final int limit) {
+        try (Transaction transaction = Ebean.beginTransaction()) {
+            final List<Deployment> deployments = whereStuck(Ebean.createQuery(Deployment.class).forUpdateSkipLocked(), staleBefore)
+                    .setMaxRows(limit)
+                    .findList();
+            for (final Deployment deployment : deployments) {
+                deployment.setDeploymentOwner(owner);
+                deployment.setHeartbeat(DateTime.now());
+                deployment.setState(DeploymentState.RUNNING);
+                deployment.save();
             }
-            toHeartbeat.setHeartbeat(DateTime.now());
-            toHeartbeat.save();
             transaction.commit();
-        } catch (final IOException e) {
-            throw new RuntimeException(e);
+            return deployments;
         }
     }
+
+    private static List<Deployment> claimConditional(final String owner, final DateTime staleBefore, final int limit) {
+        final List<Deployment> candidates = whereStuck(Ebean.createQuery(Deployment.class), staleBefore)
+                .setMaxRows(limit)
+                .findList();
+        final List<Deployment> claimed = Lists.newArrayListWithExpectedSize(candidates.size());
+        for (final Deployment candidate : candidates) {
+            final int updated = Ebean.createSqlUpdate(
+                    "UPDATE deployment SET deployment_owner = :owner, heartbeat = :heartbeat, state = :state "
+                            + "WHERE id = :id AND finished IS NULL AND state NOT IN ('SUCCEEDED', 'FAILED') "
+                            + "AND (heartbeat < :staleBefore OR deployment_owner IS NULL)")
+                    .setParameter("owner", owner)
+                    .setParameter("heartbeat", new Timestamp(DateTime.now().getMillis()))
+                    .setParameter("state", DeploymentState.RUNNING.name())
+                    .setParameter("id", candidate.getId())
+                    .setParameter("staleBefore", new Timestamp(staleBefore.getMillis()))
+                    .execute();
+            // Another server claimed the deployment between the query and the update
+            if (updated == 1) {
+                candidate.refresh();
+                claimed.add(candidate);
+            }
+        }
+        return claimed;
+    }
+
+    private static ExpressionList<Deployment> whereStuck(final Query<Deployment> query, final DateTime staleBefore) {
+        return query.where()
+                .isNull("finished")
+                .ne("state", DeploymentState.SUCCEEDED)
+                .ne("state", DeploymentState.FAILED)
+                        // if the heartbeat is stale
+                        // OR if the owner is null (it's handing off)
+                .or(
+                        Expr.lt("heartbeat", staleBefore),
+                        Expr.isNull("deploymentOwner")
+                );
+    }
+
+    /**
+     * Heartbeats the deployments a server is running so they will not be seen as stuck by other servers.  All the
+     * deployments are updated with a single statement and without locking the rows.
+     *
+     * @param owner the server running the deployments
+     * @param ids the ids of the deployments the server is running
+     * @return the ids of the deployments the server still owns, the others have been taken over or finished
+     */
+    public static Set<Long> heartbeatOwned(final String owner, final Collection<Long> ids) {
+        if (ids.isEmpty()) {
+            return Collections.emptySet();
+        }
+        final String idList = ids.stream().map(String::valueOf).collect(Collectors.joining(","));
+        Ebean.createSqlUpdate(
+                "UPDATE deployment SET heartbeat = :heartbeat "
+                        + "WHERE deployment_owner = :owner AND finished IS NULL AND id IN (" + idList + ")")
+                .setParameter("heartbeat", new Timestamp(DateTime.now().getMillis()))
+                .setParameter("owner", owner)
+                .execute();
+        final List<Long> owned = FINDER.query()
+                .where()
+                .idIn(ids)
+                .eq("deploymentOwner", owner)
+                .isNull("finished")
+                .findIds();
+        return Sets.newHashSet(owned);
+    }
 }
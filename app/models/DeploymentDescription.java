@@ -17,9 +17,12 @@ package models;
 
 import com.arpnetworking.commons.builder.OvalBuilder;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import net.sf.oval.constraint.NotNull;
 
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Describes a potential deployment, including any errors or warnings.
@@ -36,13 +39,25 @@ public final class DeploymentDescription {
         return _hosts;
     }
 
+    /**
+     * Gets the changes the deployment will make to a host, from the host's inventory.
+     *
+     * @param host the host
+     * @return the package changes, or null if the host has no inventory
+     */
+    public List<PackageChange> getHostChanges(final Host host) {
+        return _hostChanges.get(host.getId());
+    }
+
     private DeploymentDescription(final Builder builder) {
         _deploymentDiff = builder._deploymentDiff;
         _hosts = builder._hosts;
+        _hostChanges = Collections.unmodifiableMap(builder._hostChanges);
     }
 
     private final DeploymentDiff _deploymentDiff;
     private final List<Host> _hosts;
+    private final Map<Long, List<PackageChange>> _hostChanges;
 
     /**
      * Implementation of the Builder pattern for DeploymentDescription.
@@ -77,9 +92,22 @@ public final class DeploymentDescription {
             return this;
         }
 
+        /**
+         * Sets the changes to each host, by host id. Optional. Defaults to none.
+         *
+         * @param value the package changes by host id
+         * @return This builder
+         */
+        public Builder setHostChanges(final Map<Long, List<PackageChange>> value) {
+            _hostChanges = Maps.newHashMap(value);
+            return this;
+        }
+
         @NotNull
         private DeploymentDiff _deploymentDiff;
         @NotNull
         private List<Host> _hosts;
+        @NotNull
+        private Map<Long, List<PackageChange>> _hostChanges = Maps.newHashMap();
     }
 }
@@ -15,11 +15,19 @@
  */
 package models;
 
+import com.google.common.collect.Lists;
+import io.ebean.Ebean;
 import io.ebean.Finder;
 import io.ebean.Model;
+import io.ebean.SqlQuery;
+import io.ebean.SqlUpdate;
 import org.joda.time.DateTime;
+import utils.LogTerms;
 
+import java.sql.Timestamp;
+import java.util.Collections;
 import java.util.List;
+import java.util.stream.Collectors;
 import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
@@ -81,7 +89,179 @@ public class DeploymentLog extends Model {
      * @return a list of log messages
      */
     public static List<DeploymentLog> getLogsSince(final Deployment deployment, final DeploymentLog lastSeen) {
-        return FINDER.query().where().eq("deployment", deployment).gt("id", lastSeen.getId()).order().asc("id").findList();
+        return FINDER.query()
+                .fetch("host", "name")
+                .where()
+                .eq("deployment", deployment)
+                .gt("id", lastSeen.getId())
+                .order().asc("id")
+                .findList();
+    }
+
+    /**
+     * Gets a page of the logs of a deployment, in id order.
+     *
+     * @param deploymentId id of the deployment
+     * @param afterId the exclusive start
+     * @param limit the most log messages to return
+     * @return a list of log messages
+     */
+    public static List<DeploymentLog> getPage(final long deploymentId, final long afterId, final int limit) {
+        return FINDER.query()
+                .fetch("host", "name")
+                .where()
+                .eq("deployment.id", deploymentId)
+                .gt("id", afterId)
+                .order().asc("id")
+                .setMaxRows(limit)
+                .findList();
+    }
+
+    /**
+     * Gets the id of the last log message of a deployment.
+     *
+     * @param deployment the deployment
+     * @return the id of the last message, 0 if there are none
+     */
+    public static long getLastId(final Deployment deployment) {
+        final DeploymentLog last = FINDER.query()
+                .select("id")
+                .where()
+                .eq("deployment", deployment)
+                .order().desc("id")
+                .setMaxRows(1)
+                .findOne();
+        return last == null ? 0 : last.getId();
+    }
+
+    /**
+     * Gets the id of the last log message of a deployment logged before a time.
+     *
+     * @param deployment the deployment
+     * @param before the exclusive end of the log time
+     * @return the id of the last log message logged before the time, 0 if there is none
+     */
+    public static long getLastIdBefore(final Deployment deployment, final DateTime before) {
+        final DeploymentLog last = FINDER.query()
+                .select("id")
+                .where()
+                .eq("deployment", deployment)
+                .lt("logTime", before)
+                .order().desc("id")
+                .setMaxRows(1)
+                .findOne();
+        return last == null ? 0 : last.getId();
+    }
+
+    /**
+     * Deletes the log of a deployment.
+     *
+     * @param deploymentId id of the deployment
+     * @return the number of log messages deleted
+     */
+    public static int deleteForDeployment(final long deploymentId) {
+        return Ebean.createSqlUpdate("DELETE FROM deployment_log WHERE deployment_id = :deploymentId")
+                .setParameter("deploymentId", deploymentId)
+                .execute();
+    }
+
+    /**
+     * Adds log messages to the search index.  The messages must have been inserted, this is expected to run in
+     * the transaction that inserted them.
+     *
+     * @param logs the log messages
+     */
+    public static void index(final List<DeploymentLog> logs) {
+        final SqlUpdate insert = Ebean.createSqlUpdate(
+                "INSERT INTO deployment_log_term (term, deployment_log_id) VALUES (:term, :id)");
+        boolean batched = false;
+        for (final DeploymentLog log : logs) {
+            for (final String term : LogTerms.of(log.getMessage())) {
+                insert.setParameter("term", term)
+                        .setParameter("id", log.getId())
+                        .addBatch();
+                batched = true;
+            }
+        }
+        if (batched) {
+            insert.executeBatch();
+        }
+    }
+
+    /**
+     * Searches the log messages through the search index.  Query words with separators are looked up by their
+     * parts and the candidates are then checked for the whole word.
+     *
+     * @param search the search
+     * @return a page of matching log messages, newest first
+     */
+    public static List<DeploymentLog> search(final DeploymentLogSearch search) {
+        final List<String> terms = Lists.newArrayList(LogTerms.queryTerms(search.getText()));
+        final List<String> substrings = Lists.newArrayList(LogTerms.querySubstrings(search.getText()));
+        if (terms.isEmpty()) {
+            return Collections.emptyList();
+        }
+        if (terms.size() > MAX_SEARCH_TERMS) {
+            // The longest terms are the most selective
+            terms.sort((a, b) -> Integer.compare(b.length(), a.length()));
+            terms.subList(MAX_SEARCH_TERMS, terms.size()).clear();
+        }
+
+        final StringBuilder sql = new StringBuilder("SELECT l.id FROM deployment_log l");
+        for (int i = 0; i < terms.size(); ++i) {
+            sql.append(String.format(
+                    " JOIN deployment_log_term t%1$d ON t%1$d.deployment_log_id = l.id AND t%1$d.term = :term%1$d",
+                    i));
+        }
+        if (search.getHost().isPresent()) {
+            sql.append(" JOIN host h ON h.id = l.host_id");
+        }
+        if (search.getEnvironment().isPresent() || search.getStage().isPresent()) {
+            sql.append(" JOIN deployment d ON d.id = l.deployment_id")
+                    .append(" JOIN manifest_history mh ON mh.id = d.manifest_history_id")
+                    .append(" JOIN stage s ON s.id = mh.stage_id")
+                    .append(" JOIN environment e ON e.id = s.environment_id");
+        }
+        sql.append(" WHERE 1 = 1");
+        for (int i = 0; i < substrings.size(); ++i) {
+            sql.append(String.format(" AND LOWER(l.message) LIKE :substring%d ESCAPE '!'", i));
+        }
+        search.getDeploymentId().ifPresent(id -> sql.append(" AND l.deployment_id = :deploymentId"));
+        search.getHost().ifPresent(host -> sql.append(" AND h.name = :host"));
+        search.getEnvironment().ifPresent(environment -> sql.append(" AND e.name = :environment"));
+        search.getStage().ifPresent(stage -> sql.append(" AND s.name = :stage"));
+        search.getFrom().ifPresent(from -> sql.append(" AND l.log_time >= :from"));
+        search.getTo().ifPresent(to -> sql.append(" AND l.log_time < :to"));
+        search.getBeforeId().ifPresent(id -> sql.append(" AND l.id < :beforeId"));
+        sql.append(" ORDER BY l.id DESC");
+
+        final SqlQuery query = Ebean.createSqlQuery(sql.toString());
+        for (int i = 0; i < terms.size(); ++i) {
+            query.setParameter("term" + i, terms.get(i));
+        }
+        for (int i = 0; i < substrings.size(); ++i) {
+            // Words are letters, digits and separators, of which only '_' is a LIKE wildcard
+            query.setParameter("substring" + i, "%" + substrings.get(i).replace("_", "!_") + "%");
+        }
+        search.getDeploymentId().ifPresent(id -> query.setParameter("deploymentId", id));
+        search.getHost().ifPresent(host -> query.setParameter("host", host));
+        search.getEnvironment().ifPresent(environment -> query.setParameter("environment", environment));
+        search.getStage().ifPresent(stage -> query.setParameter("stage", stage));
+        search.getFrom().ifPresent(from -> query.setParameter("from", new Timestamp(from.getMillis())));
+        search.getTo().ifPresent(to -> query.setParameter("to", new Timestamp(to.getMillis())));
+        search.getBeforeId().ifPresent(id -> query.setParameter("beforeId", id));
+        query.setMaxRows(search.getLimit());
+
+        final List<Long> ids = query.findList().stream().map(row -> row.getLong("id")).collect(Collectors.toList());
+        if (ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return FINDER.query()
+                .fetch("host", "name")
+                .where()
+                .idIn(ids)
+                .order().desc("id")
+                .findList();
     }
 
     /**
@@ -103,4 +283,5 @@ public class DeploymentLog extends Model {
     private Deployment deployment;
     private DateTime logTime;
     private static final Finder<Long, DeploymentLog> FINDER = new Finder<>(DeploymentLog.class);
+    private static final int MAX_SEARCH_TERMS = 8;
 }
@@ -0,0 +1,217 @@
+/**
+ * Copyright 2021 Brandon Arp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package models;
+
+import com.arpnetworking.commons.builder.OvalBuilder;
+import net.sf.oval.constraint.NotEmpty;
+import net.sf.oval.constraint.NotNull;
+import net.sf.oval.constraint.Range;
+import org.joda.time.DateTime;
+
+import java.util.Optional;
+
+/**
+ * A search of the deployment logs.  The text is matched against the search index, every term of the text must
+ * be in a log message for it to match.  Results are returned newest first, a page at a time; the next page
+ * starts before the id of the last result of the previous one.
+ *
+ * @author Brandon Arp (brandon dot arp at inscopemetrics dot com)
+ */
+public final class DeploymentLogSearch {
+
+    public String getText() {
+        return _text;
+    }
+
+    public Optional<Long> getDeploymentId() {
+        return Optional.ofNullable(_deploymentId);
+    }
+
+    public Optional<String> getHost() {
+        return Optional.ofNullable(_host);
+    }
+
+    public Optional<String> getEnvironment() {
+        return Optional.ofNullable(_environment);
+    }
+
+    public Optional<String> getStage() {
+        return Optional.ofNullable(_stage);
+    }
+
+    public Optional<DateTime> getFrom() {
+        return Optional.ofNullable(_from);
+    }
+
+    public Optional<DateTime> getTo() {
+        return Optional.ofNullable(_to);
+    }
+
+    public Optional<Long> getBeforeId() {
+        return Optional.ofNullable(_beforeId);
+    }
+
+    public int getLimit() {
+        return _limit;
+    }
+
+    private DeploymentLogSearch(final Builder builder) {
+        _text = builder._text;
+        _deploymentId = builder._deploymentId;
+        _host = builder._host;
+        _environment = builder._environment;
+        _stage = builder._stage;
+        _from = builder._from;
+        _to = builder._to;
+        _beforeId = builder._beforeId;
+        _limit = builder._limit;
+    }
+
+    private final String _text;
+    private final Long _deploymentId;
+    private final String _host;
+    private final String _environment;
+    private final String _stage;
+    private final DateTime _from;
+    private final DateTime _to;
+    private final Long _beforeId;
+    private final int _limit;
+
+    /**
+     * Implementation of the Builder pattern for DeploymentLogSearch.
+     */
+    public static class Builder extends OvalBuilder<DeploymentLogSearch> {
+        /**
+         * Public constructor.
+         */
+        public Builder() {
+            super(DeploymentLogSearch::new);
+        }
+
+        /**
+         * Sets the text to search for. Required. Not empty.
+         *
+         * @param value the text
+         * @return This builder
+         */
+        public Builder setText(final String value) {
+            _text = value;
+            return this;
+        }
+
+        /**
+         * Sets the deployment to search. Optional.
+         *
+         * @param value the deployment id
+         * @return This builder
+         */
+        public Builder setDeploymentId(final Long value) {
+            _deploymentId = value;
+            return this;
+        }
+
+        /**
+         * Sets the name of the host to search. Optional.
+         *
+         * @param value the host name
+         * @return This builder
+         */
+        public Builder setHost(final String value) {
+            _host = value;
+            return this;
+        }
+
+        /**
+         * Sets the name of the environment to search. Optional.
+         *
+         * @param value the environment name
+         * @return This builder
+         */
+        public Builder setEnvironment(final String value) {
+            _environment = value;
+            return this;
+        }
+
+        /**
+         * Sets the name of the stage to search. Optional.
+         *
+         * @param value the stage name
+         * @return This builder
+         */
+        public Builder setStage(final String value) {
+            _stage = value;
+            return this;
+        }
+
+        /**
+         * Sets the inclusive start of the time range. Optional.
+         *
+         * @param value the start time
+         * @return This builder
+         */
+        public Builder setFrom(final DateTime value) {
+            _from = value;
+            return this;
+        }
+
+        /**
+         * Sets the exclusive end of the time range. Optional.
+         *
+         * @param value the end time
+         * @return This builder
+         */
+        public Builder setTo(final DateTime value) {
+            _to = value;
+            return this;
+        }
+
+        /**
+         * Sets the cursor, only log messages with a lower id are returned. Optional.
+         *
+         * @param value the id of the last result of the previous page
+         * @return This builder
+         */
+        public Builder setBeforeId(final Long value) {
+            _beforeId = value;
+            return this;
+        }
+
+        /**
+         * Sets the page size. Optional. Defaults to 100, at most 500.
+         *
+         * @param value the page size
+         * @return This builder
+         */
+        public Builder setLimit(final Integer value) {
+            _limit = value;
+            return this;
+        }
+
+        @NotNull
+        @NotEmpty
+        private String _text;
+        private Long _deploymentId;
+        private String _host;
+        private String _environment;
+        private String _stage;
+        private DateTime _from;
+        private DateTime _to;
+        private Long _beforeId;
+        @NotNull
+        @Range(min = 1, max = 500)
+        private Integer _limit = 100;
+    }
+}
@@ -126,6 +126,16 @@ public class Environment extends Model {
         return FINDER.query().where().eq("name", name).findOne();
     }
 
+    /**
+     * Look up the environments of a type.
+     *
+     * @param type the environment type
+     * @return a list of environments
+     */
+    public static List<Environment> getByEnvironmentType(final EnvironmentType type) {
+        return FINDER.query().where().eq("environmentType", type).findList();
+    }
+
     /**
      * Look up environment by id.
      *
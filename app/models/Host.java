@@ -18,6 +18,8 @@ package models;
 import io.ebean.Finder;
 import io.ebean.Model;
 
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import javax.annotation.Nullable;
 import javax.persistence.Entity;
@@ -71,6 +73,22 @@ public class Host extends Model {
         return FINDER.query().where().eq("name", name).findOne();
     }
 
+    /**
+     * Looks up the hosts of a set of hostclasses with a single query.
+     *
+     * @param hostclasses the hostclasses
+     * @return the hosts in the hostclasses
+     */
+    public static List<Host> getByHostclasses(final Collection<Hostclass> hostclasses) {
+        if (hostclasses.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return FINDER.query()
+                .where()
+                .in("hostclass", hostclasses)
+                .findList();
+    }
+
     /**
      * Look up Host by id.
      *
@@ -15,9 +15,19 @@
  */
 package models;
 
+import com.google.common.collect.Lists;
+import io.ebean.Ebean;
+import io.ebean.Expr;
+import io.ebean.ExpressionList;
+import io.ebean.Finder;
 import io.ebean.Model;
+import io.ebean.Transaction;
 import org.joda.time.DateTime;
 
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.List;
 import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
@@ -95,6 +105,208 @@ public class HostDeployment extends Model {
         stateDetail = value;
     }
 
+    public String getOwner() {
+        return owner;
+    }
+
+    public void setOwner(final String value) {
+        owner = value;
+    }
+
+    public DateTime getLeaseExpires() {
+        return leaseExpires;
+    }
+
+    public void setLeaseExpires(final DateTime value) {
+        leaseExpires = value;
+    }
+
+    /**
+     * Creates the host deployments of a deployment with batched inserts.  Must be called in a transaction.
+     *
+     * @param deployment the deployment
+     * @param hosts the hosts to deploy to
+     * @return the new host deployments
+     */
+    public static List<HostDeployment> createAll(final Deployment deployment, final Collection<Host> hosts) {
+        final Transaction transaction = Ebean.currentTransaction();
+        if (transaction == null) {
+            throw new IllegalStateException("Must be in a transaction to call this function");
+        }
+        final DateTime now = DateTime.now();
+        final List<HostDeployment> hostDeployments = Lists.newArrayListWithExpectedSize(hosts.size());
+        for (final Host host : hosts) {
+            final HostDeployment hostDeployment = new HostDeployment();
+            hostDeployment.setDeployment(deployment);
+            hostDeployment.setHeartbeat(now);
+            hostDeployment.setHost(host);
+            hostDeployment.setState(DeploymentState.NOT_STARTED);
+            hostDeployments.add(hostDeployment);
+        }
+        final boolean batchMode = transaction.isBatchMode();
+        transaction.setBatchMode(true);
+        transaction.setBatchSize(INSERT_BATCH_SIZE);
+        Ebean.saveAll(hostDeployments);
+        transaction.flush();
+        transaction.setBatchMode(batchMode);
+        return hostDeployments;
+    }
+
+    /**
+     * Claims the host deployment for a node.  The claim only succeeds if the host deployment has not finished
+     * and is not leased by another node, so at most one node deploys a host at a time.
+     *
+     * @param node the node claiming the host deployment
+     * @param leaseDuration how long the lease lasts before it has to be renewed
+     * @return true if the node now holds the lease
+     */
+    public boolean claim(final String node, final Duration leaseDuration) {
+        final DateTime now = DateTime.now();
+        final int updated = Ebean.createSqlUpdate(
+                "UPDATE host_deployment SET owner = :owner, lease_expires = :expires "
+                        + "WHERE id = :id AND finished IS NULL AND (owner IS NULL OR lease_expires < :now)")
+                .setParameter("owner", node)
+                .setParameter("expires", new Timestamp(now.getMillis() + leaseDuration.toMillis()))
+                .setParameter("id", id)
+                .setParameter("now", new Timestamp(now.getMillis()))
+                .execute();
+        if (updated == 1) {
+            refresh();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Extends the lease a node holds on the host deployment.
+     *
+     * @param node the node holding the lease
+     * @param leaseDuration how long the lease lasts from now
+     * @return true if the node still held the lease
+     */
+    public boolean renewLease(final String node, final Duration leaseDuration) {
+        final int updated = Ebean.createSqlUpdate(
+                "UPDATE host_deployment SET lease_expires = :expires WHERE id = :id AND owner = :owner AND finished IS NULL")
+                .setParameter("expires", new Timestamp(DateTime.now().getMillis() + leaseDuration.toMillis()))
+                .setParameter("id", id)
+                .setParameter("owner", node)
+                .execute();
+        return updated == 1;
+    }
+
+    /**
+     * Records that a node has started deploying the host.  Only the node holding the lease records it.
+     *
+     * @param node the node holding the lease
+     * @return true if the node still held the lease and the start was recorded
+     */
+    public boolean startOwned(final String node) {
+        final int updated = Ebean.createSqlUpdate(
+                "UPDATE host_deployment SET state = :state, started = :started "
+                        + "WHERE id = :id AND owner = :owner AND finished IS NULL")
+                .setParameter("state", DeploymentState.RUNNING.name())
+                .setParameter("started", new Timestamp(DateTime.now().getMillis()))
+                .setParameter("id", id)
+                .setParameter("owner", node)
+                .execute();
+        refresh();
+        return updated == 1;
+    }
+
+    /**
+     * Records the result of the host deployment.  Only the node holding the lease records it, so a node that lost
+     * the lease while its command was still running cannot overwrite the result of the node that took over.
+     *
+     * @param node the node holding the lease
+     * @param result the final state of the host deployment
+     * @return true if the node still held the lease and the result was recorded
+     */
+    public boolean finishOwned(final String node, final DeploymentState result) {
+        final int updated = Ebean.createSqlUpdate(
+                "UPDATE host_deployment SET state = :state, finished = :finished "
+                        + "WHERE id = :id AND owner = :owner AND finished IS NULL")
+                .setParameter("state", result.name())
+                .setParameter("finished", new Timestamp(DateTime.now().getMillis()))
+                .setParameter("id", id)
+                .setParameter("owner", node)
+                .execute();
+        refresh();
+        return updated == 1;
+    }
+
+    /**
+     * Gets the host deployments of a deployment that can be claimed, either because they were never claimed or
+     * because the lease of the node that claimed them has expired.
+     *
+     * @param deployment the deployment
+     * @param excludedHost name of a host to leave out, the node's own host, or null to include every host
+     * @param limit maximum number of host deployments to return
+     * @return the claimable host deployments
+     */
+    public static List<HostDeployment> getClaimable(final Deployment deployment, final String excludedHost, final int limit) {
+        final ExpressionList<HostDeployment> query = FINDER.query()
+                .where()
+                .eq("deployment", deployment)
+                .isNull("finished");
+        if (excludedHost != null) {
+            query.ne("host.name", excludedHost);
+        }
+        return query
+                .or(
+                        Expr.isNull("owner"),
+                        Expr.lt("leaseExpires", DateTime.now())
+                )
+                .orderBy()
+                .asc("id")
+                .setMaxRows(limit)
+                .findList();
+    }
+
+    /**
+     * Counts the host deployments of a deployment that have not finished.
+     *
+     * @param deployment the deployment
+     * @return the number of unfinished host deployments
+     */
+    public static int countUnfinished(final Deployment deployment) {
+        return FINDER.query()
+                .where()
+                .eq("deployment", deployment)
+                .isNull("finished")
+                .findCount();
+    }
+
+    /**
+     * Counts the host deployments of a deployment that have not finished and are leased by a live node.
+     *
+     * @param deployment the deployment
+     * @return the number of host deployments being worked on
+     */
+    public static int countLeased(final Deployment deployment) {
+        return FINDER.query()
+                .where()
+                .eq("deployment", deployment)
+                .isNull("finished")
+                .isNotNull("owner")
+                .ge("leaseExpires", DateTime.now())
+                .findCount();
+    }
+
+    /**
+     * Counts the host deployments of a deployment in a state.
+     *
+     * @param deployment the deployment
+     * @param state the state
+     * @return the number of host deployments in the state
+     */
+    public static int countByState(final Deployment deployment, final DeploymentState state) {
+        return FINDER.query()
+                .where()
+                .eq("deployment", deployment)
+                .eq("state", state)
+                .findCount();
+    }
+
     @Id
     @GeneratedValue(strategy = GenerationType.IDENTITY)
     private long id;
@@ -107,4 +319,9 @@ public class HostDeployment extends Model {
     private DateTime heartbeat;
     private DateTime started;
     private DateTime finished;
+    private String owner;
+    private DateTime leaseExpires;
+
+    private static final Finder<Long, HostDeployment> FINDER = new Finder<>(HostDeployment.class);
+    private static final int INSERT_BATCH_SIZE = 500;
 }
@@ -0,0 +1,202 @@
+/**
+ * Copyright 2021 Brandon Arp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package models;
+
+import com.google.common.base.Splitter;
+import io.ebean.Ebean;
+import io.ebean.ExpressionList;
+import io.ebean.Finder;
+import io.ebean.Model;
+import io.ebean.SqlUpdate;
+import org.joda.time.DateTime;
+import utils.DatabaseUtil;
+
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.stream.Collectors;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.ManyToOne;
+import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
+
+/**
+ * The result of the last drift scan of a host in a stage: how the packages on the host differ from the current
+ * manifest of the stage.
+ *
+ * @author Brandon Arp (brandon dot arp at inscopemetrics dot com)
+ */
+@Entity
+@Table(uniqueConstraints = @UniqueConstraint(columnNames = {"host_id", "stage_id"}))
+public class HostDrift extends Model {
+    public long getId() {
+        return id;
+    }
+
+    public Host getHost() {
+        return host;
+    }
+
+    public Stage getStage() {
+        return stage;
+    }
+
+    public Manifest getManifest() {
+        return manifest;
+    }
+
+    public boolean isDrifted() {
+        return drifted;
+    }
+
+    public int getChangeCount() {
+        return changeCount;
+    }
+
+    /**
+     * Gets the packages that differ from the manifest, one line per package.
+     *
+     * @return the differences
+     */
+    public List<String> getChanges() {
+        return Splitter.on('\n').omitEmptyStrings().splitToList(changes);
+    }
+
+    public DateTime getScannedAt() {
+        return scannedAt;
+    }
+
+    /**
+     * Records the result of a scan, replacing the previous result for the host and stage.
+     *
+     * @param host the host
+     * @param stage the stage
+     * @param manifest the manifest the host was compared with
+     * @param packageChanges the packages that differ from the manifest
+     */
+    public static void record(
+            final Host host,
+            final Stage stage,
+            final Manifest manifest,
+            final List<PackageChange> packageChanges) {
+        final String lines = packageChanges.stream()
+                .map(change -> String.format(
+                        "%s %s -> %s",
+                        change.getName(),
+                        change.getOldVersion().orElse("(none)"),
+                        change.getNewVersion().orElse("(none)")))
+                .collect(Collectors.joining("\n"));
+        final Timestamp scannedAt = new Timestamp(DateTime.now().getMillis());
+        if (DatabaseUtil.isPostgres()) {
+            bind(Ebean.createSqlUpdate(
+                    "INSERT INTO host_drift (host_id, stage_id, manifest_id, drifted, change_count, changes, scanned_at) "
+                            + "VALUES (:hostId, :stageId, :manifestId, :drifted, :changeCount, :changes, :scannedAt) "
+                            + "ON CONFLICT (host_id, stage_id) DO UPDATE SET manifest_id = EXCLUDED.manifest_id, "
+                            + "drifted = EXCLUDED.drifted, change_count = EXCLUDED.change_count, "
+                            + "changes = EXCLUDED.changes, scanned_at = EXCLUDED.scanned_at"),
+                    host, stage, manifest, packageChanges, lines, scannedAt)
+                    .execute();
+            return;
+        }
+
+        // Other databases update the last result and insert one for a host that was never scanned
+        final int updated = bind(Ebean.createSqlUpdate(
+                "UPDATE host_drift SET manifest_id = :manifestId, drifted = :drifted, change_count = :changeCount, "
+                        + "changes = :changes, scanned_at = :scannedAt WHERE host_id = :hostId AND stage_id = :stageId"),
+                host, stage, manifest, packageChanges, lines, scannedAt)
+                .execute();
+        if (updated == 0) {
+            bind(Ebean.createSqlUpdate(
+                    "INSERT INTO host_drift (host_id, stage_id, manifest_id, drifted, change_count, changes, scanned_at) "
+                            + "VALUES (:hostId, :stageId, :manifestId, :drifted, :changeCount, :changes, :scannedAt)"),
+                    host, stage, manifest, packageChanges, lines, scannedAt)
+                    .execute();
+        }
+    }
+
+    private static SqlUpdate bind(
+            final SqlUpdate statement,
+            final Host host,
+            final Stage stage,
+            final Manifest manifest,
+            final List<PackageChange> packageChanges,
+            final String lines,
+            final Timestamp scannedAt) {
+        return statement.setParameter("hostId", host.getId())
+                .setParameter("stageId", stage.getId())
+                .setParameter("manifestId", manifest.getId())
+                .setParameter("drifted", !packageChanges.isEmpty())
+                .setParameter("changeCount", packageChanges.size())
+                .setParameter("changes", lines)
+                .setParameter("scannedAt", scannedAt);
+    }
+
+    /**
+     * Looks up the drift scan results.  Null filters are ignored.
+     *
+     * @param environment only the stages of this environment
+     * @param stage only this stage
+     * @param host only this host
+     * @param driftedOnly true to only return the hosts that differ from the manifest
+     * @param limit the most results to return
+     * @return the scan results, by environment, stage and host name
+     */
+    public static List<HostDrift> find(
+            final String environment,
+            final String stage,
+            final String host,
+            final boolean driftedOnly,
+            final int limit) {
+        final ExpressionList<HostDrift> query = FINDER.query()
+                .fetch("host", "name")
+                .fetch("stage", "name")
+                .fetch("stage.environment", "name")
+                .where();
+        if (environment != null) {
+            query.eq("stage.environment.name", environment);
+        }
+        if (stage != null) {
+            query.eq("stage.name", stage);
+        }
+        if (host != null) {
+            query.eq("host.name", host);
+        }
+        if (driftedOnly) {
+            query.eq("drifted", true);
+        }
+        return query.orderBy("stage.environment.name, stage.name, host.name")
+                .setMaxRows(limit)
+                .findList();
+    }
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private long id;
+    @ManyToOne
+    private Host host;
+    @ManyToOne
+    private Stage stage;
+    @ManyToOne
+    private Manifest manifest;
+    private boolean drifted;
+    private int changeCount;
+    private String changes;
+    private DateTime scannedAt;
+
+    private static final Finder<Long, HostDrift> FINDER = new Finder<>(HostDrift.class);
+}
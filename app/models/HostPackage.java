@@ -0,0 +1,215 @@
+/**
+ * Copyright 2021 Brandon Arp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package models;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import io.ebean.Ebean;
+import io.ebean.Finder;
+import io.ebean.Model;
+import io.ebean.SqlUpdate;
+import io.ebean.Transaction;
+import org.joda.time.DateTime;
+import utils.DatabaseUtil;
+
+import java.sql.Timestamp;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.ManyToOne;
+import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
+
+/**
+ * A package found installed on a host by the inventory.  For an RPM host the name and version are those of an
+ * installed rpm, for a docker host the name is a running container and the version is the id of its image.
+ *
+ * @author Brandon Arp (brandon dot arp at inscopemetrics dot com)
+ */
+@Entity
+@Table(uniqueConstraints = @UniqueConstraint(columnNames = {"host_id", "type", "name"}))
+public class HostPackage extends Model {
+    public long getId() {
+        return id;
+    }
+
+    public Host getHost() {
+        return host;
+    }
+
+    public EnvironmentType getType() {
+        return type;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    public DateTime getUpdatedAt() {
+        return updatedAt;
+    }
+
+    /**
+     * Gets the inventory of a host.
+     *
+     * @param host the host
+     * @param type the kind of packages
+     * @return the packages found on the host
+     */
+    public static List<HostPackage> getForHost(final Host host, final EnvironmentType type) {
+        return FINDER.query()
+                .where()
+                .eq("host", host)
+                .eq("type", type)
+                .findList();
+    }
+
+    /**
+     * Gets the inventory of a set of hosts with a single query.
+     *
+     * @param hosts the hosts
+     * @param type the kind of packages
+     * @return the packages found on each host, by host id
+     */
+    public static Map<Long, List<HostPackage>> getForHosts(final Collection<Host> hosts, final EnvironmentType type) {
+        if (hosts.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        final Map<Long, List<HostPackage>> byHost = Maps.newHashMap();
+        FINDER.query()
+                .where()
+                .in("host", hosts)
+                .eq("type", type)
+                .findEach(pkg -> byHost.computeIfAbsent(pkg.getHost().getId(), id -> Lists.newArrayList()).add(pkg));
+        return byHost;
+    }
+
+    /**
+     * Replaces the whole inventory of a host.  The packages are upserted and the ones no longer found are removed,
+     * so readers never see the inventory of the host empty.
+     *
+     * @param host the host
+     * @param type the kind of packages
+     * @param versions the versions found on the host, by name
+     */
+    public static void replace(final Host host, final EnvironmentType type, final Map<String, String> versions) {
+        try (Transaction transaction = Ebean.beginTransaction()) {
+            upsert(host, type, versions);
+            final SqlUpdate delete;
+            if (versions.isEmpty()) {
+                delete = Ebean.createSqlUpdate("DELETE FROM host_package WHERE host_id = :hostId AND type = :type");
+            } else {
+                delete = Ebean.createSqlUpdate(
+                        "DELETE FROM host_package WHERE host_id = :hostId AND type = :type AND name NOT IN (:names)")
+                        .setParameter("names", versions.keySet());
+            }
+            delete.setParameter("hostId", host.getId())
+                    .setParameter("type", type.name())
+                    .execute();
+            transaction.commit();
+        }
+    }
+
+    /**
+     * Records the versions of some of the packages of a host, leaving the rest of its inventory as it is.
+     *
+     * @param host the host
+     * @param type the kind of packages
+     * @param versions the versions found on the host, by name
+     */
+    public static void update(final Host host, final EnvironmentType type, final Map<String, String> versions) {
+        if (versions.isEmpty()) {
+            return;
+        }
+        try (Transaction transaction = Ebean.beginTransaction()) {
+            upsert(host, type, versions);
+            transaction.commit();
+        }
+    }
+
+    private static void upsert(final Host host, final EnvironmentType type, final Map<String, String> versions) {
+        if (versions.isEmpty()) {
+            return;
+        }
+        final Timestamp now = new Timestamp(DateTime.now().getMillis());
+        if (DatabaseUtil.isPostgres()) {
+            final SqlUpdate upsert = Ebean.createSqlUpdate(
+                    "INSERT INTO host_package (host_id, type, name, version, updated_at) "
+                            + "VALUES (:hostId, :type, :name, :version, :updatedAt) "
+                            + "ON CONFLICT (host_id, type, name) "
+                            + "DO UPDATE SET version = EXCLUDED.version, updated_at = EXCLUDED.updated_at");
+            for (final Map.Entry<String, String> entry : versions.entrySet()) {
+                bind(upsert, host, type, entry, now).addBatch();
+            }
+            upsert.executeBatch();
+            return;
+        }
+
+        // Other databases update the packages already recorded and insert the rest
+        final SqlUpdate update = Ebean.createSqlUpdate(
+                "UPDATE host_package SET version = :version, updated_at = :updatedAt "
+                        + "WHERE host_id = :hostId AND type = :type AND name = :name");
+        final Map<String, String> missing = Maps.newHashMap();
+        for (final Map.Entry<String, String> entry : versions.entrySet()) {
+            if (bind(update, host, type, entry, now).execute() == 0) {
+                missing.put(entry.getKey(), entry.getValue());
+            }
+        }
+        if (!missing.isEmpty()) {
+            final SqlUpdate insert = Ebean.createSqlUpdate(
+                    "INSERT INTO host_package (host_id, type, name, version, updated_at) "
+                            + "VALUES (:hostId, :type, :name, :version, :updatedAt)");
+            for (final Map.Entry<String, String> entry : missing.entrySet()) {
+                bind(insert, host, type, entry, now).addBatch();
+            }
+            insert.executeBatch();
+        }
+    }
+
+    private static SqlUpdate bind(
+            final SqlUpdate statement,
+            final Host host,
+            final EnvironmentType type,
+            final Map.Entry<String, String> entry,
+            final Timestamp updatedAt) {
+        return statement.setParameter("hostId", host.getId())
+                .setParameter("type", type.name())
+                .setParameter("name", entry.getKey())
+                .setParameter("version", entry.getValue())
+                .setParameter("updatedAt", updatedAt);
+    }
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private long id;
+    @ManyToOne
+    private Host host;
+    private EnvironmentType type;
+    private String name;
+    private String version;
+    private DateTime updatedAt;
+
+    private static final Finder<Long, HostPackage> FINDER = new Finder<>(HostPackage.class);
+}
@@ -0,0 +1,131 @@
+/**
+ * Copyright 2021 Brandon Arp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package models;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import utils.RpmVersionComparator;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Compares a manifest with the {@link HostPackage} inventory of a host.  Packages that are already at the
+ * manifest version are left out, an empty list means the host matches the manifest.
+ *
+ * @author Brandon Arp (brandon dot arp at inscopemetrics dot com)
+ */
+public final class InventoryDiff {
+    /**
+     * Computes the changes a manifest makes to a host.
+     *
+     * @param type the environment type of the stage
+     * @param environment the environment of the stage
+     * @param manifest the manifest
+     * @param inventory the inventory of the host, name to version
+     * @return the package changes, sorted by name
+     */
+    public static List<PackageChange> getChanges(
+            final EnvironmentType type,
+            final Environment environment,
+            final Manifest manifest,
+            final Map<String, String> inventory) {
+        final List<PackageChange> changes = type == EnvironmentType.DOCKER
+                ? getDockerChanges(environment, manifest, inventory)
+                : getRpmChanges(manifest, inventory);
+        changes.sort(Comparator.comparing(PackageChange::getName));
+        return changes;
+    }
+
+    /**
+     * Gets the kind of inventory that describes the hosts of an environment.  Roller environments install rpms, so
+     * they are compared with the rpm inventory.
+     *
+     * @param type the environment type
+     * @return the inventory type
+     */
+    public static EnvironmentType getInventoryType(final EnvironmentType type) {
+        return type == EnvironmentType.DOCKER ? EnvironmentType.DOCKER : EnvironmentType.RPM;
+    }
+
+    /**
+     * Indexes an inventory by package name.
+     *
+     * @param inventory the inventory records
+     * @return the versions, by name
+     */
+    public static Map<String, String> toVersions(final List<HostPackage> inventory) {
+        final Map<String, String> versions = Maps.newHashMapWithExpectedSize(inventory.size());
+        inventory.forEach(pkg -> versions.put(pkg.getName(), pkg.getVersion()));
+        return versions;
+    }
+
+    private static List<PackageChange> getRpmChanges(final Manifest manifest, final Map<String, String> installed) {
+        final List<PackageChange> changes = Lists.newArrayList();
+        for (final PackageVersion packageVersion : manifest.getPackages()) {
+            final String name = packageVersion.getPkg().getName();
+            final String oldVersion = installed.get(name);
+            if (oldVersion == null || RPM_VERSION_COMPARATOR.compare(oldVersion, packageVersion.getVersion()) != 0) {
+                changes.add(new PackageChange(name, Optional.ofNullable(oldVersion), Optional.of(packageVersion.getVersion())));
+            }
+        }
+        return changes;
+    }
+
+    private static List<PackageChange> getDockerChanges(
+            final Environment environment,
+            final Manifest manifest,
+            final Map<String, String> containers) {
+        // Only the environment's own container is replaced, the other containers on the host are left running
+        final String containerName = DOCKER_CONTAINER_PREFIX + environment.getId();
+        final Set<String> running = Sets.newHashSet();
+        containers.forEach((name, image) -> {
+            if (containerName.equals(name.replaceFirst("^/", ""))) {
+                running.add(imageId(image));
+            }
+        });
+        final Set<String> images = Sets.newHashSet();
+        final List<PackageChange> changes = Lists.newArrayList();
+        for (final PackageVersion packageVersion : manifest.getPackages()) {
+            final String image = imageId(packageVersion.getVersion());
+            images.add(image);
+            if (!running.contains(image)) {
+                changes.add(new PackageChange(
+                        packageVersion.getPkg().getName(),
+                        Optional.empty(),
+                        Optional.of(packageVersion.getVersion())));
+            }
+        }
+        running.stream()
+                .filter(image -> !images.contains(image))
+                .forEach(image -> changes.add(new PackageChange(containerName, Optional.of(image), Optional.empty())));
+        return changes;
+    }
+
+    private static String imageId(final String image) {
+        return image.startsWith(IMAGE_ID_PREFIX) ? image.substring(IMAGE_ID_PREFIX.length()) : image;
+    }
+
+    private InventoryDiff() { }
+
+    private static final String IMAGE_ID_PREFIX = "sha256:";
+    private static final String DOCKER_CONTAINER_PREFIX = "artemis-";
+    private static final RpmVersionComparator RPM_VERSION_COMPARATOR = new RpmVersionComparator();
+}
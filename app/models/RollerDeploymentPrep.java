@@ -15,8 +15,11 @@
  */
 package models;
 
+import com.google.common.collect.Maps;
+
 import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
 
 /**
@@ -44,6 +47,26 @@ public class RollerDeploymentPrep {
         return new DeploymentDescription.Builder()
                 .setDeploymentDiff(diff)
                 .setHosts(hosts)
+                .setHostChanges(getHostChanges(stage, proposedManifest, hosts))
                 .build();
     }
+
+    /**
+     * Computes the changes a manifest makes to each host from the {@link HostPackage} inventory.  Hosts without an
+     * inventory are left out.
+     *
+     * @param stage the stage
+     * @param proposedManifest the manifest
+     * @param hosts the hosts of the stage
+     * @return the package changes, by host id
+     */
+    Map<Long, List<PackageChange>> getHostChanges(final Stage stage, final Manifest proposedManifest, final List<Host> hosts) {
+        final Environment environment = stage.getEnvironment();
+        final EnvironmentType type = environment.getEnvironmentType();
+        final Map<Long, List<PackageChange>> changes = Maps.newHashMap();
+        HostPackage.getForHosts(hosts, InventoryDiff.getInventoryType(type)).forEach((hostId, inventory) -> changes.put(
+                hostId,
+                InventoryDiff.getChanges(type, environment, proposedManifest, InventoryDiff.toVersions(inventory))));
+        return changes;
+    }
 }
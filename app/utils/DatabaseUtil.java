@@ -0,0 +1,45 @@
+/**
+ * Copyright 2021 Brandon Arp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package utils;
+
+import io.ebean.Ebean;
+
+import java.util.Locale;
+
+/**
+ * Set of utility functions related to the database.
+ *
+ * @author Brandon Arp (brandon dot arp at inscopemetrics dot com)
+ */
+public final class DatabaseUtil {
+    private DatabaseUtil() {}
+
+    /**
+     * Checks if the default database is PostgreSQL, which supports <code>FOR UPDATE SKIP LOCKED</code> and
+     * <code>LISTEN</code>/<code>NOTIFY</code>.  The development database is H2 in PostgreSQL mode, which does not.
+     *
+     * @return true if the default database is PostgreSQL
+     */
+    public static boolean isPostgres() {
+        return Ebean.getDefaultServer()
+                .getPluginApi()
+                .getDatabasePlatform()
+                .getPlatform()
+                .name()
+                .toUpperCase(Locale.ENGLISH)
+                .startsWith("POSTGRES");
+    }
+}
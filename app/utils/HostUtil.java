@@ -0,0 +1,60 @@
+/**
+ * Copyright 2021 Brandon Arp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package utils;
+
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import javax.annotation.Nonnull;
+
+/**
+ * Set of utility functions related to Hosts.
+ *
+ * @author Brandon Arp (brandon dot arp at inscopemetrics dot com)
+ */
+public final class HostUtil {
+    private HostUtil() {}
+
+    /**
+     * Gets the datacenter of a host, the last label of the host name.
+     *
+     * @param hostName the fully qualified host name
+     * @return the datacenter
+     */
+    public static String getDatacenter(@Nonnull final String hostName) {
+        return hostName.substring(hostName.lastIndexOf('.') + 1);
+    }
+
+    /**
+     * Gets the canonical host name of this server, the name it records as the owner of deployments.  The name
+     * is resolved once and cached, it does not change while the server is running.
+     *
+     * @return the canonical host name
+     */
+    public static String getLocalHostName() {
+        return LOCAL_HOST_NAME.get();
+    }
+
+    private static final Supplier<String> LOCAL_HOST_NAME = Suppliers.memoize(() -> {
+        try {
+            return InetAddress.getLocalHost().getCanonicalHostName();
+        } catch (final UnknownHostException e) {
+            throw new RuntimeException(e);
+        }
+    });
+}
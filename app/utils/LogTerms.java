@@ -0,0 +1,141 @@
+/**
+ * Copyright 2021 Brandon Arp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package utils;
+
+import com.arpnetworking.steno.Logger;
+import com.arpnetworking.steno.LoggerFactory;
+import com.google.common.base.CharMatcher;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Sets;
+
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Splits deployment log messages into the terms of the deployment log search index.  Messages and queries are
+ * split the same way: lower cased words of letters, digits, '.', '-' and '_', each also indexed by its parts, so
+ * <code>bash-4.2.46-34.el7.x86_64</code> is found by the whole name as well as by <code>bash</code> or
+ * <code>x86_64</code>.
+ *
+ * <p>A query word with separators may be a piece of a longer indexed word, e.g. <code>bash-4.2.46</code>, so only
+ * its parts are looked up in the index and the matching messages are checked for the word itself with
+ * {@link #querySubstrings(String)}.
+ *
+ * @author Brandon Arp (brandon dot arp at inscopemetrics dot com)
+ */
+public final class LogTerms {
+    private LogTerms() {}
+
+    /**
+     * Gets the distinct terms of a log message.
+     *
+     * @param message the log message
+     * @return the terms, at most {@link #MAX_TERMS}
+     */
+    public static Set<String> of(final String message) {
+        final Set<String> terms = Sets.newLinkedHashSet();
+        if (message == null) {
+            return terms;
+        }
+        for (final String word : WORDS.split(message.toLowerCase(Locale.ENGLISH))) {
+            add(terms, word);
+            final String trimmed = SEPARATOR.trimFrom(word);
+            if (SEPARATOR.matchesAnyOf(trimmed)) {
+                for (final String part : PARTS.split(trimmed)) {
+                    add(terms, part);
+                }
+            }
+            if (terms.size() >= MAX_TERMS) {
+                LOGGER.warn()
+                        .setMessage("Log message has too many terms, the rest of it is not indexed")
+                        .addData("maxTerms", MAX_TERMS)
+                        .addData("length", message.length())
+                        .log();
+                break;
+            }
+        }
+        return terms;
+    }
+
+    /**
+     * Gets the terms to look up in the index for a query.  Words with separators are only looked up by their
+     * parts, the words themselves are matched by {@link #querySubstrings(String)}.
+     *
+     * @param query the query
+     * @return the terms
+     */
+    public static Set<String> queryTerms(final String query) {
+        final Set<String> terms = Sets.newLinkedHashSet();
+        if (query == null) {
+            return terms;
+        }
+        for (final String word : WORDS.split(query.toLowerCase(Locale.ENGLISH))) {
+            final String trimmed = SEPARATOR.trimFrom(word);
+            if (SEPARATOR.matchesAnyOf(trimmed)) {
+                for (final String part : PARTS.split(trimmed)) {
+                    add(terms, part);
+                }
+            } else {
+                add(terms, trimmed);
+            }
+        }
+        return terms;
+    }
+
+    /**
+     * Gets the lower cased words with separators of a query, which a matching message must contain.
+     *
+     * @param query the query
+     * @return the words
+     */
+    public static Set<String> querySubstrings(final String query) {
+        final Set<String> substrings = Sets.newLinkedHashSet();
+        if (query == null) {
+            return substrings;
+        }
+        for (final String word : WORDS.split(query.toLowerCase(Locale.ENGLISH))) {
+            final String trimmed = SEPARATOR.trimFrom(word);
+            if (SEPARATOR.matchesAnyOf(trimmed)) {
+                substrings.add(trimmed);
+            }
+        }
+        return substrings;
+    }
+
+    private static void add(final Set<String> terms, final String term) {
+        final String trimmed = SEPARATOR.trimFrom(term);
+        if (trimmed.length() >= MIN_LENGTH && trimmed.length() <= MAX_LENGTH && terms.size() < MAX_TERMS) {
+            terms.add(trimmed);
+        }
+    }
+
+    /**
+     * The most terms indexed for a single log message.  Enough for a batch of command output of the default
+     * <code>ssh.output.maxBatchSize</code>, text holds at most one term for every two characters.
+     */
+    public static final int MAX_TERMS = 8 * 1024;
+    /**
+     * The longest term, longer words are not indexed.
+     */
+    public static final int MAX_LENGTH = 64;
+
+    private static final int MIN_LENGTH = 2;
+    private static final CharMatcher SEPARATOR = CharMatcher.anyOf("._-");
+    private static final CharMatcher WORD = CharMatcher.inRange('a', 'z').or(CharMatcher.inRange('0', '9')).or(SEPARATOR);
+    private static final Splitter WORDS = Splitter.on(WORD.negate()).omitEmptyStrings();
+    private static final Splitter PARTS = Splitter.on(SEPARATOR).omitEmptyStrings();
+    private static final Logger LOGGER = LoggerFactory.getLogger(LogTerms.class);
+}
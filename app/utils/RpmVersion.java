@@ -0,0 +1,115 @@
+/**
+ * Copyright 2021 Brandon Arp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package utils;
+
+import java.util.Arrays;
+
+/**
+ * A version string split into its chunks once, so it can be compared many times without scanning it again.  Orders
+ * the same as {@link RpmVersionComparator}.
+ *
+ * <p>Like <code>BigDecimal</code>, the ordering is not consistent with equals: <code>1.01</code> and <code>1.1</code>
+ * compare as equal but are not equal.
+ *
+ * @author Brandon Arp (brandon dot arp at inscopemetrics dot com)
+ */
+public final class RpmVersion implements Comparable<RpmVersion> {
+    /**
+     * Parses a version.
+     *
+     * @param version the version string
+     * @return the parsed version
+     */
+    public static RpmVersion parse(final String version) {
+        int[] bounds = new int[8];
+        int count = 0;
+        int index = RpmVersionComparator.skipSeparators(version, 0);
+        while (index < version.length()) {
+            final int end = RpmVersionComparator.chunkEnd(version, index);
+            if (count * 2 == bounds.length) {
+                bounds = Arrays.copyOf(bounds, bounds.length * 2);
+            }
+            bounds[count * 2] = index;
+            bounds[count * 2 + 1] = end;
+            count++;
+            index = RpmVersionComparator.skipSeparators(version, end);
+        }
+        return new RpmVersion(version, Arrays.copyOf(bounds, count * 2));
+    }
+
+    public String getVersion() {
+        return _version;
+    }
+
+    @Override
+    public int compareTo(final RpmVersion other) {
+        final String left = _version;
+        final String right = other._version;
+        if (this == other || left.equals(right)) {
+            return 0;
+        }
+
+        int leftIndex = 0;
+        int rightIndex = 0;
+        for (int chunk = 0; leftIndex < left.length() && rightIndex < right.length(); chunk++) {
+            final int leftStart = _chunks.length > chunk * 2 ? _chunks[chunk * 2] : left.length();
+            final int leftEnd = _chunks.length > chunk * 2 ? _chunks[chunk * 2 + 1] : left.length();
+            final int rightStart = other._chunks.length > chunk * 2 ? other._chunks[chunk * 2] : right.length();
+            final int rightEnd = other._chunks.length > chunk * 2 ? other._chunks[chunk * 2 + 1] : right.length();
+
+            if (leftStart == leftEnd || rightStart == rightEnd) {
+                return RpmVersionComparator.compareExhausted(left, leftStart, leftEnd, right, rightStart, rightEnd);
+            }
+            final int compare = RpmVersionComparator.compareChunks(left, leftStart, leftEnd, right, rightStart, rightEnd);
+            if (compare != 0) {
+                return compare;
+            }
+            leftIndex = leftEnd;
+            rightIndex = rightEnd;
+        }
+        return RpmVersionComparator.compareRemaining(left, leftIndex, right, rightIndex);
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        return _version.equals(((RpmVersion) o)._version);
+    }
+
+    @Override
+    public int hashCode() {
+        return _version.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return _version;
+    }
+
+    private RpmVersion(final String version, final int[] chunks) {
+        _version = version;
+        _chunks = chunks;
+    }
+
+    private final String _version;
+    // The start and exclusive end of each chunk in the version string
+    private final int[] _chunks;
+}
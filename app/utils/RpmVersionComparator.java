@@ -21,6 +21,10 @@ import java.util.Objects;
 /**
  * Compares version strings according to RPM spec.
  *
+ * <p>The strings are walked in place, a comparison allocates nothing.  Numeric chunks are compared digit by digit
+ * so they can be of any length.  To compare the same versions many times, e.g. to sort them, parse them once into
+ * {@link RpmVersion} keys.
+ *
  * @author Brandon Arp (brandon dot arp at inscopemetrics dot com)
  */
 public class RpmVersionComparator implements Comparator<String> {
@@ -35,103 +39,196 @@ public class RpmVersionComparator implements Comparator<String> {
 
         int leftIndex = 0;
         int rightIndex = 0;
-
-        final StringBuilder left = new StringBuilder();
-        final StringBuilder right = new StringBuilder();
         while (leftIndex < o1.length() && rightIndex < o2.length()) {
             // Get the next chunk from the strings
-            leftIndex = getNextChunk(leftIndex, o1, left);
-            rightIndex = getNextChunk(rightIndex, o2, right);
-
-            final String leftString = left.toString();
-            final String rightString = right.toString();
+            final int leftStart = skipSeparators(o1, leftIndex);
+            final int leftEnd = chunkEnd(o1, leftStart);
+            final int rightStart = skipSeparators(o2, rightIndex);
+            final int rightEnd = chunkEnd(o2, rightStart);
 
-            if (leftString.length() == 0 && rightString.length() == 0) {
-                return 0;
+            if (leftStart == leftEnd || rightStart == rightEnd) {
+                return compareExhausted(o1, leftStart, leftEnd, o2, rightStart, rightEnd);
             }
-
-            if (!leftString.equals(rightString)) {
-                if (leftString.charAt(0) == '~' && rightString.charAt(0) == '~') {
-                    return Integer.compare(leftString.length(), rightString.length());
-                } else if (leftString.charAt(0) == '~') {
-                    return -1;
-                } else if (rightString.charAt(0) == '~') {
-                    return 1;
-                } else if (Character.isDigit(leftString.charAt(0)) && Character.isDigit(rightString.charAt(0))) {
-                    // Compare by numeric
-                    final int compare = Integer.valueOf(leftString).compareTo(Integer.valueOf(rightString));
-                    if (compare != 0) {
-                        return compare;
-                    }
-                } else if (Character.isLetter(leftString.charAt(0)) && Character.isLetter(rightString.charAt(0))) {
-                    final int compare = leftString.compareTo(rightString);
-                    if (compare != 0) {
-                        return compare;
-                    }
-                } else if (Character.isLetter(leftString.charAt(0))) {
-                    return -1;
-                } else if (Character.isLetter(rightString.charAt(0))) {
-                    return 1;
-                }
+            final int compare = compareChunks(o1, leftStart, leftEnd, o2, rightStart, rightEnd);
+            if (compare != 0) {
+                return compare;
             }
+            leftIndex = leftEnd;
+            rightIndex = rightEnd;
+        }
+        return compareRemaining(o1, leftIndex, o2, rightIndex);
+    }
+
+    /**
+     * Finds the start of the chunk at or after an index: the separators, anything other than letters, digits and
+     * <code>~</code>, are skipped.
+     *
+     * @param string the version
+     * @param index the index to start from
+     * @return the start of the next chunk, the length of the string if there is none
+     */
+    static int skipSeparators(final String string, final int index) {
+        int i = index;
+        while (i < string.length() && !isChunkCharacter(string.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Finds the end of the chunk that starts at an index: a run of letters, of digits or of <code>~</code>.
+     *
+     * @param string the version
+     * @param start the start of the chunk
+     * @return the exclusive end of the chunk
+     */
+    static int chunkEnd(final String string, final int start) {
+        if (start >= string.length()) {
+            return start;
+        }
+        final int kind = kindOf(string.charAt(start));
+        int i = start + 1;
+        while (i < string.length() && kindOf(string.charAt(i)) == kind) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Compares two non-empty chunks.
+     *
+     * @return the comparison of the chunks, equal chunks compare as 0
+     */
+    static int compareChunks(
+            final String left,
+            final int leftStart,
+            final int leftEnd,
+            final String right,
+            final int rightStart,
+            final int rightEnd) {
+        final int leftKind = kindOf(left.charAt(leftStart));
+        final int rightKind = kindOf(right.charAt(rightStart));
+        if (leftKind == TILDE && rightKind == TILDE) {
+            return Integer.compare(leftEnd - leftStart, rightEnd - rightStart);
+        } else if (leftKind == TILDE) {
+            return -1;
+        } else if (rightKind == TILDE) {
+            return 1;
+        } else if (leftKind == DIGIT && rightKind == DIGIT) {
+            return compareNumeric(left, leftStart, leftEnd, right, rightStart, rightEnd);
+        } else if (leftKind == LETTER && rightKind == LETTER) {
+            return compareAlpha(left, leftStart, leftEnd, right, rightStart, rightEnd);
+        } else if (leftKind == LETTER) {
+            return -1;
+        } else {
+            return 1;
         }
+    }
+
+    /**
+     * Compares the chunks of two versions when at least one of them only had separators left.
+     *
+     * @return the comparison of the versions
+     */
+    static int compareExhausted(
+            final String left,
+            final int leftStart,
+            final int leftEnd,
+            final String right,
+            final int rightStart,
+            final int rightEnd) {
+        if (leftStart == leftEnd && rightStart == rightEnd) {
+            return 0;
+        } else if (leftStart == leftEnd) {
+            // A trailing ~ makes the longer version older, anything else makes it newer
+            return right.charAt(rightStart) == '~' ? 1 : -1;
+        } else {
+            return left.charAt(leftStart) == '~' ? -1 : 1;
+        }
+    }
 
-        final int leftRemaining = o1.length() - leftIndex;
-        final int rightRemaining = o2.length() - rightIndex;
-        if (leftRemaining > 0 && o1.charAt(leftIndex) == '~') {
+    /**
+     * Compares two versions once one of them has no characters left after its last compared chunk.
+     *
+     * @return the comparison of the versions
+     */
+    static int compareRemaining(final String left, final int leftIndex, final String right, final int rightIndex) {
+        final int leftRemaining = left.length() - leftIndex;
+        final int rightRemaining = right.length() - rightIndex;
+        if (leftRemaining > 0 && left.charAt(leftIndex) == '~') {
             return -1;
-        } else if (rightRemaining > 0 && o2.charAt(rightIndex) == '~') {
+        } else if (rightRemaining > 0 && right.charAt(rightIndex) == '~') {
             return 1;
         } else {
             return Integer.compare(leftRemaining, rightRemaining);
         }
     }
 
-    private int getNextChunk(final int initialIndex, final String string, final StringBuilder builder) {
-        int index = initialIndex;
-        builder.setLength(0);
-        char character = string.charAt(index);
+    private static int compareNumeric(
+            final String left,
+            final int leftStart,
+            final int leftEnd,
+            final String right,
+            final int rightStart,
+            final int rightEnd) {
+        // Without the leading zeros the longer number is the larger one, numbers of the same length compare by digit
+        int leftIndex = leftStart;
+        while (leftIndex < leftEnd && Character.digit(left.charAt(leftIndex), 10) == 0) {
+            leftIndex++;
+        }
+        int rightIndex = rightStart;
+        while (rightIndex < rightEnd && Character.digit(right.charAt(rightIndex), 10) == 0) {
+            rightIndex++;
+        }
+        final int lengthCompare = Integer.compare(leftEnd - leftIndex, rightEnd - rightIndex);
+        if (lengthCompare != 0) {
+            return lengthCompare;
+        }
+        while (leftIndex < leftEnd) {
+            final int compare = Integer.compare(
+                    Character.digit(left.charAt(leftIndex++), 10),
+                    Character.digit(right.charAt(rightIndex++), 10));
+            if (compare != 0) {
+                return compare;
+            }
+        }
+        return 0;
+    }
 
-        // Strip all the non-alphanumeric and ~ characters
-        while (!(Character.isLetterOrDigit(character) || character == '~')) {
-            index++;
-            if (index >= string.length()) {
-                return index;
+    private static int compareAlpha(
+            final String left,
+            final int leftStart,
+            final int leftEnd,
+            final String right,
+            final int rightStart,
+            final int rightEnd) {
+        final int length = Math.min(leftEnd - leftStart, rightEnd - rightStart);
+        for (int i = 0; i < length; i++) {
+            final int compare = Character.compare(left.charAt(leftStart + i), right.charAt(rightStart + i));
+            if (compare != 0) {
+                return Integer.signum(compare);
             }
-            character = string.charAt(index);
         }
+        return Integer.compare(leftEnd - leftStart, rightEnd - rightStart);
+    }
+
+    private static boolean isChunkCharacter(final char character) {
+        return Character.isLetterOrDigit(character) || character == '~';
+    }
 
+    private static int kindOf(final char character) {
         if (Character.isLetter(character)) {
-            // Consume until non-alpha
-            while (Character.isLetter(character)) {
-                builder.append(character);
-                index++;
-                if (index >= string.length()) {
-                    return index;
-                }
-                character = string.charAt(index);
-            }
+            return LETTER;
         } else if (Character.isDigit(character)) {
-            // Consume until non-numeric
-            while (Character.isDigit(character)) {
-                builder.append(character);
-                index++;
-                if (index >= string.length()) {
-                    return index;
-                }
-                character = string.charAt(index);
-            }
+            return DIGIT;
         } else if (character == '~') {
-            // Consume until non-numeric
-            while (character == '~') {
-                builder.append(character);
-                index++;
-                if (index >= string.length()) {
-                    return index;
-                }
-                character = string.charAt(index);
-            }
+            return TILDE;
         }
-        return index;
+        return SEPARATOR;
     }
+
+    private static final int SEPARATOR = 0;
+    private static final int LETTER = 1;
+    private static final int DIGIT = 2;
+    private static final int TILDE = 3;
 }
@@ -0,0 +1,176 @@
+/**
+ * Copyright 2021 Brandon Arp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package models;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import io.ebean.Database;
+import io.ebean.DatabaseFactory;
+import io.ebean.Ebean;
+import io.ebean.Transaction;
+import io.ebean.config.DatabaseConfig;
+import io.ebean.datasource.DataSourceConfig;
+import org.joda.time.DateTime;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the time to start a deployment with one insert per host against {@link Deployment#materialize}
+ * for increasing stage sizes, on an in-memory H2 database.
+ *
+ * @author Brandon Arp (brandon dot arp at inscopemetrics dot com)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DeploymentMaterializationBenchmark {
+    /**
+     * Sets up the database and a stage of {@link #_hostCount} hosts.
+     */
+    @Setup(Level.Trial)
+    public void setUp() {
+        final DataSourceConfig dataSourceConfig = new DataSourceConfig();
+        dataSourceConfig.setDriver("org.h2.Driver");
+        dataSourceConfig.setUrl("jdbc:h2:mem:materialize;DB_CLOSE_DELAY=-1");
+        dataSourceConfig.setUsername("artemis");
+        dataSourceConfig.setPassword("artemis");
+
+        final DatabaseConfig config = new DatabaseConfig();
+        config.setName("benchmark");
+        config.setDataSourceConfig(dataSourceConfig);
+        config.setDdlGenerate(true);
+        config.setDdlRun(true);
+        config.setDefaultServer(true);
+        config.setRegister(true);
+        config.addPackage("models");
+        _database = DatabaseFactory.create(config);
+        _history = createStage(_hostCount);
+    }
+
+    /**
+     * Shuts the database down.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        _database.shutdown(true, false);
+    }
+
+    /**
+     * The original implementation: lazy hostclass and host loads, one insert per host, two deployment saves.
+     *
+     * @return the deployment
+     */
+    @Benchmark
+    public Deployment perHost() {
+        final Stage stage = Stage.getById(_history.getStage().getId());
+        try (Transaction transaction = Ebean.beginTransaction()) {
+            final Deployment deployment = new Deployment();
+            deployment.setStart(DateTime.now());
+            deployment.setInitiator("benchmark");
+            deployment.setState(DeploymentState.NOT_STARTED);
+            deployment.setDeploymentOwner("localhost");
+            deployment.setHeartbeat(DateTime.now());
+            deployment.save();
+            final List<HostDeployment> hostDeployments = Lists.newArrayList();
+            stage.getHostclasses().forEach(hc -> hc.getHosts().forEach(host -> {
+                final HostDeployment hd = new HostDeployment();
+                hd.setDeployment(deployment);
+                hd.setHeartbeat(DateTime.now());
+                hd.setHost(host);
+                hd.setState(DeploymentState.NOT_STARTED);
+                hd.save();
+                hostDeployments.add(hd);
+            }));
+            deployment.setHostStates(hostDeployments);
+            deployment.setManifestHistory(_history);
+            deployment.save();
+            transaction.commit();
+            return deployment;
+        }
+    }
+
+    /**
+     * Starts the deployment with {@link Deployment#materialize}.
+     *
+     * @return the deployment
+     */
+    @Benchmark
+    public Deployment bulk() {
+        final ManifestHistory reloaded = Ebean.find(ManifestHistory.class, _history.getId());
+        try (Transaction transaction = Ebean.beginTransaction()) {
+            final Deployment deployment = Deployment.materialize(reloaded, "benchmark", "localhost");
+            transaction.commit();
+            return deployment;
+        }
+    }
+
+    private static ManifestHistory createStage(final int hostCount) {
+        try (Transaction transaction = Ebean.beginTransaction()) {
+            final List<Hostclass> hostclasses = Lists.newArrayList();
+            for (int i = 0; i < HOSTCLASSES_PER_STAGE; i++) {
+                final Hostclass hostclass = new Hostclass();
+                hostclass.setName("benchmark-hc" + i);
+                hostclass.save();
+                hostclasses.add(hostclass);
+            }
+            for (int i = 0; i < hostCount; i++) {
+                final Host host = new Host();
+                host.setName(String.format("benchmark-host%d.dc%d", i, i % 3));
+                host.setHostclass(hostclasses.get(i % HOSTCLASSES_PER_STAGE));
+                host.save();
+            }
+            final Stage stage = new Stage();
+            stage.setName("benchmark");
+            stage.setHostclasses(Sets.newHashSet(hostclasses));
+            stage.save();
+
+            final ManifestHistory history = new ManifestHistory();
+            history.setStage(stage);
+            history.setStart(DateTime.now());
+            history.setConfig("");
+            history.save();
+            transaction.commit();
+            return history;
+        }
+    }
+
+    // CHECKSTYLE.OFF: VisibilityModifier - JMH sets the parameters on public fields
+    @Param({"10", "100", "1000", "5000"})
+    public int _hostCount;
+    // CHECKSTYLE.ON: VisibilityModifier
+
+    private Database _database;
+    private ManifestHistory _history;
+
+    private static final int HOSTCLASSES_PER_STAGE = 4;
+}
@@ -0,0 +1,103 @@
+/**
+ * Copyright 2021 Brandon Arp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package utils;
+
+import com.google.common.collect.Lists;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Compares the time to sort version strings with the original {@link RpmVersionComparator}, which copied every
+ * chunk into a new string, against the in place comparator and against sorting {@link RpmVersion} keys.
+ *
+ * @author Brandon Arp (brandon dot arp at inscopemetrics dot com)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RpmVersionComparatorBenchmark {
+    /**
+     * Generates {@link #_versionCount} versions.
+     */
+    @Setup(Level.Trial)
+    public void setUp() {
+        _versions = RpmVersionComparatorAgreementTest.createVersions(_versionCount);
+    }
+
+    /**
+     * Sorts with the comparator that copied every chunk.
+     *
+     * @return the sorted versions
+     */
+    @Benchmark
+    public List<String> legacy() {
+        final List<String> copy = Lists.newArrayList(_versions);
+        copy.sort(LEGACY_COMPARATOR);
+        return copy;
+    }
+
+    /**
+     * Sorts with the in place {@link RpmVersionComparator}.
+     *
+     * @return the sorted versions
+     */
+    @Benchmark
+    public List<String> inPlace() {
+        final List<String> copy = Lists.newArrayList(_versions);
+        copy.sort(COMPARATOR);
+        return copy;
+    }
+
+    /**
+     * Parses each version once into a {@link RpmVersion} and sorts the keys; the parsing is part of the measurement.
+     *
+     * @return the sorted versions
+     */
+    @Benchmark
+    public List<RpmVersion> parsed() {
+        final List<RpmVersion> parsed = _versions.stream().map(RpmVersion::parse).collect(Collectors.toList());
+        parsed.sort(Comparator.naturalOrder());
+        return parsed;
+    }
+
+    // CHECKSTYLE.OFF: VisibilityModifier - JMH sets the parameters on public fields
+    @Param({"1000", "10000", "100000"})
+    public int _versionCount;
+    // CHECKSTYLE.ON: VisibilityModifier
+
+    private List<String> _versions;
+
+    private static final Comparator<String> LEGACY_COMPARATOR = new LegacyRpmVersionComparator();
+    private static final RpmVersionComparator COMPARATOR = new RpmVersionComparator();
+}
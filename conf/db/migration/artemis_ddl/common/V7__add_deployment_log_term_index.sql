@@ -0,0 +1,23 @@
+/**
+ * Copyright 2021 Brandon Arp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+CREATE TABLE deployment_log_term (
+    term character varying(64) NOT NULL,
+    deployment_log_id bigint NOT NULL,
+    primary key (term, deployment_log_id)
+);
+
+ALTER TABLE deployment_log_term ADD FOREIGN KEY (deployment_log_id) REFERENCES deployment_log(id) ON DELETE CASCADE;
+CREATE INDEX ON deployment_log_term (deployment_log_id);
@@ -0,0 +1,27 @@
+/**
+ * Copyright 2021 Brandon Arp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+CREATE TABLE host_package (
+    id ${idtype} primary key,
+    host_id bigint NOT NULL,
+    type character varying(16) NOT NULL,
+    name character varying(255) NOT NULL,
+    version character varying(255) NOT NULL,
+    updated_at timestamp NOT NULL,
+    unique (host_id, type, name)
+);
+
+ALTER TABLE host_package ADD FOREIGN KEY (host_id) REFERENCES host(id) ON DELETE CASCADE;
+CREATE INDEX ON host_package (type, name);
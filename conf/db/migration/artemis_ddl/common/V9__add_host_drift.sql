@@ -0,0 +1,31 @@
+/**
+ * Copyright 2021 Brandon Arp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+CREATE TABLE host_drift (
+    id ${idtype} primary key,
+    host_id bigint NOT NULL,
+    stage_id bigint NOT NULL,
+    manifest_id bigint NOT NULL,
+    drifted boolean NOT NULL,
+    change_count integer NOT NULL,
+    changes text NOT NULL DEFAULT '',
+    scanned_at timestamp NOT NULL,
+    unique (host_id, stage_id)
+);
+
+ALTER TABLE host_drift ADD FOREIGN KEY (host_id) REFERENCES host(id) ON DELETE CASCADE;
+ALTER TABLE host_drift ADD FOREIGN KEY (stage_id) REFERENCES stage(id) ON DELETE CASCADE;
+ALTER TABLE host_drift ADD FOREIGN KEY (manifest_id) REFERENCES manifest(id) ON DELETE CASCADE;
+CREATE INDEX ON host_drift (stage_id, drifted);
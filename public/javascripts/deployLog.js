@@ -15,10 +15,16 @@
  */
 
 var source = new EventSource('/api/deployLog/' + deploymentId);
+// A reconnected stream resends the lines that may have been missed, skip the ones already shown
+var shown = {};
 source.addEventListener("log", function(e) {
     var messages = JSON.parse(e.data).messages;
     console.log("messages", messages, e);
     messages.forEach(function(msg) {
+        if (shown[msg.id]) {
+            return;
+        }
+        shown[msg.id] = true;
         $("#entries").append(msg.timestamp + " [" + msg.host + "] - " + msg.line + "\n");
     });
 });
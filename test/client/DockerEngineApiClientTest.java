@@ -0,0 +1,115 @@
+/**
+ * Copyright 2021 Brandon Arp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package client;
+
+import com.google.common.base.Charsets;
+import net.schmizz.sshj.SSHClient;
+import net.schmizz.sshj.connection.channel.direct.Session;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * @author Brandon Arp (brandon dot arp at inscopemetrics dot com)
+ */
+public class DockerEngineApiClientTest {
+    @Test
+    public void testGetRunningContainersWithFilters() throws Exception {
+        final String list = "[{\"Id\":\"aaa\",\"Names\":[\"/artemis-1\"],\"ImageID\":\"sha256:1\",\"Created\":1609459200}]";
+        // The list is chunked, split in the middle of the JSON
+        final String responses = "HTTP/1.1 200 OK\r\nContent-Type: application/json\r\nTransfer-Encoding: chunked\r\n\r\n"
+                + "a\r\n" + list.substring(0, 10) + "\r\n"
+                + Integer.toHexString(list.length() - 10) + "\r\n" + list.substring(10) + "\r\n"
+                + "0\r\n\r\n";
+        final ByteArrayOutputStream requests = new ByteArrayOutputStream();
+        final DockerEngineApiClient client = createClient(responses, requests);
+
+        final List<DockerDeploymentClient.ContainerDescription> containers =
+                client.getRunningContainers(Collections.singletonList("label=com.groupon.artemis.environment=1"));
+
+        Assert.assertEquals(1, containers.size());
+        Assert.assertEquals("aaa", containers.get(0).getId());
+        Assert.assertEquals("/artemis-1", containers.get(0).getName());
+        Assert.assertEquals("sha256:1", containers.get(0).getImageId());
+        Assert.assertEquals("2021-01-01T00:00:00Z", containers.get(0).getCreatedAsString());
+        final String written = new String(requests.toByteArray(), Charsets.US_ASCII);
+        Assert.assertTrue(written.startsWith(
+                "GET /v1.39/containers/json?filters=%7B%22label%22%3A%5B%22com.groupon.artemis.environment%3D1%22%5D%7D HTTP/1.1\r\n"));
+    }
+
+    @Test
+    public void testStopAndRemoveAlreadyStopped() throws Exception {
+        final String responses = "HTTP/1.1 304 Not Modified\r\n\r\n" + "HTTP/1.1 204 No Content\r\n\r\n";
+        final ByteArrayOutputStream requests = new ByteArrayOutputStream();
+        final DockerEngineApiClient client = createClient(responses, requests);
+
+        client.stopAndRemoveContainer("my_container");
+
+        final String written = new String(requests.toByteArray(), Charsets.US_ASCII);
+        Assert.assertTrue(written.contains("POST /v1.39/containers/my_container/stop HTTP/1.1\r\n"));
+        Assert.assertTrue(written.contains("DELETE /v1.39/containers/my_container HTTP/1.1\r\n"));
+    }
+
+    @Test
+    public void testPullUsesDockerCli() throws Exception {
+        final SSHClient clientMock = Mockito.mock(SSHClient.class);
+        final Session.Command cmdMock = mockPull(clientMock, "docker pull 'registry:5000/foo:1.0'", 0);
+        final DockerEngineApiClient client = new DockerEngineApiClient(clientMock, "docker");
+
+        client.pull("registry:5000/foo:1.0");
+
+        Mockito.verify(cmdMock).join();
+    }
+
+    @Test(expected = DockerDeploymentClient.NonZeroExitStatusException.class)
+    public void testPullReportsFailure() throws Exception {
+        final SSHClient clientMock = Mockito.mock(SSHClient.class);
+        mockPull(clientMock, "docker pull 'registry/foo@sha256:abc'", 1);
+        final DockerEngineApiClient client = new DockerEngineApiClient(clientMock, "docker");
+
+        client.pull("registry/foo@sha256:abc");
+    }
+
+    private static DockerEngineApiClient createClient(final String responses, final ByteArrayOutputStream requests)
+            throws Exception {
+        final SSHClient clientMock = Mockito.mock(SSHClient.class);
+        final Session sessionMock = Mockito.mock(Session.class);
+        final Session.Command cmdMock = Mockito.mock(Session.Command.class);
+        Mockito.when(clientMock.startSession()).thenReturn(sessionMock);
+        Mockito.when(sessionMock.exec("docker system dial-stdio")).thenReturn(cmdMock);
+        Mockito.when(cmdMock.getInputStream()).thenReturn(new ByteArrayInputStream(responses.getBytes(Charsets.UTF_8)));
+        Mockito.when(cmdMock.getOutputStream()).thenReturn(requests);
+        return new DockerEngineApiClient(clientMock, "docker");
+    }
+
+    private static Session.Command mockPull(final SSHClient clientMock, final String command, final int exitStatus)
+            throws Exception {
+        final Session sessionMock = Mockito.mock(Session.class);
+        final Session.Command cmdMock = Mockito.mock(Session.Command.class);
+        Mockito.when(clientMock.startSession()).thenReturn(sessionMock);
+        Mockito.when(sessionMock.exec(command)).thenReturn(cmdMock);
+        Mockito.when(cmdMock.getInputStream()).thenReturn(new ByteArrayInputStream(new byte[0]));
+        Mockito.when(cmdMock.getErrorStream())
+                .thenReturn(new ByteArrayInputStream("unauthorized".getBytes(Charsets.UTF_8)));
+        Mockito.when(cmdMock.getExitStatus()).thenReturn(exitStatus);
+        return cmdMock;
+    }
+}
@@ -0,0 +1,174 @@
+/**
+ * Copyright 2021 Brandon Arp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package client.docker;
+
+import client.DockerDeploymentClient;
+import client.docker.inspectionbeans.ImageInspection;
+import com.arpnetworking.metrics.Metrics;
+import com.arpnetworking.metrics.MetricsFactory;
+import com.google.common.base.Strings;
+import com.typesafe.config.ConfigFactory;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * @author Brandon Arp (brandon dot arp at inscopemetrics dot com)
+ */
+public class ImageInspectionCacheTest {
+    @Before
+    public void setUp() {
+        _cache = createCache("10 seconds");
+    }
+
+    @Test
+    public void testInspectsImageIdOnceAcrossHosts() throws Exception {
+        final ImageInspection inspection = new ImageInspection();
+        for (int host = 0; host < 200; ++host) {
+            final DockerDeploymentClient client = Mockito.mock(DockerDeploymentClient.class);
+            Mockito.when(client.inspectImages(Collections.singletonList(IMAGE_A)))
+                    .thenReturn(Collections.singletonList(inspection));
+            final List<ImageInspection> inspections = _cache.inspectImages(client, Collections.singletonList(IMAGE_A));
+            Assert.assertSame(inspection, inspections.get(0));
+            Mockito.verify(client, Mockito.times(host == 0 ? 1 : 0)).inspectImages(Mockito.anyList());
+        }
+    }
+
+    @Test
+    public void testOnlyInspectsMissesInOrder() throws Exception {
+        final ImageInspection first = new ImageInspection();
+        final ImageInspection second = new ImageInspection();
+        final DockerDeploymentClient client = Mockito.mock(DockerDeploymentClient.class);
+        Mockito.when(client.inspectImages(Collections.singletonList(IMAGE_A))).thenReturn(Collections.singletonList(first));
+        Mockito.when(client.inspectImages(Collections.singletonList(IMAGE_B))).thenReturn(Collections.singletonList(second));
+        _cache.inspectImages(client, Collections.singletonList(IMAGE_A));
+
+        final List<ImageInspection> inspections = _cache.inspectImages(client, Arrays.asList(IMAGE_B, "sha256:" + IMAGE_A));
+
+        Assert.assertSame(second, inspections.get(0));
+        Assert.assertSame(first, inspections.get(1));
+        Mockito.verify(client).inspectImages(Collections.singletonList(IMAGE_B));
+    }
+
+    @Test
+    public void testDoesNotCacheTags() throws Exception {
+        final DockerDeploymentClient client = Mockito.mock(DockerDeploymentClient.class);
+        Mockito.when(client.inspectImages(Mockito.anyList())).thenReturn(Collections.singletonList(new ImageInspection()));
+        _cache.inspectImages(client, Collections.singletonList("registry/foo:latest"));
+        _cache.inspectImages(client, Collections.singletonList("registry/foo:latest"));
+        Mockito.verify(client, Mockito.times(2)).inspectImages(Mockito.anyList());
+    }
+
+    @Test
+    public void testPresenceCheckFillsCache() throws Exception {
+        final ImageInspection inspection = new ImageInspection();
+        final DockerDeploymentClient client = Mockito.mock(DockerDeploymentClient.class);
+        Mockito.when(client.inspectImages(Collections.singletonList(IMAGE_A)))
+                .thenReturn(Collections.singletonList(inspection));
+        Assert.assertTrue(_cache.isImagePresent(client, IMAGE_A));
+
+        final DockerDeploymentClient other = Mockito.mock(DockerDeploymentClient.class);
+        Assert.assertSame(inspection, _cache.inspectImages(other, Collections.singletonList(IMAGE_A)).get(0));
+        Mockito.verify(other, Mockito.never()).inspectImages(Mockito.anyList());
+    }
+
+    @Test
+    public void testMissingImageIsNotPresent() throws Exception {
+        final DockerDeploymentClient client = Mockito.mock(DockerDeploymentClient.class);
+        Mockito.when(client.inspectImages(Mockito.anyList())).thenReturn(Collections.emptyList());
+        Assert.assertFalse(_cache.isImagePresent(client, IMAGE_A));
+    }
+
+    @Test
+    public void testConcurrentMissesShareOneInspection() throws Exception {
+        final ImageInspection inspection = new ImageInspection();
+        final CountDownLatch inspecting = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final DockerDeploymentClient first = Mockito.mock(DockerDeploymentClient.class);
+        Mockito.when(first.inspectImages(Collections.singletonList(IMAGE_A))).thenAnswer(invocation -> {
+            inspecting.countDown();
+            release.await();
+            return Collections.singletonList(inspection);
+        });
+        final DockerDeploymentClient second = Mockito.mock(DockerDeploymentClient.class);
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final Future<List<ImageInspection>> firstResult =
+                    executor.submit(() -> _cache.inspectImages(first, Collections.singletonList(IMAGE_A)));
+            inspecting.await();
+            final Future<List<ImageInspection>> secondResult =
+                    executor.submit(() -> _cache.inspectImages(second, Collections.singletonList(IMAGE_A)));
+            release.countDown();
+            Assert.assertSame(inspection, firstResult.get().get(0));
+            Assert.assertSame(inspection, secondResult.get().get(0));
+            Mockito.verify(second, Mockito.never()).inspectImages(Mockito.anyList());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testStuckInspectionTimesOut() throws Exception {
+        _cache = createCache("100 milliseconds");
+        final ImageInspection inspection = new ImageInspection();
+        final CountDownLatch inspecting = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final DockerDeploymentClient stuck = Mockito.mock(DockerDeploymentClient.class);
+        Mockito.when(stuck.inspectImages(Collections.singletonList(IMAGE_A))).thenAnswer(invocation -> {
+            inspecting.countDown();
+            release.await();
+            return Collections.singletonList(inspection);
+        });
+        final DockerDeploymentClient other = Mockito.mock(DockerDeploymentClient.class);
+        Mockito.when(other.inspectImages(Collections.singletonList(IMAGE_A)))
+                .thenReturn(Collections.singletonList(inspection));
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            executor.submit(() -> _cache.inspectImages(stuck, Collections.singletonList(IMAGE_A)));
+            inspecting.await();
+
+            Assert.assertSame(inspection, _cache.inspectImages(other, Collections.singletonList(IMAGE_A)).get(0));
+            Mockito.verify(other).inspectImages(Collections.singletonList(IMAGE_A));
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    private static ImageInspectionCache createCache(final String waitTimeout) {
+        final MetricsFactory metricsFactory = Mockito.mock(MetricsFactory.class);
+        Mockito.when(metricsFactory.create()).thenReturn(Mockito.mock(Metrics.class));
+        return new ImageInspectionCache(
+                ConfigFactory.parseString(
+                        "artemis.dockerInspectionCacheSize = 10\n"
+                                + "artemis.dockerInspectionWaitTimeout = " + waitTimeout),
+                metricsFactory);
+    }
+
+    private ImageInspectionCache _cache;
+
+    private static final String IMAGE_A = Strings.repeat("a", 64);
+    private static final String IMAGE_B = Strings.repeat("b", 64);
+}
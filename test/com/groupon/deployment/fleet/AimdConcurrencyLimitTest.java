@@ -0,0 +1,74 @@
+/**
+ * Copyright 2021 Brandon Arp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.groupon.deployment.fleet;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Brandon Arp (brandon dot arp at inscopemetrics dot com)
+ */
+public class AimdConcurrencyLimitTest {
+    @Test
+    public void testAdditiveIncrease() {
+        final AimdConcurrencyLimit limit = new AimdConcurrencyLimit(2, 1, 4, 0.5, 0.05, 2.0, 20);
+        Assert.assertEquals(2, limit.getLimit());
+        limit.onComplete(1000, false);
+        Assert.assertEquals(2, limit.getLimit());
+        limit.onComplete(1000, false);
+        Assert.assertEquals(3, limit.getLimit());
+        for (int i = 0; i < 20; i++) {
+            limit.onComplete(1000, false);
+        }
+        Assert.assertEquals(4, limit.getLimit());
+    }
+
+    @Test
+    public void testFailureDecrease() {
+        final AimdConcurrencyLimit limit = new AimdConcurrencyLimit(8, 1, 10, 0.5, 0.05, 2.0, 20);
+        limit.onComplete(1000, true);
+        Assert.assertEquals(4, limit.getLimit());
+        // Still cooling down from the last decrease
+        limit.onComplete(1000, true);
+        Assert.assertEquals(4, limit.getLimit());
+        limit.onComplete(1000, true);
+        limit.onComplete(1000, true);
+        limit.onComplete(1000, true);
+        Assert.assertEquals(2, limit.getLimit());
+    }
+
+    @Test
+    public void testLatencyDecrease() {
+        final AimdConcurrencyLimit limit = new AimdConcurrencyLimit(8, 2, 10, 0.5, 0.05, 2.0, 20);
+        limit.onComplete(1000, false);
+        limit.onComplete(1000, false);
+        limit.onComplete(1000, false);
+        Assert.assertEquals(8, limit.getLimit());
+        limit.onComplete(5000, false);
+        Assert.assertEquals(4, limit.getLimit());
+        Assert.assertEquals(1000, limit.getLatencyPercentile(50));
+        Assert.assertEquals(5000, limit.getLatencyPercentile(99));
+    }
+
+    @Test
+    public void testBounds() {
+        final AimdConcurrencyLimit limit = new AimdConcurrencyLimit(20, 3, 10, 0.1, 0.0, 2.0, 5);
+        Assert.assertEquals(10, limit.getLimit());
+        limit.onComplete(1000, true);
+        Assert.assertEquals(3, limit.getLimit());
+        Assert.assertEquals(1.0, limit.getFailureRate(), 0.001);
+    }
+}
@@ -0,0 +1,166 @@
+/**
+ * Copyright 2021 Brandon Arp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.groupon.deployment.fleet;
+
+import com.google.common.collect.Sets;
+import io.ebean.Database;
+import io.ebean.DatabaseFactory;
+import io.ebean.Ebean;
+import io.ebean.Transaction;
+import io.ebean.config.DatabaseConfig;
+import io.ebean.datasource.DataSourceConfig;
+import models.Deployment;
+import models.DeploymentState;
+import models.Host;
+import models.HostDeployment;
+import models.Hostclass;
+import models.ManifestHistory;
+import models.Stage;
+import org.joda.time.DateTime;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * Tests the host leases {@link Distributed} deploys with: a server that loses the lease of a host, while its
+ * command is still running, cannot record a result over the one of the server that took the host over.  The
+ * test registers its own default Ebean database, so the build runs it in a JVM of its own.
+ *
+ * @author Brandon Arp (brandon dot arp at inscopemetrics dot com)
+ */
+public class DistributedLeaseTest {
+    @BeforeClass
+    public static void setUp() {
+        final DataSourceConfig dataSourceConfig = new DataSourceConfig();
+        dataSourceConfig.setDriver("org.h2.Driver");
+        dataSourceConfig.setUrl("jdbc:h2:mem:distributed;DB_CLOSE_DELAY=-1");
+        dataSourceConfig.setUsername("artemis");
+        dataSourceConfig.setPassword("artemis");
+
+        final DatabaseConfig config = new DatabaseConfig();
+        config.setName("distributed");
+        config.setDataSourceConfig(dataSourceConfig);
+        config.setDdlGenerate(true);
+        config.setDdlRun(true);
+        config.setDefaultServer(true);
+        config.setRegister(true);
+        config.addPackage("models");
+        database = DatabaseFactory.create(config);
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        database.shutdown(true, false);
+    }
+
+    @Test
+    public void liveLeaseIsNotTakenOver() {
+        final long id = createHostDeployment();
+        final HostDeployment first = Ebean.find(HostDeployment.class, id);
+        final HostDeployment second = Ebean.find(HostDeployment.class, id);
+
+        Assert.assertTrue(first.claim(NODE_A, LEASE));
+        Assert.assertFalse(second.claim(NODE_B, LEASE));
+        Assert.assertTrue(HostDeployment.getClaimable(first.getDeployment(), null, 10).isEmpty());
+        Assert.assertTrue(first.renewLease(NODE_A, LEASE));
+        Assert.assertTrue(first.startOwned(NODE_A));
+        Assert.assertTrue(first.finishOwned(NODE_A, DeploymentState.SUCCEEDED));
+        Assert.assertFalse(second.finishOwned(NODE_B, DeploymentState.FAILED));
+
+        final HostDeployment recorded = Ebean.find(HostDeployment.class, id);
+        Assert.assertEquals(DeploymentState.SUCCEEDED, recorded.getState());
+        Assert.assertNotNull(recorded.getFinished());
+    }
+
+    @Test
+    public void expiredLeaseIsTakenOverAndTheLateResultDropped() {
+        final long id = createHostDeployment();
+        final HostDeployment first = Ebean.find(HostDeployment.class, id);
+        final HostDeployment second = Ebean.find(HostDeployment.class, id);
+
+        // The first server's lease expires while its command runs, e.g. during a long GC pause
+        Assert.assertTrue(first.claim(NODE_A, EXPIRED));
+        Assert.assertTrue(first.startOwned(NODE_A));
+        final List<HostDeployment> claimable = HostDeployment.getClaimable(first.getDeployment(), null, 10);
+        Assert.assertEquals(1, claimable.size());
+        Assert.assertTrue(second.claim(NODE_B, LEASE));
+
+        // The first server finds out on its next renewal, or when it tries to record its result
+        Assert.assertFalse(first.renewLease(NODE_A, LEASE));
+        Assert.assertFalse(first.finishOwned(NODE_A, DeploymentState.SUCCEEDED));
+        Assert.assertFalse(first.startOwned(NODE_A));
+
+        Assert.assertTrue(second.startOwned(NODE_B));
+        Assert.assertTrue(second.finishOwned(NODE_B, DeploymentState.FAILED));
+        Assert.assertFalse(first.finishOwned(NODE_A, DeploymentState.SUCCEEDED));
+
+        final HostDeployment recorded = Ebean.find(HostDeployment.class, id);
+        Assert.assertEquals(DeploymentState.FAILED, recorded.getState());
+        Assert.assertEquals(NODE_B, recorded.getOwner());
+        Assert.assertEquals(1, HostDeployment.countByState(recorded.getDeployment(), DeploymentState.FAILED));
+        Assert.assertEquals(0, HostDeployment.countUnfinished(recorded.getDeployment()));
+    }
+
+    @Test
+    public void finishedHostIsNotClaimedAgain() {
+        final long id = createHostDeployment();
+        final HostDeployment first = Ebean.find(HostDeployment.class, id);
+        final HostDeployment second = Ebean.find(HostDeployment.class, id);
+
+        Assert.assertTrue(first.claim(NODE_A, EXPIRED));
+        Assert.assertTrue(first.finishOwned(NODE_A, DeploymentState.SUCCEEDED));
+        Assert.assertFalse(second.claim(NODE_B, LEASE));
+        Assert.assertTrue(HostDeployment.getClaimable(first.getDeployment(), null, 10).isEmpty());
+    }
+
+    private static long createHostDeployment() {
+        try (Transaction transaction = Ebean.beginTransaction()) {
+            final String prefix = "lease" + (++stageCounter);
+            final Hostclass hostclass = new Hostclass();
+            hostclass.setName(prefix + "-hc");
+            hostclass.save();
+            final Host host = new Host();
+            host.setName(prefix + "-host.dc1");
+            host.setHostclass(hostclass);
+            host.save();
+            final Stage stage = new Stage();
+            stage.setName(prefix);
+            stage.setHostclasses(Sets.newHashSet(hostclass));
+            stage.save();
+
+            final ManifestHistory history = new ManifestHistory();
+            history.setStage(stage);
+            history.setStart(DateTime.now());
+            history.setConfig("");
+            history.save();
+            final Deployment deployment = Deployment.materialize(history, "test", null);
+            transaction.commit();
+            return deployment.getHostStates().get(0).getId();
+        }
+    }
+
+    private static Database database;
+    private static int stageCounter = 0;
+
+    private static final String NODE_A = "artemis-a.dc1";
+    private static final String NODE_B = "artemis-b.dc1";
+    private static final Duration LEASE = Duration.ofMinutes(1);
+    private static final Duration EXPIRED = Duration.ofSeconds(-1);
+}
@@ -0,0 +1,98 @@
+/**
+ * Copyright 2021 Brandon Arp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.groupon.deployment.fleet;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import models.Deployment;
+import models.ManifestHistory;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Brandon Arp (brandon dot arp at inscopemetrics dot com)
+ */
+public class FleetDeploymentSettingsTest {
+    @Test
+    public void testAbsoluteHostCount() {
+        Assert.assertEquals(10, FleetDeploymentSettings.resolveHostCount("10", 400));
+        Assert.assertEquals(10, FleetDeploymentSettings.resolveHostCount(" 10 ", 4));
+    }
+
+    @Test
+    public void testPercentageHostCount() {
+        Assert.assertEquals(100, FleetDeploymentSettings.resolveHostCount("25%", 400));
+        Assert.assertEquals(1, FleetDeploymentSettings.resolveHostCount("25%", 3));
+        Assert.assertEquals(3, FleetDeploymentSettings.resolveHostCount("50 %", 5));
+    }
+
+    @Test
+    public void testHostCountIsAtLeastOne() {
+        Assert.assertEquals(1, FleetDeploymentSettings.resolveHostCount("0", 400));
+        Assert.assertEquals(1, FleetDeploymentSettings.resolveHostCount("10%", 0));
+    }
+
+    @Test
+    public void testStageSettingsOverrideDefaults() {
+        final FleetDeploymentSettings settings = FleetDeploymentSettings.forDeployment(
+                createDeployment("artemis.deployment { strategy = parallel, maxFailures = 3 }"),
+                CONFIG);
+        Assert.assertEquals(FleetDeploymentSettings.Strategy.PARALLEL, settings.getStrategy());
+        Assert.assertEquals(3, settings.getMaxFailures());
+        Assert.assertEquals(2, settings.getParallelism(400));
+    }
+
+    @Test
+    public void testUnparseableStageConfigFallsBackToDefaults() {
+        final FleetDeploymentSettings settings = FleetDeploymentSettings.forDeployment(
+                createDeployment("artemis.deployment { strategy = parallel"),
+                CONFIG);
+        Assert.assertEquals(FleetDeploymentSettings.Strategy.SEQUENTIAL, settings.getStrategy());
+    }
+
+    @Test
+    public void testUnresolvableStageConfigFallsBackToDefaults() {
+        final FleetDeploymentSettings settings = FleetDeploymentSettings.forDeployment(
+                createDeployment("artemis.deployment { strategy = ${missing} }"),
+                CONFIG);
+        Assert.assertEquals(FleetDeploymentSettings.Strategy.SEQUENTIAL, settings.getStrategy());
+    }
+
+    @Test
+    public void testInvalidStageSettingsFallBackToDefaults() {
+        Assert.assertEquals(
+                FleetDeploymentSettings.Strategy.SEQUENTIAL,
+                FleetDeploymentSettings.forDeployment(
+                        createDeployment("artemis.deployment { strategy = sideways }"),
+                        CONFIG).getStrategy());
+        Assert.assertEquals(
+                0,
+                FleetDeploymentSettings.forDeployment(
+                        createDeployment("artemis.deployment { maxFailures = many }"),
+                        CONFIG).getMaxFailures());
+    }
+
+    private static Deployment createDeployment(final String stageConfig) {
+        final ManifestHistory manifestHistory = new ManifestHistory();
+        manifestHistory.setConfig(stageConfig);
+        final Deployment deployment = new Deployment();
+        deployment.setManifestHistory(manifestHistory);
+        return deployment;
+    }
+
+    private static final Config CONFIG = ConfigFactory.parseString(
+            "artemis.deployment { strategy = sequential, parallelism = 2, maxFailures = 0 }");
+}
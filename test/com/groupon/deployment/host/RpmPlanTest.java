@@ -0,0 +1,65 @@
+/**
+ * Copyright 2021 Brandon Arp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.groupon.deployment.host;
+
+import com.google.common.collect.ImmutableMap;
+import models.PackageVersion;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * @author Brandon Arp (brandon dot arp at inscopemetrics dot com)
+ */
+public class RpmPlanTest {
+    @Test
+    public void testYumShellScriptAppliesEverythingInOneTransaction() {
+        final Map<String, PackageVersion> manifest = ImmutableMap.of(
+                "new", version("1.0-1"),
+                "older", version("1.0-1"),
+                "newer", version("2.0-1"),
+                "same", version("1.0-1"));
+        final RpmPlan plan = RpmPlan.create(manifest, ImmutableMap.of("older", "2.0-1", "newer", "1.0-1", "same", "1.0-1"));
+
+        Assert.assertEquals(
+                Arrays.asList(
+                        "clean expire-cache",
+                        "install new-1.0-1",
+                        "downgrade older-1.0-1",
+                        "update newer-2.0-1",
+                        "run"),
+                plan.toYumShellScript());
+    }
+
+    @Test
+    public void testEmptyPlan() {
+        final RpmPlan plan = RpmPlan.create(ImmutableMap.of("same", version("1.0-1")), ImmutableMap.of("same", "1.0-1"));
+        Assert.assertTrue(plan.isEmpty());
+    }
+
+    @Test
+    public void testShellQuoteEscapesSingleQuotes() {
+        Assert.assertEquals("'install it'\\''s-1.0-1'", RpmPlan.shellQuote("install it's-1.0-1"));
+    }
+
+    private static PackageVersion version(final String version) {
+        final PackageVersion packageVersion = new PackageVersion();
+        packageVersion.setVersion(version);
+        return packageVersion;
+    }
+}
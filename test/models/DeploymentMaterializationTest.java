@@ -0,0 +1,112 @@
+/**
+ * Copyright 2021 Brandon Arp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package models;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import io.ebean.Database;
+import io.ebean.DatabaseFactory;
+import io.ebean.Ebean;
+import io.ebean.Transaction;
+import io.ebean.config.DatabaseConfig;
+import io.ebean.datasource.DataSourceConfig;
+import org.joda.time.DateTime;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.List;
+
+/**
+ * Tests {@link Deployment#materialize} on an in-memory H2 database.  The test registers its own default Ebean
+ * database, so the build runs it in a JVM of its own.
+ *
+ * @author Brandon Arp (brandon dot arp at inscopemetrics dot com)
+ */
+public class DeploymentMaterializationTest {
+    @BeforeClass
+    public static void setUp() {
+        final DataSourceConfig dataSourceConfig = new DataSourceConfig();
+        dataSourceConfig.setDriver("org.h2.Driver");
+        dataSourceConfig.setUrl("jdbc:h2:mem:materialize;DB_CLOSE_DELAY=-1");
+        dataSourceConfig.setUsername("artemis");
+        dataSourceConfig.setPassword("artemis");
+
+        final DatabaseConfig config = new DatabaseConfig();
+        config.setName("materialize");
+        config.setDataSourceConfig(dataSourceConfig);
+        config.setDdlGenerate(true);
+        config.setDdlRun(true);
+        config.setDefaultServer(true);
+        config.setRegister(true);
+        config.addPackage("models");
+        database = DatabaseFactory.create(config);
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        database.shutdown(true, false);
+    }
+
+    @Test
+    public void materializeCreatesHostDeployments() {
+        final ManifestHistory history = createStage(250);
+        final Deployment deployment;
+        try (Transaction transaction = Ebean.beginTransaction()) {
+            deployment = Deployment.materialize(history, "test", "localhost");
+            transaction.commit();
+        }
+        Assert.assertEquals(250, deployment.getHostStates().size());
+        Assert.assertEquals(250, HostDeployment.countUnfinished(Deployment.getById(deployment.getId())));
+    }
+
+    private static ManifestHistory createStage(final int hostCount) {
+        try (Transaction transaction = Ebean.beginTransaction()) {
+            final String prefix = "stage" + (++stageCounter);
+            final List<Hostclass> hostclasses = Lists.newArrayList();
+            for (int i = 0; i < HOSTCLASSES_PER_STAGE; i++) {
+                final Hostclass hostclass = new Hostclass();
+                hostclass.setName(prefix + "-hc" + i);
+                hostclass.save();
+                hostclasses.add(hostclass);
+            }
+            for (int i = 0; i < hostCount; i++) {
+                final Host host = new Host();
+                host.setName(String.format("%s-host%d.dc%d", prefix, i, i % 3));
+                host.setHostclass(hostclasses.get(i % HOSTCLASSES_PER_STAGE));
+                host.save();
+            }
+            final Stage stage = new Stage();
+            stage.setName(prefix);
+            stage.setHostclasses(Sets.newHashSet(hostclasses));
+            stage.save();
+
+            final ManifestHistory history = new ManifestHistory();
+            history.setStage(stage);
+            history.setStart(DateTime.now());
+            history.setConfig("");
+            history.save();
+            transaction.commit();
+            return history;
+        }
+    }
+
+    private static Database database;
+    private static int stageCounter = 0;
+
+    private static final int HOSTCLASSES_PER_STAGE = 4;
+}
@@ -0,0 +1,98 @@
+/**
+ * Copyright 2021 Brandon Arp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package models;
+
+import com.google.common.collect.ImmutableMap;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * @author Brandon Arp (brandon dot arp at inscopemetrics dot com)
+ */
+public class InventoryDiffTest {
+    @Test
+    public void testRpmChanges() {
+        final Manifest manifest = manifest(version("missing", "1.0-1"), version("old", "2.0-1"), version("same", "1.0-1"));
+        final List<PackageChange> changes = InventoryDiff.getChanges(
+                EnvironmentType.RPM,
+                environment(),
+                manifest,
+                ImmutableMap.of("old", "1.0-1", "same", "1.0-1", "unmanaged", "3.0-1"));
+
+        Assert.assertEquals(2, changes.size());
+        Assert.assertEquals("missing", changes.get(0).getName());
+        Assert.assertTrue(changes.get(0).isNew());
+        Assert.assertEquals("old", changes.get(1).getName());
+        Assert.assertEquals(Optional.of("1.0-1"), changes.get(1).getOldVersion());
+        Assert.assertEquals(Optional.of("2.0-1"), changes.get(1).getNewVersion());
+    }
+
+    @Test
+    public void testRollerComparesRpms() {
+        Assert.assertEquals(EnvironmentType.RPM, InventoryDiff.getInventoryType(EnvironmentType.ROLLER));
+        Assert.assertTrue(InventoryDiff.getChanges(
+                EnvironmentType.ROLLER,
+                environment(),
+                manifest(version("same", "1.0-1")),
+                ImmutableMap.of("same", "1.0-1")).isEmpty());
+    }
+
+    @Test
+    public void testDockerChangesOnlyConsiderTheEnvironmentContainer() {
+        final Manifest manifest = manifest(version("app", "sha256:aaaa"));
+        Assert.assertTrue(InventoryDiff.getChanges(
+                EnvironmentType.DOCKER,
+                environment(),
+                manifest,
+                ImmutableMap.of("/artemis-7", "aaaa", "/other", "bbbb")).isEmpty());
+
+        final List<PackageChange> changes = InventoryDiff.getChanges(
+                EnvironmentType.DOCKER,
+                environment(),
+                manifest,
+                ImmutableMap.of("/artemis-7", "sha256:cccc"));
+        Assert.assertEquals(2, changes.size());
+        Assert.assertEquals("app", changes.get(0).getName());
+        Assert.assertTrue(changes.get(0).isNew());
+        Assert.assertEquals("artemis-7", changes.get(1).getName());
+        Assert.assertTrue(changes.get(1).isDeleted());
+    }
+
+    private static Environment environment() {
+        final Environment environment = new Environment();
+        environment.setId(7);
+        return environment;
+    }
+
+    private static Manifest manifest(final PackageVersion... versions) {
+        final Manifest manifest = new Manifest();
+        manifest.setPackages(Arrays.asList(versions));
+        return manifest;
+    }
+
+    private static PackageVersion version(final String name, final String version) {
+        final Package pkg = new Package();
+        pkg.setName(name);
+        final PackageVersion packageVersion = new PackageVersion();
+        packageVersion.setPkg(pkg);
+        packageVersion.setVersion(version);
+        return packageVersion;
+    }
+}
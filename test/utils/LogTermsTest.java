@@ -0,0 +1,57 @@
+package utils;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableSet;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Set;
+
+/**
+ * @author Brandon Arp (brandon dot arp at inscopemetrics dot com)
+ */
+public class LogTermsTest {
+    @Test
+    public void testSplitsWordsAndParts() {
+        final Set<String> terms = LogTerms.of("Error: Package: bash-4.2.46-34.el7.x86_64 (base)");
+        Assert.assertEquals(
+                ImmutableSet.of("error", "package", "bash-4.2.46-34.el7.x86_64", "bash", "46", "34", "el7", "x86", "64", "base"),
+                terms);
+    }
+
+    @Test
+    public void testQueryMatchesMessage() {
+        final Set<String> message = LogTerms.of("yum: Transaction check error: file /usr/bin/foo conflicts");
+        Assert.assertTrue(message.containsAll(LogTerms.queryTerms("CHECK ERROR")));
+        Assert.assertTrue(message.containsAll(LogTerms.queryTerms("/usr/bin/foo")));
+    }
+
+    @Test
+    public void testQueryLooksUpPartsOfWordsWithSeparators() {
+        final Set<String> message = LogTerms.of("Error: Package: bash-4.2.46-34.el7.x86_64 (base)");
+        final Set<String> query = LogTerms.queryTerms("Bash-4.2.46 error");
+        Assert.assertEquals(ImmutableSet.of("bash", "46", "error"), query);
+        Assert.assertTrue(message.containsAll(query));
+        Assert.assertEquals(ImmutableSet.of("bash-4.2.46"), LogTerms.querySubstrings("Bash-4.2.46. error"));
+    }
+
+    @Test
+    public void testIndexesLargeBatches() {
+        final StringBuilder message = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            message.append("line").append(i).append('\n');
+        }
+        Assert.assertTrue(LogTerms.of(message.toString()).contains("line1999"));
+    }
+
+    @Test
+    public void testSkipsShortAndLongWords() {
+        final String longWord = Strings.repeat("a", LogTerms.MAX_LENGTH + 1);
+        Assert.assertEquals(ImmutableSet.of("ok"), LogTerms.of("a ok " + longWord));
+    }
+
+    @Test
+    public void testNullMessage() {
+        Assert.assertTrue(LogTerms.of(null).isEmpty());
+    }
+}
@@ -0,0 +1,82 @@
+/**
+ * Copyright 2021 Brandon Arp
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package utils;
+
+import com.google.common.collect.Lists;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks that {@link RpmVersionComparator} and {@link RpmVersion} order generated versions like the
+ * {@link LegacyRpmVersionComparator}.
+ *
+ * @author Brandon Arp (brandon dot arp at inscopemetrics dot com)
+ */
+public class RpmVersionComparatorAgreementTest {
+    @Test
+    public void comparatorsAgree() {
+        final List<String> versions = createVersions(2000);
+        final Comparator<String> legacy = new LegacyRpmVersionComparator();
+        for (int i = 0; i < versions.size(); i++) {
+            final String left = versions.get(i);
+            final String right = versions.get((i * 31 + 7) % versions.size());
+            final int expected = Integer.signum(legacy.compare(left, right));
+            Assert.assertEquals(
+                    String.format("comparing %s and %s", left, right),
+                    expected,
+                    COMPARATOR.compare(left, right));
+            Assert.assertEquals(
+                    String.format("comparing parsed %s and %s", left, right),
+                    expected,
+                    RpmVersion.parse(left).compareTo(RpmVersion.parse(right)));
+        }
+    }
+
+    /**
+     * Generates rpm style versions, with release candidates and snapshot releases.
+     *
+     * @param count the number of versions
+     * @return the versions
+     */
+    static List<String> createVersions(final int count) {
+        final Random random = new Random(count);
+        final List<String> versions = Lists.newArrayListWithExpectedSize(count);
+        for (int i = 0; i < count; i++) {
+            final StringBuilder version = new StringBuilder()
+                    .append(random.nextInt(5))
+                    .append('.')
+                    .append(random.nextInt(20))
+                    .append('.')
+                    .append(random.nextInt(200));
+            if (random.nextInt(4) == 0) {
+                version.append("~rc").append(random.nextInt(3));
+            }
+            version.append('-').append(random.nextInt(10));
+            if (random.nextInt(3) == 0) {
+                version.append(".").append(20210000 + random.nextInt(1300)).append("git").append(random.nextInt(100));
+            }
+            version.append(".el").append(6 + random.nextInt(3));
+            versions.add(version.toString());
+        }
+        return versions;
+    }
+
+    private static final RpmVersionComparator COMPARATOR = new RpmVersionComparator();
+}
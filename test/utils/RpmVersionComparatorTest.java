@@ -69,7 +69,11 @@ public class RpmVersionComparatorTest {
                 {"1", "0", 1},
                 {"1.0~", "1.0~rc1", -1},
                 {"1.0~", "1.0~~rc1", -1},
-                {"1.0", "1.0~rc1", 1}
+                {"1.0", "1.0~rc1", 1},
+                {"1.99999999999999999999", "1.100000000000000000000", -1},
+                {"1.000000000000000000001", "1.1", 0},
+                {"1.0.", "1.0.1", -1},
+                {"1.0.", "1.0.~rc1", 1}
         });
     }
 
@@ -79,6 +83,14 @@ public class RpmVersionComparatorTest {
         Assert.assertEquals(String.format("comparing %s and %s", _o2, _o1), _result * -1, COMPARATOR.compare(_o2, _o1));
     }
 
+    @Test
+    public void compareParsed() {
+        final RpmVersion v1 = RpmVersion.parse(_o1);
+        final RpmVersion v2 = RpmVersion.parse(_o2);
+        Assert.assertEquals(String.format("comparing %s and %s", _o1, _o2), _result, v1.compareTo(v2));
+        Assert.assertEquals(String.format("comparing %s and %s", _o2, _o1), _result * -1, v2.compareTo(v1));
+    }
+
     public RpmVersionComparatorTest(final String o1, final String o2, final int result) {
         _o1 = o1;
         _o2 = o2;